@@ -0,0 +1,80 @@
+package com.fluidsim.benchmarks;
+
+import java.util.List;
+
+import com.fluidsim.CPUCalculator;
+import com.fluidsim.materials.Gasoline;
+import com.fluidsim.materials.Glycerin;
+import com.fluidsim.materials.Mercury;
+import com.fluidsim.materials.Oil;
+import com.fluidsim.materials.Water;
+import com.fluidsim.physics.FluidSimulator;
+import com.fluidsim.physics.PhysicsCache;
+import com.fluidsim.physics.Scene;
+import com.fluidsim.physics.SimulationState;
+
+// Сцены фиксированного размера для бенчмарков: квадратная решётка частиц с шагом 8 px
+final class BenchmarkScenes {
+    static final float DT = 1.0f / 120.0f;
+    private static final float SPACING = 8.0f;
+    private static final int MARGIN = 50;
+
+    private BenchmarkScenes() {
+    }
+
+    static Scene grid(int particleCount) {
+        int cols = (int)Math.ceil(Math.sqrt(particleCount * 16.0 / 9.0));
+        int rows = (particleCount + cols - 1) / cols;
+        Scene scene = new Scene((int)(cols * SPACING * 1.5f) + 2 * MARGIN, (int)(rows * SPACING * 1.5f) + 2 * MARGIN);
+        scene.addBlock(new Scene.Block(MARGIN, MARGIN, cols, rows, SPACING, 0, 20.0f));
+        return scene;
+    }
+
+    static SimulationState state(int particleCount) {
+        PhysicsCache physicsCache = new PhysicsCache();
+        physicsCache.updateMaterialProperties(List.of(
+            new Water(), new Oil(), new Mercury(), new Gasoline(), new Glycerin()));
+        SimulationState state = grid(particleCount).createState(physicsCache.getMaterialProperties());
+
+        // Разные материалы и температуры, чтобы не мерить вырожденный случай
+        byte[] materials = state.getMaterialIndices();
+        float[] temperatures = state.getTemperatures();
+        for (int i = 0; i < materials.length; i++) {
+            materials[i] = (byte)(i % 5);
+            temperatures[i] = (i * 37) % 100;
+        }
+        return state;
+    }
+
+    // Состояние после нескольких шагов: у частиц есть скорости и перемешанные соседи
+    static SimulationState settledState(int particleCount, int steps) {
+        try (CPUCalculator solver = new CPUCalculator()) {
+            FluidSimulator simulator = new FluidSimulator(solver);
+            simulator.setState(state(particleCount));
+            for (int i = 0; i < steps; i++) {
+                simulator.update(DT);
+            }
+            return simulator.getCurrentState();
+        }
+    }
+
+    static SimulationState copy(SimulationState state) {
+        return new SimulationState(
+            state.getParticleCount(),
+            state.getParticles().clone(),
+            state.getTemperatures().clone(),
+            state.getMaterialIndices().clone(),
+            state.getMaterialProperties().clone(),
+            state.getWidth(),
+            state.getHeight(),
+            state.getMouseForce(),
+            state.getViscosity(),
+            state.getRepulsion(),
+            state.getSurfaceTension(),
+            state.getGravity(),
+            state.getMouseX(),
+            state.getMouseY(),
+            state.getCurrentMouseForce()
+        );
+    }
+}
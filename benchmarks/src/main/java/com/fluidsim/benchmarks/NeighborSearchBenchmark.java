@@ -0,0 +1,50 @@
+package com.fluidsim.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fluidsim.CPUCalculator;
+
+// Построение списков соседей (сетка + до 64 ближайших) без остального шага
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class NeighborSearchBenchmark {
+    @Param({"1000", "10000", "100000"})
+    int particleCount;
+
+    private CPUCalculator calculator;
+    private float[] particles;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        calculator = new CPUCalculator();
+        particles = BenchmarkScenes.settledState(particleCount, 20).getParticles();
+    }
+
+    @Benchmark
+    public void buildNeighborLists() {
+        calculator.buildNeighbors(particles, particles.length / 4);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        calculator.close();
+    }
+}
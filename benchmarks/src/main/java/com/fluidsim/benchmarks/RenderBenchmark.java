@@ -0,0 +1,73 @@
+package com.fluidsim.benchmarks;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fluidsim.ParticleRenderer;
+import com.fluidsim.physics.SimulationState;
+
+// Отрисовка частиц из SimulationPanel (растр по полосам + один drawImage), в BufferedImage размера экрана
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules=jdk.incubator.vector", "-Djava.awt.headless=true"})
+public class RenderBenchmark {
+    @Param({"1000", "10000", "100000"})
+    int particleCount;
+
+    @Param({"material", "velocity", "temperature"})
+    String coloring;
+
+    private BufferedImage image;
+    private Graphics2D g2d;
+    private ParticleRenderer renderer;
+    private float[] particles;
+    private float[] temperatures;
+    private byte[] materials;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SimulationState state = BenchmarkScenes.settledState(particleCount, 20);
+        particles = state.getParticles();
+        temperatures = state.getTemperatures();
+        materials = state.getMaterialIndices();
+
+        image = new BufferedImage(Math.max(1, state.getWidth()), Math.max(1, state.getHeight()),
+            BufferedImage.TYPE_INT_ARGB);
+        g2d = image.createGraphics();
+        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+
+        renderer = new ParticleRenderer();
+        renderer.setVelocityColoring(coloring.equals("velocity"));
+        renderer.setTemperatureColoring(coloring.equals("temperature"));
+    }
+
+    @Benchmark
+    public BufferedImage drawParticles() {
+        renderer.draw(g2d, image.getWidth(), image.getHeight(), particles, temperatures, materials, null, null);
+        return image;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        g2d.dispose();
+    }
+}
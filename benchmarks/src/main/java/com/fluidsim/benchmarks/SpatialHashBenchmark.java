@@ -0,0 +1,73 @@
+package com.fluidsim.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.fluidsim.SpatialHash;
+
+// Сборка сетки и запросы по радиусу через курсор и через callback
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class SpatialHashBenchmark {
+    private static final float RADIUS = 30.0f;
+
+    @Param({"1000", "10000", "100000"})
+    int particleCount;
+
+    private float[] particles;
+    private SpatialHash spatialHash;
+    private SpatialHash.Cursor cursor;
+    private int visited;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        particles = BenchmarkScenes.settledState(particleCount, 20).getParticles();
+        spatialHash = new SpatialHash(RADIUS);
+        spatialHash.build(particles, particleCount);
+        cursor = spatialHash.cursor();
+    }
+
+    @Benchmark
+    public void build() {
+        spatialHash.build(particles, particleCount);
+    }
+
+    @Benchmark
+    public int queryAllWithCursor() {
+        int found = 0;
+        for (int i = 0; i < particleCount; i++) {
+            cursor.reset(particles[i * 4], particles[i * 4 + 1], RADIUS);
+            while (cursor.next() >= 0) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    @Benchmark
+    public void queryAllWithVisitor(Blackhole blackhole) {
+        visited = 0;
+        for (int i = 0; i < particleCount; i++) {
+            spatialHash.forEachNeighbor(particles[i * 4], particles[i * 4 + 1], RADIUS,
+                (index, distance2) -> visited++);
+        }
+        blackhole.consume(visited);
+    }
+}
@@ -0,0 +1,65 @@
+package com.fluidsim.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fluidsim.physics.SimulationState;
+import com.fluidsim.physics.StateSerializer;
+
+// Сохранение и загрузка снимка состояния во временный файл
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class StateSerializerBenchmark {
+    @Param({"1000", "10000", "100000"})
+    int particleCount;
+
+    @Param({"false", "true"})
+    boolean compress;
+
+    private SimulationState state;
+    private String saveFile;
+    private String loadFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        state = BenchmarkScenes.state(particleCount);
+        saveFile = File.createTempFile("fluidsim-save", ".bin").getAbsolutePath();
+        loadFile = File.createTempFile("fluidsim-load", ".bin").getAbsolutePath();
+        StateSerializer.saveState(state, loadFile, compress);
+    }
+
+    @Benchmark
+    public void save() {
+        StateSerializer.saveState(state, saveFile, compress);
+    }
+
+    @Benchmark
+    public SimulationState load() {
+        return StateSerializer.loadState(loadFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        new File(saveFile).delete();
+        new File(loadFile).delete();
+    }
+}
@@ -0,0 +1,66 @@
+package com.fluidsim.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fluidsim.SolverFactory;
+import com.fluidsim.physics.FluidSimulator;
+import com.fluidsim.physics.PhysicsSolver;
+import com.fluidsim.physics.SimulationState;
+
+// Полный шаг физики через FluidSimulator на выбранном бэкенде
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class StepBenchmark {
+    @Param({"1000", "10000", "100000"})
+    int particleCount;
+
+    @Param({"cpu"})
+    String backend;
+
+    private PhysicsSolver solver;
+    private FluidSimulator simulator;
+    private SimulationState initialState;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        solver = SolverFactory.create(backend);
+        simulator = new FluidSimulator(solver);
+        initialState = BenchmarkScenes.state(particleCount);
+    }
+
+    // Каждая итерация стартует с одного и того же состояния
+    @Setup(Level.Iteration)
+    public void resetState() {
+        simulator.setState(BenchmarkScenes.copy(initialState));
+        solver.invalidateParticles();
+    }
+
+    @Benchmark
+    public SimulationState step() {
+        simulator.update(BenchmarkScenes.DT);
+        return simulator.getCurrentState();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        solver.close();
+    }
+}
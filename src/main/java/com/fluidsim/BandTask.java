@@ -0,0 +1,29 @@
+package com.fluidsim;
+
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+// Параллельный проход по полосам [start, end): каждая полоса - отдельная задача пула
+final class BandTask extends RecursiveAction {
+    private final IntConsumer body;
+    private final int start;
+    private final int end;
+
+    BandTask(IntConsumer body, int start, int end) {
+        this.body = body;
+        this.start = start;
+        this.end = end;
+    }
+
+    @Override
+    protected void compute() {
+        if (end - start <= 1) {
+            if (start < end) {
+                body.accept(start);
+            }
+            return;
+        }
+        int middle = (start + end) >>> 1;
+        invokeAll(new BandTask(body, start, middle), new BandTask(body, middle, end));
+    }
+}
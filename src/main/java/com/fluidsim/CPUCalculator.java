@@ -0,0 +1,456 @@
+package com.fluidsim;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fluidsim.physics.ParticleStore;
+import com.fluidsim.physics.PhysicsSolver;
+
+public class CPUCalculator implements PhysicsSolver {
+    // Константы повторяют fluid_kernel.cl, чтобы оба бэкенда давали одинаковую физику
+    private static final int MAX_NEIGHBORS = 64;
+    private static final float INTERACTION_RADIUS = 30.0f;
+    private static final float MIN_DISTANCE = 10.0f;
+    private static final float REST_DENSITY = 15.0f;
+    private static final float PRESSURE_STRENGTH = 200.0f;
+    private static final float TEMPERATURE_DIFFUSION = 0.1f;
+    private static final float BUOYANCY_STRENGTH = 9.81f;
+    private static final float MOUSE_INFLUENCE = 200.0f;
+    private static final float WALL_DAMPING = 0.8f;
+    private static final float WALL_MARGIN = 5.0f;
+
+    private static final int MATERIAL_VISCOSITY_OFFSET = 1;
+    private static final int MATERIAL_SURFACE_TENSION_OFFSET = 2;
+
+    // Минимальный размер диапазона, который ещё имеет смысл делить между потоками
+    private static final int SEQUENTIAL_THRESHOLD = 256;
+
+    private final ForkJoinPool pool;
+    private final SpatialHash spatialHash = new SpatialHash(INTERACTION_RADIUS);
+    private int[] neighborIndices = new int[0];
+    private int[] neighborCounts = new int[0];
+    private float[] previousParticles = new float[0];
+    private float[] previousTemperatures = new float[0];
+    private float[] localDensities = new float[0];
+    private float[] forces = new float[0];
+    // Материалы текущего шага; null - удалённых частиц нет
+    private byte[] materials;
+    private final AtomicInteger maxSpeed2Bits = new AtomicInteger();
+
+    public CPUCalculator() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public CPUCalculator(int parallelism) {
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    @Override
+    public float[] updateParticles(int count, float[] particles, float[] temperatures,
+                                   byte[] materialIndices, float[] materialProperties,
+                                   int width, int height,
+                                   int mouseX, int mouseY, float mouseForce,
+                                   float deltaTime, float viscosity,
+                                   float repulsion, float surfaceTension,
+                                   float gravity, float currentMouseForce) {
+        int numParticles = count;
+        if (numParticles == 0) {
+            return particles;
+        }
+
+        buildNeighbors(particles, materialIndices, numParticles);
+        System.arraycopy(temperatures, 0, previousTemperatures, 0, numParticles);
+
+        // Те же три стадии, что computeDensity -> computeForces -> integrate на GPU
+        parallelFor(numParticles, (start, end) -> computeDensity(start, end, temperatures, deltaTime));
+        parallelFor(numParticles, (start, end) -> computeForces(start, end, temperatures,
+            materialIndices, materialProperties, viscosity, repulsion, surfaceTension));
+        maxSpeed2Bits.set(0);
+        parallelFor(numParticles, (start, end) -> integrate(start, end, particles, temperatures,
+            materialIndices, width, height, mouseX, mouseY, mouseForce, currentMouseForce, deltaTime, gravity));
+
+        return particles;
+    }
+
+    // Списки соседей для текущих позиций; отдельно от шага, чтобы их можно было замерить
+    public void buildNeighbors(float[] particles, int numParticles) {
+        buildNeighbors(particles, null, numParticles);
+    }
+
+    // Удалённые частицы остаются в сетке, но не получают соседей и сами ничьи не соседи
+    public void buildNeighbors(float[] particles, byte[] materialIndices, int numParticles) {
+        ensureCapacity(numParticles);
+        materials = materialIndices;
+
+        // Как и пинг-понг буферы на GPU: стадии читают снимок, пишут в исходный массив
+        System.arraycopy(particles, 0, previousParticles, 0, numParticles * 4);
+
+        spatialHash.build(previousParticles, numParticles);
+        parallelFor(numParticles, this::buildNeighborLists);
+    }
+
+    private void ensureCapacity(int numParticles) {
+        if (neighborCounts.length < numParticles) {
+            int capacity = Math.max(numParticles, neighborCounts.length * 2);
+            neighborIndices = new int[capacity * MAX_NEIGHBORS];
+            neighborCounts = new int[capacity];
+            previousParticles = new float[capacity * 4];
+            previousTemperatures = new float[capacity];
+            localDensities = new float[capacity];
+            forces = new float[capacity * 2];
+        }
+    }
+
+    // Как и buildSpatialHash на GPU, при переполнении оставляет MAX_NEIGHBORS ближайших
+    private void buildNeighborLists(int start, int end) {
+        float[] neighborDist2 = new float[MAX_NEIGHBORS];
+        SpatialHash.Cursor cursor = spatialHash.cursor();
+        for (int gid = start; gid < end; gid++) {
+            if (isDead(gid)) {
+                neighborCounts[gid] = 0;
+                continue;
+            }
+            float x = previousParticles[gid * 4];
+            float y = previousParticles[gid * 4 + 1];
+            int startIdx = gid * MAX_NEIGHBORS;
+            int count = 0;
+            int farthest = 0;
+
+            cursor.reset(x, y, INTERACTION_RADIUS);
+            for (int i = cursor.next(); i >= 0; i = cursor.next()) {
+                if (i == gid || isDead(i)) continue;
+                float dist2 = cursor.distance2();
+
+                if (count < MAX_NEIGHBORS) {
+                    neighborIndices[startIdx + count] = i;
+                    neighborDist2[count] = dist2;
+                    if (dist2 > neighborDist2[farthest]) farthest = count;
+                    count++;
+                } else if (dist2 < neighborDist2[farthest]) {
+                    neighborIndices[startIdx + farthest] = i;
+                    neighborDist2[farthest] = dist2;
+                    for (int n = 0; n < MAX_NEIGHBORS; n++) {
+                        if (neighborDist2[n] > neighborDist2[farthest]) farthest = n;
+                    }
+                }
+            }
+            neighborCounts[gid] = count;
+        }
+    }
+
+    private boolean isDead(int i) {
+        return materials != null && materials[i] == ParticleStore.DEAD;
+    }
+
+    // Стадия 1: локальная плотность и новая температура за один проход по соседям
+    private void computeDensity(int start, int end, float[] temperatures, float deltaTime) {
+        float[] p = previousParticles;
+        float interactionRadius2 = INTERACTION_RADIUS * INTERACTION_RADIUS;
+
+        for (int gid = start; gid < end; gid++) {
+            float posX = p[gid * 4];
+            float posY = p[gid * 4 + 1];
+            float particleTemp = previousTemperatures[gid];
+            float localDensity = 0.0f;
+            float tempDiff = 0.0f;
+
+            int startIdx = gid * MAX_NEIGHBORS;
+            int count = neighborCounts[gid];
+            for (int n = 0; n < count; n++) {
+                int i = neighborIndices[startIdx + n];
+                float dx = p[i * 4] - posX;
+                float dy = p[i * 4 + 1] - posY;
+                float dist2 = dx * dx + dy * dy;
+
+                if (dist2 < interactionRadius2) {
+                    float influence = 1.0f - (float)Math.sqrt(dist2) / INTERACTION_RADIUS;
+                    if (dist2 > 0.0f) {
+                        localDensity += influence;
+                    }
+                    tempDiff += (previousTemperatures[i] - particleTemp) * influence * TEMPERATURE_DIFFUSION;
+                }
+            }
+
+            localDensities[gid] = localDensity;
+            temperatures[gid] = particleTemp + tempDiff * deltaTime;
+        }
+    }
+
+    // Стадия 2: силы между частицами; давление пары - среднее давлений обеих частиц
+    private void computeForces(int start, int end, float[] temperatures,
+                               byte[] materialIndices, float[] materialProperties,
+                               float viscosity, float repulsion, float surfaceTension) {
+        float[] p = previousParticles;
+        float interactionRadius2 = INTERACTION_RADIUS * INTERACTION_RADIUS;
+
+        for (int gid = start; gid < end; gid++) {
+            if (materialIndices[gid] == ParticleStore.DEAD) {
+                forces[gid * 2] = 0;
+                forces[gid * 2 + 1] = 0;
+                continue;
+            }
+            float posX = p[gid * 4];
+            float posY = p[gid * 4 + 1];
+            float velX = p[gid * 4 + 2];
+            float velY = p[gid * 4 + 3];
+
+            float viscosityX = 0, viscosityY = 0;
+            float repulsionX = 0, repulsionY = 0;
+            float surfaceX = 0, surfaceY = 0;
+            float pressureX = 0, pressureY = 0;
+
+            int currentMaterial = materialIndices[gid];
+            float currentDensity = materialProperties[currentMaterial * 4];
+            float currentVisc = materialProperties[currentMaterial * 4 + MATERIAL_VISCOSITY_OFFSET];
+            float currentSurfaceTension = materialProperties[currentMaterial * 4 + MATERIAL_SURFACE_TENSION_OFFSET];
+            float currentPressure = localDensities[gid] - REST_DENSITY;
+
+            int startIdx = gid * MAX_NEIGHBORS;
+            int count = neighborCounts[gid];
+            for (int n = 0; n < count; n++) {
+                int i = neighborIndices[startIdx + n];
+                float dx = p[i * 4] - posX;
+                float dy = p[i * 4 + 1] - posY;
+                float dist2 = dx * dx + dy * dy;
+
+                if (dist2 >= interactionRadius2 || dist2 <= 0.0f) continue;
+
+                float dist = (float)Math.sqrt(dist2);
+                float influence = 1.0f - dist / INTERACTION_RADIUS;
+                float nx = dx / dist;
+                float ny = dy / dist;
+
+                int otherMaterial = materialIndices[i];
+                float otherDensity = materialProperties[otherMaterial * 4];
+                float otherVisc = materialProperties[otherMaterial * 4 + MATERIAL_VISCOSITY_OFFSET];
+                float otherSurfaceTension = materialProperties[otherMaterial * 4 + MATERIAL_SURFACE_TENSION_OFFSET];
+
+                float effectiveViscosity = (currentVisc + otherVisc) * 0.5f;
+                viscosityX += (p[i * 4 + 2] - velX) * influence * effectiveViscosity * viscosity;
+                viscosityY += (p[i * 4 + 3] - velY) * influence * effectiveViscosity * viscosity;
+
+                if (dist < MIN_DISTANCE) {
+                    float repulsionInfluence = 1.0f - dist / MIN_DISTANCE;
+                    repulsionX -= nx * repulsion * repulsionInfluence;
+                    repulsionY -= ny * repulsion * repulsionInfluence;
+                }
+
+                float avgDensity = (currentDensity + otherDensity) * 0.5f;
+                float densityRatio = currentDensity / avgDensity;
+                float pairPressure = (currentPressure + localDensities[i] - REST_DENSITY) * 0.5f;
+                float pressureForceStrength = PRESSURE_STRENGTH * pairPressure * influence * densityRatio;
+                pressureX -= nx * pressureForceStrength;
+                pressureY -= ny * pressureForceStrength;
+
+                // закон Архимеда
+                float densityDifference = otherDensity - currentDensity;
+                if (densityDifference != 0.0f) {
+                    float volumeDisplaced = influence * influence * influence;
+                    float buoyancyY = BUOYANCY_STRENGTH * volumeDisplaced * densityDifference;
+                    float horizontalX = dx * 0.1f * Math.abs(densityDifference);
+
+                    float totalForce = Math.abs(buoyancyY);
+                    float length = (float)Math.sqrt(horizontalX * horizontalX + buoyancyY * buoyancyY);
+                    if (length > 0.0f) {
+                        pressureX += horizontalX / length * totalForce * influence;
+                        pressureY += buoyancyY / length * totalForce * influence;
+                    }
+                }
+
+                if (dist > INTERACTION_RADIUS * 0.7f) {
+                    float effectiveSurfaceTension;
+                    if (currentMaterial == otherMaterial) {
+                        effectiveSurfaceTension = currentSurfaceTension;
+                    } else {
+                        float mixFactor = 0.5f;
+                        effectiveSurfaceTension = (currentSurfaceTension + otherSurfaceTension) * 0.5f * mixFactor;
+                    }
+                    surfaceX += nx * effectiveSurfaceTension * surfaceTension * influence;
+                    surfaceY += ny * effectiveSurfaceTension * surfaceTension * influence;
+                }
+            }
+
+            // Вязкость слабеет с нагревом; масса частицы 1, сила сразу ускорение
+            float tempFactor = (temperatures[gid] - 20.0f) / 80.0f;
+            float effectiveViscosity = viscosity * (1.0f - tempFactor * 0.8f);
+
+            forces[gid * 2] = viscosityX * effectiveViscosity + repulsionX + surfaceX + pressureX;
+            forces[gid * 2 + 1] = viscosityY * effectiveViscosity + repulsionY + surfaceY + pressureY;
+        }
+    }
+
+    // Стадия 3: тепловой шум, гравитация, мышь и стенки
+    private void integrate(int start, int end, float[] particles, float[] temperatures,
+                           byte[] materialIndices, int width, int height, int mouseX, int mouseY,
+                           float mouseForce, float currentMouseForce,
+                           float deltaTime, float gravity) {
+        float[] p = previousParticles;
+        float rangeMax2 = 0.0f;
+
+        for (int gid = start; gid < end; gid++) {
+            // Удалённая частица стоит на месте до уплотнения
+            if (materialIndices[gid] == ParticleStore.DEAD) continue;
+
+            float posX = p[gid * 4];
+            float posY = p[gid * 4 + 1];
+            float velX = p[gid * 4 + 2];
+            float velY = p[gid * 4 + 3];
+
+            float tempFactor = (temperatures[gid] - 20.0f) / 80.0f;
+            float thermalX = (random(gid * 2) - 0.5f) * tempFactor * 100.0f;
+            float thermalY = (random(gid * 2 + 1) - 0.5f) * tempFactor * 100.0f;
+
+            velX += forces[gid * 2] * deltaTime;
+            velY += forces[gid * 2 + 1] * deltaTime;
+            velX += thermalX * deltaTime;
+            velY += thermalY * deltaTime;
+            velY += gravity * deltaTime;
+
+            // Обработка взаимодействия с мышью
+            if (mouseForce != 0) {
+                float toMouseX = mouseX - posX;
+                float toMouseY = mouseY - posY;
+                float dist = (float)Math.sqrt(toMouseX * toMouseX + toMouseY * toMouseY);
+
+                if (dist < MOUSE_INFLUENCE && dist > 0.0f) {
+                    float absForce = Math.abs(mouseForce);
+                    if (absForce <= currentMouseForce) {  // Режим рисования
+                        float force = mouseForce * (1.0f - dist / MOUSE_INFLUENCE);
+                        velX += toMouseX / dist * force * deltaTime;
+                        velY += toMouseY / dist * force * deltaTime;
+                    } else if (absForce > currentMouseForce * 2 && absForce < currentMouseForce * 4) {  // Режим температуры
+                    } else {  // Режим вихря
+                        float force = Math.signum(mouseForce) * (1.0f - dist / MOUSE_INFLUENCE) * 2000.0f;
+                        velX += -toMouseY / dist * force * deltaTime;
+                        velY += toMouseX / dist * force * deltaTime;
+                    }
+                }
+            }
+
+            float dampingFactor = 0.98f + tempFactor * 0.01f;
+            velX *= dampingFactor;
+            velY *= dampingFactor;
+
+            posX += velX * deltaTime;
+            posY += velY * deltaTime;
+
+            // Коллизия со стенками
+            if (posX < WALL_MARGIN) {
+                posX = WALL_MARGIN;
+                velX = -velX * WALL_DAMPING;
+            }
+            if (posX > width - WALL_MARGIN) {
+                posX = width - WALL_MARGIN;
+                velX = -velX * WALL_DAMPING;
+            }
+            if (posY < WALL_MARGIN) {
+                posY = WALL_MARGIN;
+                velY = -velY * WALL_DAMPING;
+            }
+            if (posY > height - WALL_MARGIN) {
+                posY = height - WALL_MARGIN;
+                velY = -velY * WALL_DAMPING;
+            }
+
+            particles[gid * 4] = posX;
+            particles[gid * 4 + 1] = posY;
+            particles[gid * 4 + 2] = velX;
+            particles[gid * 4 + 3] = velY;
+
+            float speed2 = velX * velX + velY * velY;
+            if (speed2 > rangeMax2) rangeMax2 = speed2;
+        }
+
+        // Неотрицательные float сравниваются так же, как их биты
+        int bits = Float.floatToIntBits(rangeMax2);
+        maxSpeed2Bits.accumulateAndGet(bits, Math::max);
+    }
+
+    // Тот же генератор, что и random() в fluid_kernel.cl
+    private static float random(int seed) {
+        seed = (seed << 13) ^ seed;
+        seed = (seed * (seed * seed * 15731 + 789221) + 1376312589) & 0x7fffffff;
+        return (float)seed / 0x7fffffff;
+    }
+
+    private void parallelFor(int count, RangeBody body) {
+        pool.invoke(new RangeTask(body, 0, count));
+    }
+
+    @Override
+    public void updateWorkSize(int size) {
+        // Буферы растут сами при следующем шаге
+    }
+
+    @Override
+    public void invalidateParticles() {
+        // Состояние между шагами не хранится
+    }
+
+    @Override
+    public void invalidateSlots(int[] slots, int count) {
+        // Каждый шаг читает массивы хранилища напрямую, устаревших копий слотов нет
+    }
+
+    @Override
+    public void compact(int[] sourceSlots, int count) {
+        // Массивы хоста уже уплотнены, своих копий частиц между шагами нет
+    }
+
+    @Override
+    public void invalidateTemperatures() {
+    }
+
+    @Override
+    public float getMaxSpeed() {
+        return (float)Math.sqrt(Float.intBitsToFloat(maxSpeed2Bits.get()));
+    }
+
+    // Шаг синхронный, ждать нечего
+    @Override
+    public void finish() {
+    }
+
+    @Override
+    public void setDensity(double density) {
+        // Масса частицы фиксирована так же, как в GPU-ядре
+    }
+
+    @Override
+    public String getName() {
+        return "CPU (" + pool.getParallelism() + " threads)";
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    @FunctionalInterface
+    private interface RangeBody {
+        void run(int start, int end);
+    }
+
+    private static final class RangeTask extends RecursiveAction {
+        private final RangeBody body;
+        private final int start;
+        private final int end;
+
+        RangeTask(RangeBody body, int start, int end) {
+            this.body = body;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= SEQUENTIAL_THRESHOLD) {
+                body.run(start, end);
+                return;
+            }
+            int middle = (start + end) >>> 1;
+            invokeAll(new RangeTask(body, start, middle), new RangeTask(body, middle, end));
+        }
+    }
+}
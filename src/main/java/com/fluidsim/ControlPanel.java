@@ -12,6 +12,7 @@ import java.util.List;
 
 import javax.swing.BorderFactory;
 import javax.swing.Box;
+import javax.swing.ButtonGroup;
 import javax.swing.BoxLayout;
 import javax.swing.Icon;
 import javax.swing.JButton;
@@ -117,6 +118,10 @@ public class ControlPanel extends JPanel {
             e -> simulationPanel.setTemperatureColoring(((JCheckBox)e.getSource()).isSelected()));
         displayPanel.addComponent(temperatureColoringBox);
 
+        JCheckBox surfaceRenderingBox = createStyledCheckBox("Поверхность жидкости",
+            e -> simulationPanel.setSurfaceRendering(((JCheckBox)e.getSource()).isSelected()));
+        displayPanel.addComponent(surfaceRenderingBox);
+
         displayPanel.addPropertyChangeListener("selectedMaterial", evt -> {
             Material selectedMaterial = (Material) evt.getNewValue();
             interactionPanel.setSelectedMaterial(selectedMaterial);
@@ -128,6 +133,19 @@ public class ControlPanel extends JPanel {
         add(displayPanel);
         add(Box.createVerticalStrut(2));
 
+        interactionPanel.addComponent(createStyledLabel("Режим мыши:"));
+        ButtonGroup mouseModeGroup = new ButtonGroup();
+        String[] modeNames = {"Рисование", "Температура", "Вихрь", "Ластик"};
+        SimulationPanel.MouseMode[] modes = SimulationPanel.MouseMode.values();
+        for (int i = 0; i < modes.length; i++) {
+            SimulationPanel.MouseMode mode = modes[i];
+            JRadioButton modeButton = createStyledRadioButton(modeNames[i],
+                e -> simulationPanel.setMouseMode(mode));
+            modeButton.setSelected(mode == SimulationPanel.MouseMode.DRAWING);
+            mouseModeGroup.add(modeButton);
+            interactionPanel.addComponent(modeButton);
+        }
+
         interactionPanel.addComponent(createStyledLabel("Сила мыши:"));
         interactionPanel.addComponent(createStyledSlider(
             (int)(SimulationConstants.MIN_MOUSE_FORCE),
@@ -217,6 +235,11 @@ public class ControlPanel extends JPanel {
     }
 
     private void addPhysicsControls(JPanel panel) {
+        JCheckBox reorderingBox = createStyledCheckBox("Z-упорядочивание частиц",
+            e -> simulationPanel.setParticleReordering(((JCheckBox)e.getSource()).isSelected()));
+        reorderingBox.setSelected(true);
+        panel.add(reorderingBox);
+
         panel.add(createStyledLabel("Вязкость:"));
         JSlider viscositySlider = createStyledSlider(
             (int)(SimulationConstants.MIN_VISCOSITY * 100),
@@ -271,7 +294,9 @@ public class ControlPanel extends JPanel {
             "<html><b>R</b> - Ускорение времени</html>",
             "<html><b>Z</b> - Начать запись петли</html>",
             "<html><b>X</b> - Зафиксировать конец петли</html>",
-            "<html><b>C</b> - Воспроизвести/остановить петлю</html>"
+            "<html><b>C</b> - Воспроизвести/остановить петлю</html>",
+            "<html><b>V</b> - Начать/закончить запись прогона</html>",
+            "<html><b>B</b> - Воспроизвести последнюю запись</html>"
         };
         
         for (String info : effectsInfo) {
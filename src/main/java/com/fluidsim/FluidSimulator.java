@@ -4,19 +4,21 @@ import java.awt.BorderLayout;
 
 import javax.swing.JPanel;
 
+import com.fluidsim.physics.PhysicsSolver;
+
 public class FluidSimulator extends JPanel {
     private static final int TARGET_FPS = 120;
     private static final long OPTIMAL_TIME = 1000000000 / TARGET_FPS;
     
     private final SimulationPanel simulationPanel;
     private final ControlPanel controlPanel;
-    private final GPUCalculator gpuCalculator;
+    private final PhysicsSolver solver;
 
     public FluidSimulator() {
         setLayout(new BorderLayout());
         
-        gpuCalculator = new GPUCalculator();
-        simulationPanel = new SimulationPanel(gpuCalculator);
+        solver = SolverFactory.create();
+        simulationPanel = new SimulationPanel(solver);
         controlPanel = new ControlPanel(simulationPanel);
 
         add(simulationPanel, BorderLayout.CENTER);
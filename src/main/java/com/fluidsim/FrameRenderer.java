@@ -0,0 +1,163 @@
+package com.fluidsim;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import com.fluidsim.physics.ParticleStore;
+import com.fluidsim.physics.Recording;
+
+// Отрисовка кадров без окна в пронумерованные PNG тем же ParticleRenderer, что и на экране.
+// Рисует вызывающий поток, кодирует PNG пул. Изображений ограниченное число, они ходят по кругу:
+// живой прогон при занятых изображениях пропускает кадр, а не ждёт кодировщик;
+// отрисовка записи физику не держит и поэтому ждёт свободное изображение
+public class FrameRenderer implements AutoCloseable {
+    public enum Coloring {
+        MATERIAL,
+        VELOCITY,
+        TEMPERATURE;
+
+        public static Coloring parse(String name) {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private final Path directory;
+    private final int width;
+    private final int height;
+    private final ParticleRenderer renderer = new ParticleRenderer();
+    private final ThreadPoolExecutor pool;
+    // Свободные изображения; занятое возвращается сюда после записи PNG
+    private final BlockingQueue<BufferedImage> freeImages;
+    private final AtomicInteger renderedFrames = new AtomicInteger();
+    private final AtomicInteger failedFrames = new AtomicInteger();
+    private int droppedFrames;
+
+    // Кадр записи, массивы ровно по числу частиц
+    private float[] particles = new float[0];
+    private float[] temperatures = new float[0];
+    private byte[] materials = new byte[0];
+
+    public FrameRenderer(Path directory, int width, int height, Coloring coloring,
+                         int particleSize, boolean surface) throws IOException {
+        this(directory, width, height, coloring, particleSize, surface, Runtime.getRuntime().availableProcessors());
+    }
+
+    public FrameRenderer(Path directory, int width, int height, Coloring coloring,
+                         int particleSize, boolean surface, int threads) throws IOException {
+        this.directory = directory;
+        this.width = width;
+        this.height = height;
+        Files.createDirectories(directory);
+        renderer.setParticleSize(particleSize);
+        renderer.setVelocityColoring(coloring == Coloring.VELOCITY);
+        renderer.setTemperatureColoring(coloring == Coloring.TEMPERATURE);
+        renderer.setSurfaceRendering(surface);
+
+        // По изображению на кодирующий поток и столько же в очереди
+        int images = threads * 2;
+        freeImages = new ArrayBlockingQueue<>(images);
+        for (int i = 0; i < images; i++) {
+            freeImages.add(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB));
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(images),
+            task -> Thread.ofPlatform().name("png-encoder-" + threadNumber.incrementAndGet()).daemon().unstarted(task),
+            new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    // Живой кадр: рисуются первые count частиц. Если все изображения ещё кодируются,
+    // кадр пропускается; возвращает, попал ли кадр в очередь
+    public boolean submit(int frame, int count, float[] particles, float[] temperatures, byte[] materials) {
+        BufferedImage image = freeImages.poll();
+        if (image == null) {
+            droppedFrames++;
+            return false;
+        }
+        ensureFrame(count);
+        System.arraycopy(particles, 0, this.particles, 0, count * ParticleStore.STRIDE);
+        System.arraycopy(temperatures, 0, this.temperatures, 0, count);
+        System.arraycopy(materials, 0, this.materials, 0, count);
+        renderAndEncode(frame, image);
+        return true;
+    }
+
+    // Все кадры записи по порядку; ждёт свободное изображение вместо пропуска
+    public void submitAll(Recording recording) {
+        for (int frame = 0; frame < recording.getFrameCount(); frame++) {
+            BufferedImage image;
+            try {
+                image = freeImages.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            ensureFrame(recording.getParticleCount(frame));
+            recording.read(frame, particles, temperatures, materials);
+            renderAndEncode(frame, image);
+        }
+    }
+
+    private void ensureFrame(int count) {
+        if (temperatures.length != count) {
+            particles = new float[count * ParticleStore.STRIDE];
+            temperatures = new float[count];
+            materials = new byte[count];
+        }
+    }
+
+    private void renderAndEncode(int frame, BufferedImage image) {
+        Graphics2D g2d = image.createGraphics();
+        try {
+            g2d.setColor(SimulationConstants.BACKGROUND_COLOR);
+            g2d.fillRect(0, 0, width, height);
+            renderer.draw(g2d, width, height, particles, temperatures, materials, null, null);
+        } finally {
+            g2d.dispose();
+        }
+        // В очереди пула всегда есть место: задач не больше, чем изображений
+        pool.execute(() -> encode(frame, image));
+    }
+
+    private void encode(int frame, BufferedImage image) {
+        Path file = directory.resolve(String.format("frame_%06d.png", frame));
+        try {
+            if (!ImageIO.write(image, "png", file.toFile())) {
+                throw new IOException("no PNG writer");
+            }
+            renderedFrames.incrementAndGet();
+        } catch (IOException e) {
+            if (failedFrames.getAndIncrement() == 0) {
+                System.err.println("Warning: rendering of " + file + " failed (" + e + ")");
+            }
+        } finally {
+            freeImages.add(image);
+        }
+    }
+
+    public int getRenderedFrames() { return renderedFrames.get(); }
+    public int getFailedFrames() { return failedFrames.get(); }
+    public int getDroppedFrames() { return droppedFrames; }
+
+    // Дожидается записи всех поставленных кадров
+    @Override
+    public void close() {
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -4,11 +4,22 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.lang.foreign.Arena;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
 
 import org.jocl.CL;
+import static org.jocl.CL.CL_DEVICE_HOST_UNIFIED_MEMORY;
+import static org.jocl.CL.CL_DEVICE_TYPE_CPU;
 import static org.jocl.CL.CL_DEVICE_TYPE_GPU;
+import static org.jocl.CL.CL_FALSE;
+import static org.jocl.CL.CL_MAP_READ;
 import static org.jocl.CL.CL_MEM_COPY_HOST_PTR;
+import static org.jocl.CL.CL_MEM_READ_ONLY;
 import static org.jocl.CL.CL_MEM_READ_WRITE;
+import static org.jocl.CL.CL_MEM_USE_HOST_PTR;
 import static org.jocl.CL.CL_TRUE;
 import static org.jocl.CL.clBuildProgram;
 import static org.jocl.CL.clCreateBuffer;
@@ -16,54 +27,122 @@ import static org.jocl.CL.clCreateCommandQueue;
 import static org.jocl.CL.clCreateContext;
 import static org.jocl.CL.clCreateKernel;
 import static org.jocl.CL.clCreateProgramWithSource;
+import static org.jocl.CL.clEnqueueCopyBuffer;
+import static org.jocl.CL.clEnqueueMapBuffer;
 import static org.jocl.CL.clEnqueueNDRangeKernel;
 import static org.jocl.CL.clEnqueueReadBuffer;
+import static org.jocl.CL.clEnqueueUnmapMemObject;
 import static org.jocl.CL.clEnqueueWriteBuffer;
+import static org.jocl.CL.clFinish;
+import static org.jocl.CL.clFlush;
 import static org.jocl.CL.clGetDeviceIDs;
+import static org.jocl.CL.clGetDeviceInfo;
 import static org.jocl.CL.clGetPlatformIDs;
+import static org.jocl.CL.clReleaseEvent;
 import static org.jocl.CL.clReleaseMemObject;
 import static org.jocl.CL.clSetKernelArg;
+import static org.jocl.CL.clWaitForEvents;
 import org.jocl.Pointer;
 import org.jocl.Sizeof;
 import org.jocl.cl_command_queue;
 import org.jocl.cl_context;
 import org.jocl.cl_device_id;
+import org.jocl.cl_event;
 import org.jocl.cl_kernel;
 import org.jocl.cl_mem;
 import org.jocl.cl_platform_id;
 import org.jocl.cl_program;
 
-public class GPUCalculator implements AutoCloseable {
+import com.fluidsim.physics.PhysicsSolver;
+
+public class GPUCalculator implements PhysicsSolver {
     private cl_context context;
     private cl_command_queue commandQueue;
-    private cl_kernel updateKernel;
     private cl_kernel spatialHashKernel;
+    private cl_kernel cellKeysKernel;
+    private cl_kernel bitonicSortKernel;
+    private cl_kernel resetCellsKernel;
+    private cl_kernel cellBoundsKernel;
     private cl_program program;
-    private cl_mem persistentParticlesBuffer;
+    // Пинг-понг: шаг читает [current] и пишет в [1 - current]
+    private final cl_mem[] particleBuffers = new cl_mem[2];
+    private final cl_mem[] temperatureBuffers = new cl_mem[2];
+    private int current;
     private cl_mem neighborIndicesBuffer;
     private cl_mem neighborCountsBuffer;
-    private cl_mem temperaturesBuffer;
     private cl_mem materialIndicesBuffer;
     private cl_mem materialPropertiesBuffer;
-    private final int[] workDimensions;
     private final int MAX_NEIGHBORS = 64;
     private cl_kernel densityKernel;
     private cl_kernel forcesKernel;
     private cl_kernel integrationKernel;
+    private cl_kernel maxSpeedKernel;
+    private cl_kernel scatterKernel;
+    private cl_kernel gatherKernel;
     private cl_mem forcesBuffer;
     private cl_mem localDensitiesBuffer;
+    private cl_mem groupMaxBuffer;
+    private cl_mem slotMapBuffer;
+    private cl_mem materialScratchBuffer;
+    private cl_mem editSlotsBuffer;
+    private cl_mem editParticlesBuffer;
+    private cl_mem editTemperaturesBuffer;
+    private cl_mem editMaterialsBuffer;
+    private int editCapacity;
+    // Слоты, изменённые хостом на месте; переносятся на устройство в начале следующего шага
+    private int[] editSlots = new int[0];
+    private int editCount;
+    private cl_mem cellEntriesBuffer;
+    private cl_mem cellStartBuffer;
+    private cl_mem cellEndBuffer;
+    private int cellEntriesCapacity;
+    private int cellCapacity;
+    private int particleCapacity;
+    private int uploadedCount;
+    private boolean temperaturesDirty = true;
+    private FloatBuffer particleStaging;
+    private FloatBuffer temperatureStaging;
+    private cl_event particlesRead;
+    private cl_event temperaturesRead;
+    private cl_event speedRead;
+    private FloatBuffer groupMaxStaging;
+    private int pendingCount;
+    private int pendingGroups;
+    private float maxSpeed;
+    private boolean discardPending;
+    private float[] lastParticles;
+    private float[] lastTemperatures;
+    private int lastCount;
+    private final long deviceType;
+    // Встроенная видеокарта или CPU-устройство работают прямо в памяти хоста. Копий между
+    // хостом и устройством от этого не становится ноль: частицы живут в массивах ParticleStore,
+    // новый хвост и правки грузятся из них, а результат шага переносится обратно в них.
+    // Уходит только копия результата устройства в staging
+    private boolean hostUnifiedMemory;
+    // Вся хостовая память буферов вне кучи; пересоздаётся вместе с буферами
+    private Arena hostArena;
+    private ByteBuffer mappedParticles;
+    private ByteBuffer mappedTemperatures;
+    private cl_mem mappedParticlesBuffer;
+    private cl_mem mappedTemperaturesBuffer;
     
     private static final int WORKGROUP_SIZE = 256; // Оптимальный размер для большинства GPU
+    private static final int MIN_CAPACITY = 1024;
+    private static final float CELL_SIZE = 30.0f; // Совпадает с CELL_SIZE в spatial_hash_kernel.cl
+    // CL_MEM_USE_HOST_PTR работает без копии только с памятью, выровненной по странице
+    private static final long PAGE_SIZE = 4096;
 
     public GPUCalculator() {
+        this(CL_DEVICE_TYPE_GPU);
+    }
+
+    public GPUCalculator(long deviceType) {
+        this.deviceType = deviceType;
         initializeCL();
-        persistentParticlesBuffer = null;
-        workDimensions = new int[1];
     }
 
     private void initializeCL() {
         final int platformIndex = 0;
-        final long deviceType = CL_DEVICE_TYPE_GPU;
         final int deviceIndex = 0;
 
         CL.setExceptionsEnabled(true);
@@ -80,23 +159,47 @@ public class GPUCalculator implements AutoCloseable {
         clGetDeviceIDs(platform, deviceType, numDevicesArray[0], devices, null);
         cl_device_id device = devices[deviceIndex];
 
+        hostUnifiedMemory = hasHostUnifiedMemory(device);
+
         context = clCreateContext(null, 1, new cl_device_id[]{device}, null, null, null);
 
         commandQueue = clCreateCommandQueue(context, device, 0, null);
 
         try {
             String programSource = loadKernelSource("fluid_kernel.cl") + 
-                                 loadKernelSource("spatial_hash_kernel.cl");
+                                 loadKernelSource("density_kernel.cl") +
+                                 loadKernelSource("forces_kernel.cl") +
+                                 loadKernelSource("integration_kernel.cl") +
+                                 loadKernelSource("spatial_hash_kernel.cl") +
+                                 loadKernelSource("compaction_kernel.cl");
             program = clCreateProgramWithSource(context, 1, 
                 new String[]{programSource}, null, null);
             clBuildProgram(program, 0, null, null, null, null);
-            updateKernel = clCreateKernel(program, "updateParticles", null);
+            densityKernel = clCreateKernel(program, "computeDensity", null);
+            forcesKernel = clCreateKernel(program, "computeForces", null);
+            integrationKernel = clCreateKernel(program, "integrate", null);
+            maxSpeedKernel = clCreateKernel(program, "reduceMaxSpeed", null);
+            scatterKernel = clCreateKernel(program, "scatterParticles", null);
+            gatherKernel = clCreateKernel(program, "gatherParticles", null);
             spatialHashKernel = clCreateKernel(program, "buildSpatialHash", null);
+            cellKeysKernel = clCreateKernel(program, "computeCellKeys", null);
+            bitonicSortKernel = clCreateKernel(program, "bitonicSortStep", null);
+            resetCellsKernel = clCreateKernel(program, "resetCellBounds", null);
+            cellBoundsKernel = clCreateKernel(program, "findCellBounds", null);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    // CL_DEVICE_HOST_UNIFIED_MEMORY устарел с OpenCL 2.0, но его отдают и драйверы 2.x/3.0,
+    // а у устройств 1.2 другого способа узнать об общей памяти нет
+    @SuppressWarnings("deprecation")
+    private static boolean hasHostUnifiedMemory(cl_device_id device) {
+        int[] unifiedMemory = new int[1];
+        clGetDeviceInfo(device, CL_DEVICE_HOST_UNIFIED_MEMORY, Sizeof.cl_int, Pointer.to(unifiedMemory), null);
+        return unifiedMemory[0] != 0;
+    }
+
     private String loadKernelSource(String filename) throws IOException {
         InputStream stream = getClass().getResourceAsStream("/kernels/" + filename);
         BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
@@ -108,132 +211,543 @@ public class GPUCalculator implements AutoCloseable {
         return source.toString();
     }
 
-    public float[] updateParticles(float[] particles, float[] temperatures,
-                                 int[] materialIndices, float[] materialProperties,
+    @Override
+    public float[] updateParticles(int count, float[] particles, float[] temperatures,
+                                 byte[] materialIndices, float[] materialProperties,
                                  int width, int height,
                                  int mouseX, int mouseY, float mouseForce,
                                  float deltaTime, float viscosity,
                                  float repulsion, float surfaceTension,
                                  float gravity, float currentMouseForce) {
-        int numParticles = particles.length / 4;
-        int numWorkGroups = (numParticles + WORKGROUP_SIZE - 1) / WORKGROUP_SIZE;
-        
-        if (neighborIndicesBuffer == null) {
-            neighborIndicesBuffer = clCreateBuffer(context,
-                CL_MEM_READ_WRITE,
-                Sizeof.cl_int * numParticles * MAX_NEIGHBORS,
-                null, null);
-            
-            neighborCountsBuffer = clCreateBuffer(context,
-                CL_MEM_READ_WRITE,
-                Sizeof.cl_int * numParticles,
-                null, null);
-        }
-
-        if (persistentParticlesBuffer == null) {
-            persistentParticlesBuffer = clCreateBuffer(context, 
-                CL_MEM_READ_WRITE | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_float * particles.length,
-                Pointer.to(particles), null);
-                
-            workDimensions[0] = particles.length / 4;
-        }
-
-        if (temperaturesBuffer == null || temperatures.length != numParticles) {
-            if (temperaturesBuffer != null) {
-                clReleaseMemObject(temperaturesBuffer);
+        int numParticles = count;
+
+        // Результат прошлого шага к этому моменту обычно уже скопирован DMA в staging
+        completePendingRead(particles, temperatures, numParticles);
+        ensureCapacity(numParticles);
+
+        cl_mem particlesIn = particleBuffers[current];
+        cl_mem temperaturesIn = temperatureBuffers[current];
+        cl_mem particlesOut = particleBuffers[1 - current];
+        cl_mem temperaturesOut = temperatureBuffers[1 - current];
+
+        // Удаления и новые частицы в освободившихся слотах - точечно, без загрузки всего буфера
+        if (editCount > 0) {
+            if (uploadedCount > 0) {
+                applyEdits(particlesIn, temperaturesIn, particles, temperatures, materialIndices);
+            }
+            editCount = 0;
+        }
+
+        // На устройстве уже лежит префикс uploadedCount; дописываем только новый хвост
+        if (uploadedCount < numParticles) {
+            int tail = numParticles - uploadedCount;
+            clEnqueueWriteBuffer(commandQueue, particlesIn, CL_TRUE,
+                (long)uploadedCount * 4 * Sizeof.cl_float, (long)tail * 4 * Sizeof.cl_float,
+                Pointer.to(particles).withByteOffset((long)uploadedCount * 4 * Sizeof.cl_float), 0, null, null);
+            clEnqueueWriteBuffer(commandQueue, materialIndicesBuffer, CL_TRUE,
+                (long)uploadedCount * Sizeof.cl_uchar, (long)tail * Sizeof.cl_uchar,
+                Pointer.to(materialIndices).withByteOffset((long)uploadedCount * Sizeof.cl_uchar), 0, null, null);
+            if (!temperaturesDirty) {
+                clEnqueueWriteBuffer(commandQueue, temperaturesIn, CL_TRUE,
+                    (long)uploadedCount * Sizeof.cl_float, (long)tail * Sizeof.cl_float,
+                    Pointer.to(temperatures).withByteOffset((long)uploadedCount * Sizeof.cl_float), 0, null, null);
             }
-            temperaturesBuffer = clCreateBuffer(context, CL_MEM_READ_WRITE | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_float * temperatures.length, Pointer.to(temperatures), null);
-        } else {
-            clEnqueueWriteBuffer(commandQueue, temperaturesBuffer, CL_TRUE, 0,
-                temperatures.length * Sizeof.cl_float, Pointer.to(temperatures), 0, null, null);
         }
+        uploadedCount = numParticles;
 
-        if (materialIndicesBuffer == null) {
-            materialIndicesBuffer = clCreateBuffer(context, CL_MEM_READ_WRITE | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_int * materialIndices.length, Pointer.to(materialIndices), null);
-            materialPropertiesBuffer = clCreateBuffer(context, CL_MEM_READ_WRITE | CL_MEM_COPY_HOST_PTR,
+        // Температуры правит кисть на хосте - грузим их целиком, только если были правки
+        if (temperaturesDirty) {
+            clEnqueueWriteBuffer(commandQueue, temperaturesIn, CL_TRUE, 0,
+                (long)numParticles * Sizeof.cl_float, Pointer.to(temperatures), 0, null, null);
+            temperaturesDirty = false;
+        }
+
+        if (materialPropertiesBuffer == null) {
+            materialPropertiesBuffer = clCreateBuffer(context, CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
                 Sizeof.cl_float * materialProperties.length, Pointer.to(materialProperties), null);
         }
 
-        clSetKernelArg(spatialHashKernel, 0, Sizeof.cl_mem, Pointer.to(persistentParticlesBuffer));
+        buildNeighborLists(particlesIn, numParticles, width, height);
+        
+        long[] globalSize = new long[]{numParticles};
+
+        // Стадия 1: плотность и теплопередача
+        clSetKernelArg(densityKernel, 0, Sizeof.cl_mem, Pointer.to(particlesIn));
+        clSetKernelArg(densityKernel, 1, Sizeof.cl_mem, Pointer.to(temperaturesIn));
+        clSetKernelArg(densityKernel, 2, Sizeof.cl_mem, Pointer.to(neighborIndicesBuffer));
+        clSetKernelArg(densityKernel, 3, Sizeof.cl_mem, Pointer.to(neighborCountsBuffer));
+        clSetKernelArg(densityKernel, 4, Sizeof.cl_mem, Pointer.to(localDensitiesBuffer));
+        clSetKernelArg(densityKernel, 5, Sizeof.cl_mem, Pointer.to(temperaturesOut));
+        clSetKernelArg(densityKernel, 6, Sizeof.cl_float, Pointer.to(new float[]{deltaTime}));
+        clEnqueueNDRangeKernel(commandQueue, densityKernel, 1, null, globalSize, null, 0, null, null);
+
+        // Стадия 2: силы по плотностям соседей
+        clSetKernelArg(forcesKernel, 0, Sizeof.cl_mem, Pointer.to(particlesIn));
+        clSetKernelArg(forcesKernel, 1, Sizeof.cl_mem, Pointer.to(temperaturesOut));
+        clSetKernelArg(forcesKernel, 2, Sizeof.cl_mem, Pointer.to(localDensitiesBuffer));
+        clSetKernelArg(forcesKernel, 3, Sizeof.cl_mem, Pointer.to(neighborIndicesBuffer));
+        clSetKernelArg(forcesKernel, 4, Sizeof.cl_mem, Pointer.to(neighborCountsBuffer));
+        clSetKernelArg(forcesKernel, 5, Sizeof.cl_mem, Pointer.to(materialIndicesBuffer));
+        clSetKernelArg(forcesKernel, 6, Sizeof.cl_mem, Pointer.to(materialPropertiesBuffer));
+        clSetKernelArg(forcesKernel, 7, Sizeof.cl_mem, Pointer.to(forcesBuffer));
+        clSetKernelArg(forcesKernel, 8, Sizeof.cl_float, Pointer.to(new float[]{viscosity}));
+        clSetKernelArg(forcesKernel, 9, Sizeof.cl_float, Pointer.to(new float[]{repulsion}));
+        clSetKernelArg(forcesKernel, 10, Sizeof.cl_float, Pointer.to(new float[]{surfaceTension}));
+        clEnqueueNDRangeKernel(commandQueue, forcesKernel, 1, null, globalSize, null, 0, null, null);
+
+        // Стадия 3: интегрирование в выходной буфер
+        clSetKernelArg(integrationKernel, 0, Sizeof.cl_mem, Pointer.to(particlesIn));
+        clSetKernelArg(integrationKernel, 1, Sizeof.cl_mem, Pointer.to(temperaturesOut));
+        clSetKernelArg(integrationKernel, 2, Sizeof.cl_mem, Pointer.to(forcesBuffer));
+        clSetKernelArg(integrationKernel, 3, Sizeof.cl_mem, Pointer.to(particlesOut));
+        clSetKernelArg(integrationKernel, 4, Sizeof.cl_int, Pointer.to(new int[]{width}));
+        clSetKernelArg(integrationKernel, 5, Sizeof.cl_int, Pointer.to(new int[]{height}));
+        clSetKernelArg(integrationKernel, 6, Sizeof.cl_int2, Pointer.to(new int[]{mouseX, mouseY}));
+        clSetKernelArg(integrationKernel, 7, Sizeof.cl_float, Pointer.to(new float[]{mouseForce}));
+        clSetKernelArg(integrationKernel, 8, Sizeof.cl_float, Pointer.to(new float[]{currentMouseForce}));
+        clSetKernelArg(integrationKernel, 9, Sizeof.cl_float, Pointer.to(new float[]{deltaTime}));
+        clSetKernelArg(integrationKernel, 10, Sizeof.cl_float, Pointer.to(new float[]{gravity}));
+        clSetKernelArg(integrationKernel, 11, Sizeof.cl_mem, Pointer.to(materialIndicesBuffer));
+        clEnqueueNDRangeKernel(commandQueue, integrationKernel, 1, null, globalSize, null, 0, null, null);
+        current = 1 - current;
+
+        // Максимум скорости для шага CFL: редукция по группам на устройстве, хосту остаётся
+        // numGroups чисел вместо всех частиц
+        int numGroups = (numParticles + WORKGROUP_SIZE - 1) / WORKGROUP_SIZE;
+        clSetKernelArg(maxSpeedKernel, 0, Sizeof.cl_mem, Pointer.to(particlesOut));
+        clSetKernelArg(maxSpeedKernel, 1, Sizeof.cl_int, Pointer.to(new int[]{numParticles}));
+        clSetKernelArg(maxSpeedKernel, 2, (long)Sizeof.cl_float * WORKGROUP_SIZE, null);
+        clSetKernelArg(maxSpeedKernel, 3, Sizeof.cl_mem, Pointer.to(groupMaxBuffer));
+        clEnqueueNDRangeKernel(commandQueue, maxSpeedKernel, 1, null,
+            new long[]{(long)numGroups * WORKGROUP_SIZE}, new long[]{WORKGROUP_SIZE}, 0, null, null);
+
+        // Неблокирующее чтение: пока GPU считает и копирует, EDT рисует предыдущий кадр
+        particlesRead = new cl_event();
+        temperaturesRead = new cl_event();
+        if (hostUnifiedMemory) {
+            // Буферы и так лежат в памяти хоста: отображение вместо копии в staging
+            mappedParticles = clEnqueueMapBuffer(commandQueue, particlesOut, CL_FALSE, CL_MAP_READ, 0,
+                (long)numParticles * 4 * Sizeof.cl_float, 0, null, particlesRead, null);
+            mappedTemperatures = clEnqueueMapBuffer(commandQueue, temperaturesOut, CL_FALSE, CL_MAP_READ, 0,
+                (long)numParticles * Sizeof.cl_float, 0, null, temperaturesRead, null);
+            mappedParticlesBuffer = particlesOut;
+            mappedTemperaturesBuffer = temperaturesOut;
+        } else {
+            clEnqueueReadBuffer(commandQueue, particlesOut, CL_FALSE, 0,
+                (long)numParticles * 4 * Sizeof.cl_float, Pointer.to(particleStaging), 0, null, particlesRead);
+            clEnqueueReadBuffer(commandQueue, temperaturesOut, CL_FALSE, 0,
+                (long)numParticles * Sizeof.cl_float, Pointer.to(temperatureStaging), 0, null, temperaturesRead);
+        }
+        speedRead = new cl_event();
+        clEnqueueReadBuffer(commandQueue, groupMaxBuffer, CL_FALSE, 0,
+            (long)numGroups * Sizeof.cl_float, Pointer.to(groupMaxStaging), 0, null, speedRead);
+        clFlush(commandQueue);
+        pendingCount = numParticles;
+        pendingGroups = numGroups;
+        lastParticles = particles;
+        lastTemperatures = temperatures;
+        lastCount = numParticles;
+
+        return particles;
+    }
+
+    // Дожидается чтения прошлого шага и переносит его в массивы вызывающего.
+    // Отстаём от устройства на один шаг, зато не ждём GPU на каждом кадре
+    private void completePendingRead(float[] particles, float[] temperatures, int numParticles) {
+        if (particlesRead == null) {
+            return;
+        }
+        clWaitForEvents(3, new cl_event[]{particlesRead, temperaturesRead, speedRead});
+        clReleaseEvent(particlesRead);
+        clReleaseEvent(temperaturesRead);
+        clReleaseEvent(speedRead);
+        particlesRead = null;
+        temperaturesRead = null;
+        speedRead = null;
+
+        float maxSpeed2 = 0.0f;
+        for (int i = 0; i < pendingGroups; i++) {
+            maxSpeed2 = Math.max(maxSpeed2, groupMaxStaging.get(i));
+        }
+        maxSpeed = (float)Math.sqrt(maxSpeed2);
+
+        if (discardPending) {
+            discardPending = false;
+        } else {
+            FloatBuffer particleSource = particleStaging;
+            FloatBuffer temperatureSource = temperatureStaging;
+            if (mappedParticles != null) {
+                particleSource = mappedParticles.order(ByteOrder.nativeOrder()).asFloatBuffer();
+                temperatureSource = mappedTemperatures.order(ByteOrder.nativeOrder()).asFloatBuffer();
+            }
+            int count = Math.min(pendingCount, numParticles);
+            particleSource.get(0, particles, 0, count * 4);
+            if (!temperaturesDirty) {
+                temperatureSource.get(0, temperatures, 0, count);
+            }
+        }
+        unmapReadback();
+    }
+
+    // Следующий шаг пишет в эти буферы - отображение должно быть снято до него
+    private void unmapReadback() {
+        if (mappedParticles == null) {
+            return;
+        }
+        clEnqueueUnmapMemObject(commandQueue, mappedParticlesBuffer, mappedParticles, 0, null, null);
+        clEnqueueUnmapMemObject(commandQueue, mappedTemperaturesBuffer, mappedTemperatures, 0, null, null);
+        mappedParticles = null;
+        mappedTemperatures = null;
+        mappedParticlesBuffer = null;
+        mappedTemperaturesBuffer = null;
+    }
+
+    // Скорость по последнему завершённому шагу - на шаг позади устройства
+    @Override
+    public float getMaxSpeed() {
+        return maxSpeed;
+    }
+
+    @Override
+    public void finish() {
+        if (lastParticles != null) {
+            completePendingRead(lastParticles, lastTemperatures, lastCount);
+        }
+    }
+
+    // Равномерная сетка: ключи ячеек -> битонная сортировка -> границы ячеек -> обход 3x3
+    private void buildNeighborLists(cl_mem particlesIn, int numParticles, int width, int height) {
+        int gridWidth = Math.max(1, (int)Math.ceil(width / CELL_SIZE));
+        int gridHeight = Math.max(1, (int)Math.ceil(height / CELL_SIZE));
+        int numCells = gridWidth * gridHeight;
+        int paddedCount = Integer.highestOneBit(Math.max(1, numParticles - 1)) << 1;
+
+        if (cellEntriesBuffer == null || cellEntriesCapacity < paddedCount) {
+            if (cellEntriesBuffer != null) clReleaseMemObject(cellEntriesBuffer);
+            cellEntriesBuffer = clCreateBuffer(context, CL_MEM_READ_WRITE,
+                Sizeof.cl_int2 * paddedCount, null, null);
+            cellEntriesCapacity = paddedCount;
+        }
+        if (cellStartBuffer == null || cellCapacity < numCells) {
+            if (cellStartBuffer != null) {
+                clReleaseMemObject(cellStartBuffer);
+                clReleaseMemObject(cellEndBuffer);
+            }
+            cellStartBuffer = clCreateBuffer(context, CL_MEM_READ_WRITE,
+                Sizeof.cl_int * numCells, null, null);
+            cellEndBuffer = clCreateBuffer(context, CL_MEM_READ_WRITE,
+                Sizeof.cl_int * numCells, null, null);
+            cellCapacity = numCells;
+        }
+
+        clSetKernelArg(cellKeysKernel, 0, Sizeof.cl_mem, Pointer.to(particlesIn));
+        clSetKernelArg(cellKeysKernel, 1, Sizeof.cl_mem, Pointer.to(cellEntriesBuffer));
+        clSetKernelArg(cellKeysKernel, 2, Sizeof.cl_int, Pointer.to(new int[]{numParticles}));
+        clSetKernelArg(cellKeysKernel, 3, Sizeof.cl_int, Pointer.to(new int[]{gridWidth}));
+        clSetKernelArg(cellKeysKernel, 4, Sizeof.cl_int, Pointer.to(new int[]{gridHeight}));
+        clSetKernelArg(cellKeysKernel, 5, Sizeof.cl_mem, Pointer.to(materialIndicesBuffer));
+        clEnqueueNDRangeKernel(commandQueue, cellKeysKernel, 1, null,
+                new long[]{paddedCount}, null, 0, null, null);
+
+        clSetKernelArg(bitonicSortKernel, 0, Sizeof.cl_mem, Pointer.to(cellEntriesBuffer));
+        for (int k = 2; k <= paddedCount; k <<= 1) {
+            for (int j = k >> 1; j > 0; j >>= 1) {
+                clSetKernelArg(bitonicSortKernel, 1, Sizeof.cl_int, Pointer.to(new int[]{j}));
+                clSetKernelArg(bitonicSortKernel, 2, Sizeof.cl_int, Pointer.to(new int[]{k}));
+                clEnqueueNDRangeKernel(commandQueue, bitonicSortKernel, 1, null,
+                        new long[]{paddedCount}, null, 0, null, null);
+            }
+        }
+
+        clSetKernelArg(resetCellsKernel, 0, Sizeof.cl_mem, Pointer.to(cellStartBuffer));
+        clSetKernelArg(resetCellsKernel, 1, Sizeof.cl_mem, Pointer.to(cellEndBuffer));
+        clSetKernelArg(resetCellsKernel, 2, Sizeof.cl_int, Pointer.to(new int[]{numCells}));
+        clEnqueueNDRangeKernel(commandQueue, resetCellsKernel, 1, null,
+                new long[]{numCells}, null, 0, null, null);
+
+        clSetKernelArg(cellBoundsKernel, 0, Sizeof.cl_mem, Pointer.to(cellEntriesBuffer));
+        clSetKernelArg(cellBoundsKernel, 1, Sizeof.cl_mem, Pointer.to(cellStartBuffer));
+        clSetKernelArg(cellBoundsKernel, 2, Sizeof.cl_mem, Pointer.to(cellEndBuffer));
+        clSetKernelArg(cellBoundsKernel, 3, Sizeof.cl_int, Pointer.to(new int[]{numParticles}));
+        clEnqueueNDRangeKernel(commandQueue, cellBoundsKernel, 1, null,
+                new long[]{numParticles}, null, 0, null, null);
+
+        clSetKernelArg(spatialHashKernel, 0, Sizeof.cl_mem, Pointer.to(particlesIn));
         clSetKernelArg(spatialHashKernel, 1, Sizeof.cl_mem, Pointer.to(neighborIndicesBuffer));
         clSetKernelArg(spatialHashKernel, 2, Sizeof.cl_mem, Pointer.to(neighborCountsBuffer));
         clSetKernelArg(spatialHashKernel, 3, Sizeof.cl_int, Pointer.to(new int[]{numParticles}));
-        clSetKernelArg(spatialHashKernel, 4, Sizeof.cl_float, Pointer.to(new float[]{30.0f}));
-        
+        clSetKernelArg(spatialHashKernel, 4, Sizeof.cl_float, Pointer.to(new float[]{CELL_SIZE}));
+        clSetKernelArg(spatialHashKernel, 5, Sizeof.cl_mem, Pointer.to(cellEntriesBuffer));
+        clSetKernelArg(spatialHashKernel, 6, Sizeof.cl_mem, Pointer.to(cellStartBuffer));
+        clSetKernelArg(spatialHashKernel, 7, Sizeof.cl_mem, Pointer.to(cellEndBuffer));
+        clSetKernelArg(spatialHashKernel, 8, Sizeof.cl_int, Pointer.to(new int[]{gridWidth}));
+        clSetKernelArg(spatialHashKernel, 9, Sizeof.cl_int, Pointer.to(new int[]{gridHeight}));
+        clSetKernelArg(spatialHashKernel, 10, Sizeof.cl_mem, Pointer.to(materialIndicesBuffer));
         clEnqueueNDRangeKernel(commandQueue, spatialHashKernel, 1, null,
                 new long[]{numParticles}, null, 0, null, null);
-        
-        clSetKernelArg(updateKernel, 0, Sizeof.cl_mem, Pointer.to(persistentParticlesBuffer));
-        clSetKernelArg(updateKernel, 1, Sizeof.cl_mem, Pointer.to(temperaturesBuffer));
-        clSetKernelArg(updateKernel, 2, Sizeof.cl_mem, Pointer.to(neighborIndicesBuffer));
-        clSetKernelArg(updateKernel, 3, Sizeof.cl_mem, Pointer.to(neighborCountsBuffer));
-        clSetKernelArg(updateKernel, 4, Sizeof.cl_int, Pointer.to(new int[]{width}));
-        clSetKernelArg(updateKernel, 5, Sizeof.cl_int, Pointer.to(new int[]{height}));
-        clSetKernelArg(updateKernel, 6, Sizeof.cl_int2, Pointer.to(new int[]{mouseX, mouseY}));
-        clSetKernelArg(updateKernel, 7, Sizeof.cl_float, Pointer.to(new float[]{mouseForce}));
-        clSetKernelArg(updateKernel, 8, Sizeof.cl_float, Pointer.to(new float[]{deltaTime}));
-        clSetKernelArg(updateKernel, 9, Sizeof.cl_float, Pointer.to(new float[]{viscosity}));
-        clSetKernelArg(updateKernel, 10, Sizeof.cl_float, Pointer.to(new float[]{repulsion}));
-        clSetKernelArg(updateKernel, 11, Sizeof.cl_float, Pointer.to(new float[]{surfaceTension}));
-        clSetKernelArg(updateKernel, 12, Sizeof.cl_float, Pointer.to(new float[]{gravity}));
-        clSetKernelArg(updateKernel, 13, Sizeof.cl_float, Pointer.to(new float[]{currentMouseForce}));
-        clSetKernelArg(updateKernel, 14, Sizeof.cl_float, Pointer.to(new float[]{1.0f}));
-        clSetKernelArg(updateKernel, 15, Sizeof.cl_mem, Pointer.to(materialIndicesBuffer));
-        clSetKernelArg(updateKernel, 16, Sizeof.cl_mem, Pointer.to(materialPropertiesBuffer));
-        
-        clEnqueueNDRangeKernel(commandQueue, updateKernel, 1, null,
-                new long[]{workDimensions[0]}, null, 0, null, null);
+    }
 
-        clEnqueueReadBuffer(commandQueue, persistentParticlesBuffer, CL_TRUE, 0,
-                particles.length * Sizeof.cl_float, Pointer.to(particles),
-                0, null, null);
+    // Буферы растут удвоением; полная пересборка только при выходе за ёмкость
+    private void ensureCapacity(int numParticles) {
+        if (particleBuffers[0] != null && numParticles <= particleCapacity) {
+            return;
+        }
+        int capacity = Math.max(Math.max(numParticles, particleCapacity * 2), MIN_CAPACITY);
 
-        clEnqueueReadBuffer(commandQueue, temperaturesBuffer, CL_TRUE, 0,
-            temperatures.length * Sizeof.cl_float, Pointer.to(temperatures), 0, null, null);
+        releaseParticleBuffers();
+        hostArena = Arena.ofShared();
+        long particleBytes = (long)Sizeof.cl_float * 4 * capacity;
+        long temperatureBytes = (long)Sizeof.cl_float * capacity;
+        for (int i = 0; i < 2; i++) {
+            if (hostUnifiedMemory) {
+                // Устройство работает прямо в сегментах арены, без своей копии
+                particleBuffers[i] = clCreateBuffer(context, CL_MEM_READ_WRITE | CL_MEM_USE_HOST_PTR,
+                    particleBytes, Pointer.to(hostArena.allocate(particleBytes, PAGE_SIZE).asByteBuffer()), null);
+                temperatureBuffers[i] = clCreateBuffer(context, CL_MEM_READ_WRITE | CL_MEM_USE_HOST_PTR,
+                    temperatureBytes, Pointer.to(hostArena.allocate(temperatureBytes, PAGE_SIZE).asByteBuffer()), null);
+            } else {
+                particleBuffers[i] = clCreateBuffer(context, CL_MEM_READ_WRITE,
+                    particleBytes, null, null);
+                temperatureBuffers[i] = clCreateBuffer(context, CL_MEM_READ_WRITE,
+                    temperatureBytes, null, null);
+            }
+        }
+        materialIndicesBuffer = clCreateBuffer(context, CL_MEM_READ_ONLY,
+            (long)Sizeof.cl_uchar * capacity, null, null);
+        neighborIndicesBuffer = clCreateBuffer(context, CL_MEM_READ_WRITE,
+            (long)Sizeof.cl_int * capacity * MAX_NEIGHBORS, null, null);
+        neighborCountsBuffer = clCreateBuffer(context, CL_MEM_READ_WRITE,
+            (long)Sizeof.cl_int * capacity, null, null);
+        localDensitiesBuffer = clCreateBuffer(context, CL_MEM_READ_WRITE,
+            (long)Sizeof.cl_float * capacity, null, null);
+        forcesBuffer = clCreateBuffer(context, CL_MEM_READ_WRITE,
+            (long)Sizeof.cl_float * 2 * capacity, null, null);
+        int maxGroups = (capacity + WORKGROUP_SIZE - 1) / WORKGROUP_SIZE;
+        groupMaxBuffer = clCreateBuffer(context, CL_MEM_READ_WRITE,
+            (long)Sizeof.cl_float * maxGroups, null, null);
+        slotMapBuffer = clCreateBuffer(context, CL_MEM_READ_ONLY,
+            (long)Sizeof.cl_int * capacity, null, null);
+        materialScratchBuffer = clCreateBuffer(context, CL_MEM_READ_WRITE,
+            (long)Sizeof.cl_uchar * capacity, null, null);
 
-        return particles;
+        // Неблокирующее чтение возможно только во внешнюю память, Java-массив JOCL не закрепляет.
+        // Арена освобождает её сразу при пересборке, direct-буферы ждали бы сборщика
+        if (!hostUnifiedMemory) {
+            particleStaging = hostArena.allocate(particleBytes, PAGE_SIZE).asByteBuffer()
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+            temperatureStaging = hostArena.allocate(temperatureBytes, PAGE_SIZE).asByteBuffer()
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+        groupMaxStaging = hostArena.allocate((long)Sizeof.cl_float * maxGroups, PAGE_SIZE).asByteBuffer()
+            .order(ByteOrder.nativeOrder()).asFloatBuffer();
+
+        particleCapacity = capacity;
+        current = 0;
+        uploadedCount = 0;
+        temperaturesDirty = true;
     }
 
+    // Число частиц изменилось, но первые min(size, старое) остались прежними
+    @Override
     public void updateWorkSize(int size) {
-        workDimensions[0] = size;
-        if (persistentParticlesBuffer != null) {
-            clReleaseMemObject(persistentParticlesBuffer);
-            clReleaseMemObject(neighborIndicesBuffer);
-            clReleaseMemObject(neighborCountsBuffer);
-            clReleaseMemObject(temperaturesBuffer);
-            clReleaseMemObject(materialIndicesBuffer);
-            clReleaseMemObject(materialPropertiesBuffer);
-        }
-        persistentParticlesBuffer = null;
-        neighborIndicesBuffer = null;
-        neighborCountsBuffer = null;
-        temperaturesBuffer = null;
-        materialIndicesBuffer = null;
-        materialPropertiesBuffer = null;
+        uploadedCount = Math.min(uploadedCount, size);
+    }
+
+    // Массивы заменены: незавершённое чтение принесло бы устаревшие данные
+    @Override
+    public void invalidateParticles() {
+        uploadedCount = 0;
+        editCount = 0;
+        temperaturesDirty = true;
+        if (particlesRead != null) {
+            discardPending = true;
+        }
+    }
+
+    // Много правок сразу дешевле загрузить целиком, чем собирать по слотам
+    @Override
+    public void invalidateSlots(int[] slots, int count) {
+        if (editCount + count > uploadedCount / 4) {
+            invalidateParticles();
+            return;
+        }
+        if (editSlots.length < editCount + count) {
+            editSlots = Arrays.copyOf(editSlots, Math.max(editCount + count, editSlots.length * 2));
+        }
+        System.arraycopy(slots, 0, editSlots, editCount, count);
+        editCount += count;
+    }
+
+    // Хост уже уплотнил свои массивы; на устройстве то же самое делает gather по карте слотов
+    @Override
+    public void compact(int[] sourceSlots, int count) {
+        // Незавершённый шаг лёг бы в уже переложенные массивы хоста, поэтому вызывающий
+        // сначала делает finish(); иначе остаётся только полная загрузка
+        if (particlesRead != null || editCount > 0 || count == 0 || particleBuffers[0] == null) {
+            invalidateParticles();
+            return;
+        }
+
+        // На устройстве лежит только префикс uploadedCount; карта возрастает, так что
+        // загруженные частицы переезжают в префикс новой длины, остальное догрузится хвостом
+        int uploaded = 0;
+        while (uploaded < count && sourceSlots[uploaded] < uploadedCount) {
+            uploaded++;
+        }
+        if (uploaded == 0) {
+            uploadedCount = 0;
+            return;
+        }
+
+        clEnqueueWriteBuffer(commandQueue, slotMapBuffer, CL_TRUE, 0,
+            (long)uploaded * Sizeof.cl_int, Pointer.to(sourceSlots), 0, null, null);
+        clSetKernelArg(gatherKernel, 0, Sizeof.cl_mem, Pointer.to(particleBuffers[current]));
+        clSetKernelArg(gatherKernel, 1, Sizeof.cl_mem, Pointer.to(temperatureBuffers[current]));
+        clSetKernelArg(gatherKernel, 2, Sizeof.cl_mem, Pointer.to(materialIndicesBuffer));
+        clSetKernelArg(gatherKernel, 3, Sizeof.cl_mem, Pointer.to(slotMapBuffer));
+        clSetKernelArg(gatherKernel, 4, Sizeof.cl_mem, Pointer.to(particleBuffers[1 - current]));
+        clSetKernelArg(gatherKernel, 5, Sizeof.cl_mem, Pointer.to(temperatureBuffers[1 - current]));
+        clSetKernelArg(gatherKernel, 6, Sizeof.cl_mem, Pointer.to(materialScratchBuffer));
+        clSetKernelArg(gatherKernel, 7, Sizeof.cl_int, Pointer.to(new int[]{uploaded}));
+        clEnqueueNDRangeKernel(commandQueue, gatherKernel, 1, null,
+            new long[]{uploaded}, null, 0, null, null);
+        clEnqueueCopyBuffer(commandQueue, materialScratchBuffer, materialIndicesBuffer, 0, 0,
+            (long)uploaded * Sizeof.cl_uchar, 0, null, null);
+        current = 1 - current;
+        uploadedCount = uploaded;
+    }
+
+    // Данные изменённых слотов упаковываются подряд и раскладываются по местам одним ядром
+    private void applyEdits(cl_mem particlesIn, cl_mem temperaturesIn,
+                            float[] particles, float[] temperatures, byte[] materialIndices) {
+        ensureEditCapacity(editCount);
+        float[] editParticles = new float[editCount * 4];
+        float[] editTemperatures = new float[editCount];
+        byte[] editMaterials = new byte[editCount];
+        for (int i = 0; i < editCount; i++) {
+            int slot = editSlots[i];
+            System.arraycopy(particles, slot * 4, editParticles, i * 4, 4);
+            editTemperatures[i] = temperatures[slot];
+            editMaterials[i] = materialIndices[slot];
+        }
+
+        clEnqueueWriteBuffer(commandQueue, editSlotsBuffer, CL_TRUE, 0,
+            (long)editCount * Sizeof.cl_int, Pointer.to(editSlots), 0, null, null);
+        clEnqueueWriteBuffer(commandQueue, editParticlesBuffer, CL_TRUE, 0,
+            (long)editCount * 4 * Sizeof.cl_float, Pointer.to(editParticles), 0, null, null);
+        clEnqueueWriteBuffer(commandQueue, editTemperaturesBuffer, CL_TRUE, 0,
+            (long)editCount * Sizeof.cl_float, Pointer.to(editTemperatures), 0, null, null);
+        clEnqueueWriteBuffer(commandQueue, editMaterialsBuffer, CL_TRUE, 0,
+            (long)editCount * Sizeof.cl_uchar, Pointer.to(editMaterials), 0, null, null);
+
+        clSetKernelArg(scatterKernel, 0, Sizeof.cl_mem, Pointer.to(editSlotsBuffer));
+        clSetKernelArg(scatterKernel, 1, Sizeof.cl_mem, Pointer.to(editParticlesBuffer));
+        clSetKernelArg(scatterKernel, 2, Sizeof.cl_mem, Pointer.to(editTemperaturesBuffer));
+        clSetKernelArg(scatterKernel, 3, Sizeof.cl_mem, Pointer.to(editMaterialsBuffer));
+        clSetKernelArg(scatterKernel, 4, Sizeof.cl_mem, Pointer.to(particlesIn));
+        clSetKernelArg(scatterKernel, 5, Sizeof.cl_mem, Pointer.to(temperaturesIn));
+        clSetKernelArg(scatterKernel, 6, Sizeof.cl_mem, Pointer.to(materialIndicesBuffer));
+        clSetKernelArg(scatterKernel, 7, Sizeof.cl_int, Pointer.to(new int[]{editCount}));
+        clEnqueueNDRangeKernel(commandQueue, scatterKernel, 1, null,
+            new long[]{editCount}, null, 0, null, null);
+    }
+
+    private void ensureEditCapacity(int count) {
+        if (editSlotsBuffer != null && count <= editCapacity) {
+            return;
+        }
+        releaseEditBuffers();
+        editCapacity = Math.max(Math.max(count, editCapacity * 2), WORKGROUP_SIZE);
+        editSlotsBuffer = clCreateBuffer(context, CL_MEM_READ_ONLY,
+            (long)Sizeof.cl_int * editCapacity, null, null);
+        editParticlesBuffer = clCreateBuffer(context, CL_MEM_READ_ONLY,
+            (long)Sizeof.cl_float * 4 * editCapacity, null, null);
+        editTemperaturesBuffer = clCreateBuffer(context, CL_MEM_READ_ONLY,
+            (long)Sizeof.cl_float * editCapacity, null, null);
+        editMaterialsBuffer = clCreateBuffer(context, CL_MEM_READ_ONLY,
+            (long)Sizeof.cl_uchar * editCapacity, null, null);
+    }
+
+    private void releaseEditBuffers() {
+        if (editSlotsBuffer != null) clReleaseMemObject(editSlotsBuffer);
+        if (editParticlesBuffer != null) clReleaseMemObject(editParticlesBuffer);
+        if (editTemperaturesBuffer != null) clReleaseMemObject(editTemperaturesBuffer);
+        if (editMaterialsBuffer != null) clReleaseMemObject(editMaterialsBuffer);
+        editSlotsBuffer = null;
+        editParticlesBuffer = null;
+        editTemperaturesBuffer = null;
+        editMaterialsBuffer = null;
+    }
+
+    @Override
+    public void invalidateTemperatures() {
+        temperaturesDirty = true;
     }
 
+    @Override
     public void setDensity(double density) {
-        float densityValue = (float) density;
-        clSetKernelArg(updateKernel, 14, Sizeof.cl_float, Pointer.to(new float[]{densityValue}));
+        // Масса частицы фиксирована (1.0); плотность материала берётся из materialProperties
     }
 
     @Override
-    public void close() {
-        if (persistentParticlesBuffer != null) clReleaseMemObject(persistentParticlesBuffer);
+    public String getName() {
+        String name = deviceType == CL_DEVICE_TYPE_CPU ? "OpenCL CPU" : "OpenCL GPU";
+        return hostUnifiedMemory ? name + " (unified memory)" : name;
+    }
+
+    private void releaseParticleBuffers() {
+        for (int i = 0; i < 2; i++) {
+            if (particleBuffers[i] != null) clReleaseMemObject(particleBuffers[i]);
+            if (temperatureBuffers[i] != null) clReleaseMemObject(temperatureBuffers[i]);
+            particleBuffers[i] = null;
+            temperatureBuffers[i] = null;
+        }
         if (neighborIndicesBuffer != null) clReleaseMemObject(neighborIndicesBuffer);
         if (neighborCountsBuffer != null) clReleaseMemObject(neighborCountsBuffer);
-        if (temperaturesBuffer != null) clReleaseMemObject(temperaturesBuffer);
         if (materialIndicesBuffer != null) clReleaseMemObject(materialIndicesBuffer);
-        if (materialPropertiesBuffer != null) clReleaseMemObject(materialPropertiesBuffer);
+        if (localDensitiesBuffer != null) clReleaseMemObject(localDensitiesBuffer);
+        if (forcesBuffer != null) clReleaseMemObject(forcesBuffer);
+        if (groupMaxBuffer != null) clReleaseMemObject(groupMaxBuffer);
+        if (slotMapBuffer != null) clReleaseMemObject(slotMapBuffer);
+        if (materialScratchBuffer != null) clReleaseMemObject(materialScratchBuffer);
         
-        persistentParticlesBuffer = null;
+        groupMaxBuffer = null;
+        slotMapBuffer = null;
+        materialScratchBuffer = null;
+        localDensitiesBuffer = null;
+        forcesBuffer = null;
         neighborIndicesBuffer = null;
         neighborCountsBuffer = null;
-        temperaturesBuffer = null;
         materialIndicesBuffer = null;
+        particleCapacity = 0;
+        uploadedCount = 0;
+
+        // В очереди могут оставаться неблокирующие снятия отображений этих буферов, а
+        // clReleaseMemObject лишь откладывает освобождение. Память хоста отдаём только
+        // после того, как очередь отработает
+        if (hostArena != null) {
+            clFinish(commandQueue);
+            hostArena.close();
+            hostArena = null;
+        }
+        particleStaging = null;
+        temperatureStaging = null;
+        groupMaxStaging = null;
+    }
+
+    @Override
+    public void close() {
+        finish();
+        releaseParticleBuffers();
+        releaseEditBuffers();
+        if (materialPropertiesBuffer != null) clReleaseMemObject(materialPropertiesBuffer);
+        if (cellEntriesBuffer != null) clReleaseMemObject(cellEntriesBuffer);
+        if (cellStartBuffer != null) clReleaseMemObject(cellStartBuffer);
+        if (cellEndBuffer != null) clReleaseMemObject(cellEndBuffer);
+        
         materialPropertiesBuffer = null;
+        cellEntriesBuffer = null;
+        cellStartBuffer = null;
+        cellEndBuffer = null;
     }
-} 
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,315 @@
+package com.fluidsim;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+
+import com.fluidsim.materials.Gasoline;
+import com.fluidsim.materials.Glycerin;
+import com.fluidsim.materials.Mercury;
+import com.fluidsim.materials.Oil;
+import com.fluidsim.materials.Water;
+import com.fluidsim.physics.FluidSimulator;
+import com.fluidsim.physics.FrameExporter;
+import com.fluidsim.physics.PhysicsCache;
+import com.fluidsim.physics.PhysicsSolver;
+import com.fluidsim.physics.Recorder;
+import com.fluidsim.physics.Recording;
+import com.fluidsim.physics.Scene;
+import com.fluidsim.physics.SimulationState;
+
+// Прогон симуляции без окна: сцена -> N шагов с фиксированным dt -> статистика
+public class HeadlessRunner {
+    private static final int DEFAULT_WIDTH = 1920;
+    private static final int DEFAULT_HEIGHT = 1080;
+    private static final String USAGE =
+        "Usage: --headless [--scene file.properties] [--steps N] [--dt seconds]\n" +
+        "                  [--backend auto|gpu|opencl-cpu|cpu] [--out state.bin [--compress]]\n" +
+        "                  [--record run.fsrec] [--export-dir dir [--format vtk|csv|ply]]\n" +
+        "                  [--render-dir dir [--coloring material|velocity|temperature]\n" +
+        "                   [--particle-size N] [--surface] [--size WxH]]\n" +
+        "       --headless --export run.fsrec --export-dir dir [--format vtk|csv|ply]\n" +
+        "       --headless --render run.fsrec --render-dir dir [--coloring ...] [--particle-size N]\n" +
+        "                  [--surface] [--size WxH]";
+
+    public static void main(String[] args) {
+        Path scenePath = null;
+        Path outPath = null;
+        boolean compress = false;
+        Path recordPath = null;
+        Path exportPath = null;
+        Path exportDir = null;
+        FrameExporter.Format format = FrameExporter.Format.VTK;
+        Path renderPath = null;
+        Path renderDir = null;
+        FrameRenderer.Coloring coloring = FrameRenderer.Coloring.MATERIAL;
+        int particleSize = SimulationConstants.INITIAL_PARTICLE_SIZE;
+        boolean surface = false;
+        int[] size = null;
+        int steps = 1000;
+        float dt = SimulationConstants.FIXED_TIME_STEP;
+        String backend = System.getProperty(SolverFactory.BACKEND_PROPERTY, "auto");
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--scene" -> scenePath = Path.of(args[++i]);
+                    case "--steps" -> steps = Integer.parseInt(args[++i]);
+                    case "--dt" -> dt = Float.parseFloat(args[++i]);
+                    case "--backend" -> backend = args[++i];
+                    case "--out" -> outPath = Path.of(args[++i]);
+                    case "--compress" -> compress = true;
+                    case "--record" -> recordPath = Path.of(args[++i]);
+                    case "--export" -> exportPath = Path.of(args[++i]);
+                    case "--export-dir" -> exportDir = Path.of(args[++i]);
+                    case "--format" -> format = FrameExporter.Format.parse(args[++i]);
+                    case "--render" -> renderPath = Path.of(args[++i]);
+                    case "--render-dir" -> renderDir = Path.of(args[++i]);
+                    case "--coloring" -> coloring = FrameRenderer.Coloring.parse(args[++i]);
+                    case "--particle-size" -> particleSize = Integer.parseInt(args[++i]);
+                    case "--surface" -> surface = true;
+                    case "--size" -> size = parseSize(args[++i]);
+                    default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (exportPath != null && exportDir == null) {
+                throw new IllegalArgumentException("--export needs --export-dir");
+            }
+            if (renderPath != null && renderDir == null) {
+                throw new IllegalArgumentException("--render needs --render-dir");
+            }
+            if (particleSize < SimulationConstants.MIN_PARTICLE_SIZE || particleSize > SimulationConstants.MAX_PARTICLE_SIZE) {
+                throw new IllegalArgumentException("--particle-size must be between "
+                    + SimulationConstants.MIN_PARTICLE_SIZE + " and " + SimulationConstants.MAX_PARTICLE_SIZE);
+            }
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage() != null ? e.getMessage() : e.toString());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        // Выгрузка готовой записи обходится без физики
+        if (exportPath != null) {
+            System.exit(exportRecording(exportPath, exportDir, format) ? 0 : 1);
+            return;
+        }
+        if (renderPath != null) {
+            int width = size != null ? size[0] : DEFAULT_WIDTH;
+            int height = size != null ? size[1] : DEFAULT_HEIGHT;
+            System.exit(renderRecording(renderPath, renderDir, width, height, coloring, particleSize, surface) ? 0 : 1);
+            return;
+        }
+
+        Scene scene;
+        try {
+            scene = scenePath != null ? Scene.load(scenePath) : Scene.defaultScene(DEFAULT_WIDTH, DEFAULT_HEIGHT);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Failed to load scene " + scenePath + ": " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        try (PhysicsSolver solver = SolverFactory.create(backend)) {
+            // Пул кодировщиков создаётся, только когда решатель уже есть; кадры по умолчанию в размер сцены
+            FrameRenderer renderer = null;
+            if (renderDir != null) {
+                int width = size != null ? size[0] : scene.getWidth();
+                int height = size != null ? size[1] : scene.getHeight();
+                try {
+                    renderer = new FrameRenderer(renderDir, width, height, coloring, particleSize, surface);
+                } catch (IOException e) {
+                    System.err.println("Warning: cannot render to " + renderDir + " (" + e + ")");
+                }
+            }
+            run(solver, scene, steps, dt, outPath, compress, recordPath, exportDir, format, renderer);
+        }
+    }
+
+    private static int[] parseSize(String value) {
+        String[] parts = value.toLowerCase(Locale.ROOT).split("x");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("--size must look like 1920x1080");
+        }
+        int width = Integer.parseInt(parts[0]);
+        int height = Integer.parseInt(parts[1]);
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("--size must be positive");
+        }
+        return new int[] {width, height};
+    }
+
+    private static boolean exportRecording(Path recordingPath, Path exportDir, FrameExporter.Format format) {
+        long start = System.nanoTime();
+        FrameExporter exporter;
+        int frameCount;
+        // close() экспортёра дожидается всех кадров (и закрывается раньше записи), поэтому
+        // время и итоги - после блока
+        try (Recording recording = Recording.open(recordingPath);
+             FrameExporter frames = new FrameExporter(format, exportDir)) {
+            frames.submitAll(recording);
+            exporter = frames;
+            frameCount = recording.getFrameCount();
+        } catch (IOException e) {
+            System.err.println("Failed to export " + recordingPath + ": " + e.getMessage());
+            return false;
+        }
+        double elapsed = (System.nanoTime() - start) / 1_000_000_000.0;
+        System.out.printf("Exported:  %d of %d frames from %s to %s in %.3f s%n",
+            exporter.getExportedFrames(), frameCount, recordingPath, exportDir, elapsed);
+        return exporter.getFailedFrames() == 0;
+    }
+
+    private static boolean renderRecording(Path recordingPath, Path renderDir, int width, int height,
+                                           FrameRenderer.Coloring coloring, int particleSize, boolean surface) {
+        long start = System.nanoTime();
+        FrameRenderer renderer;
+        int frameCount;
+        // Как и при выгрузке: close() дожидается всех PNG, итоги - после блока
+        try (Recording recording = Recording.open(recordingPath);
+             FrameRenderer frames = new FrameRenderer(renderDir, width, height, coloring, particleSize, surface)) {
+            frames.submitAll(recording);
+            renderer = frames;
+            frameCount = recording.getFrameCount();
+        } catch (IOException e) {
+            System.err.println("Failed to render " + recordingPath + ": " + e.getMessage());
+            return false;
+        }
+        double elapsed = (System.nanoTime() - start) / 1_000_000_000.0;
+        System.out.printf("Rendered:  %d of %d frames from %s to %s in %.3f s%n",
+            renderer.getRenderedFrames(), frameCount, recordingPath, renderDir, elapsed);
+        return renderer.getFailedFrames() == 0;
+    }
+
+    // renderer (может быть null) закрывается по окончании прогона
+    public static SimulationState run(PhysicsSolver solver, Scene scene, int steps, float dt,
+                                      Path outPath, boolean compress, Path recordPath,
+                                      Path exportDir, FrameExporter.Format format, FrameRenderer renderer) {
+        PhysicsCache physicsCache = new PhysicsCache();
+        physicsCache.updateMaterialProperties(List.of(
+            new Water(), new Oil(), new Mercury(), new Gasoline(), new Glycerin()));
+
+        FluidSimulator simulator = new FluidSimulator(solver);
+        simulator.setState(scene.createState(physicsCache.getMaterialProperties()));
+        int particleCount = scene.getParticleCount();
+
+        System.out.printf("Backend:   %s%n", solver.getName());
+        System.out.printf("Scene:     %dx%d, %d particles%n", scene.getWidth(), scene.getHeight(), particleCount);
+        System.out.printf("Steps:     %d at dt=%.5f s%n", steps, dt);
+
+        Recorder recorder = null;
+        if (recordPath != null) {
+            try {
+                recorder = new Recorder(recordPath, true);
+            } catch (IOException e) {
+                System.err.println("Warning: cannot record to " + recordPath + " (" + e + ")");
+            }
+        }
+
+        FrameExporter exporter = null;
+        if (exportDir != null) {
+            try {
+                exporter = new FrameExporter(format, exportDir);
+            } catch (IOException e) {
+                System.err.println("Warning: cannot export to " + exportDir + " (" + e + ")");
+            }
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < steps; i++) {
+            simulator.step(dt);
+            if (recorder != null || exporter != null || renderer != null) {
+                // GPU-решатель отстаёт на подшаг: без finish() в массивах было бы состояние до
+                // последнего подшага, а результат последнего шага не попал бы в запись вовсе.
+                // Кадр i - ровно результат шага i, время (i + 1) * dt на любом бэкенде
+                solver.finish();
+                SimulationState current = simulator.getCurrentState();
+                if (recorder != null) {
+                    recorder.record((i + 1) * dt, current.getParticleCount(), current.getParticles(),
+                        current.getTemperatures(), current.getMaterialIndices());
+                }
+                if (exporter != null) {
+                    exporter.submit(i, (i + 1) * dt, current.getParticleCount(), current.getParticles(),
+                        current.getTemperatures(), current.getMaterialIndices());
+                }
+                if (renderer != null) {
+                    renderer.submit(i, current.getParticleCount(), current.getParticles(),
+                        current.getTemperatures(), current.getMaterialIndices());
+                }
+            }
+        }
+        solver.finish();
+        if (recorder != null) {
+            recorder.close();
+        }
+        if (exporter != null) {
+            exporter.close();
+        }
+        if (renderer != null) {
+            renderer.close();
+        }
+        double elapsed = (System.nanoTime() - start) / 1_000_000_000.0;
+
+        System.out.printf("Elapsed:   %.3f s%n", elapsed);
+        System.out.printf("Steps/sec: %.1f%n", steps / elapsed);
+        System.out.printf("Particle-updates/sec: %.3e%n", (double)steps * particleCount / elapsed);
+
+        SimulationState state = simulator.getCurrentState();
+        printSummary(state);
+
+        if (outPath != null) {
+            simulator.saveState(outPath.toString(), compress);
+            System.out.printf("Saved:     %s%n", outPath);
+        }
+        if (recorder != null) {
+            System.out.printf("Recorded:  %s, %d frames%n", recordPath, recorder.getWrittenFrames());
+        }
+        if (exporter != null) {
+            System.out.printf("Exported:  %d frames to %s%n", exporter.getExportedFrames(), exportDir);
+        }
+        if (renderer != null) {
+            System.out.printf("Rendered:  %d frames, %d skipped while the encoders were busy%n",
+                renderer.getRenderedFrames(), renderer.getDroppedFrames());
+        }
+        return state;
+    }
+
+    private static void printSummary(SimulationState state) {
+        float[] particles = state.getParticles();
+        float[] temperatures = state.getTemperatures();
+        int count = state.getParticleCount();
+        if (count == 0) {
+            System.out.println("Final:     no particles");
+            return;
+        }
+
+        double sumX = 0, sumY = 0, sumSpeed = 0, sumTemp = 0, kinetic = 0;
+        float maxSpeed = 0;
+        int invalid = 0;
+        for (int i = 0; i < count; i++) {
+            float x = particles[i * 4];
+            float y = particles[i * 4 + 1];
+            float vx = particles[i * 4 + 2];
+            float vy = particles[i * 4 + 3];
+            if (!Float.isFinite(x) || !Float.isFinite(y) || !Float.isFinite(vx) || !Float.isFinite(vy)) {
+                invalid++;
+                continue;
+            }
+            float speed2 = vx * vx + vy * vy;
+            float speed = (float)Math.sqrt(speed2);
+            sumX += x;
+            sumY += y;
+            sumSpeed += speed;
+            sumTemp += temperatures[i];
+            kinetic += 0.5 * speed2;
+            maxSpeed = Math.max(maxSpeed, speed);
+        }
+
+        int valid = Math.max(1, count - invalid);
+        System.out.printf("Final:     centroid=(%.1f, %.1f) meanSpeed=%.2f maxSpeed=%.2f%n",
+            sumX / valid, sumY / valid, sumSpeed / valid, maxSpeed);
+        System.out.printf("           meanTemperature=%.2f kineticEnergy=%.4e nonFinite=%d%n",
+            sumTemp / valid, kinetic, invalid);
+    }
+}
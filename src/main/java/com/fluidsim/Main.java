@@ -1,10 +1,17 @@
 package com.fluidsim;
 
+import java.util.Arrays;
+
 import javax.swing.JFrame;
 import javax.swing.SwingUtilities;
 
 public class Main {
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--headless")) {
+            HeadlessRunner.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         SwingUtilities.invokeLater(() -> {
             JFrame frame = new JFrame(ProjectProperties.getFullName());
             frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
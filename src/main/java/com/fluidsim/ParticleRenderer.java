@@ -0,0 +1,256 @@
+package com.fluidsim;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import com.fluidsim.materials.Gasoline;
+import com.fluidsim.materials.Glycerin;
+import com.fluidsim.materials.Material;
+import com.fluidsim.materials.Mercury;
+import com.fluidsim.materials.Oil;
+import com.fluidsim.materials.Water;
+import com.fluidsim.physics.ParticleStore;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// Отрисовка частиц; не зависит от JPanel, поэтому рисует и в BufferedImage.
+// Цвета берутся из заранее посчитанных палитр ARGB: скорость и температура квантуются
+// в индекс 0..255 векторно, дальше - просто выборка из таблицы, без объектов Color
+public class ParticleRenderer {
+    private static final int CHROMATIC_OFFSET = 3;
+    private static final int GHOST_ALPHA = 80 << 24;
+    private static final int PALETTE_SIZE = 256;
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+    // Смещения полей соседних частиц в массиве x, y, vx, vy
+    private static final int[] STRIDE_MAP = strideMap(SPECIES.length());
+
+    private static final float VELOCITY_SCALE = (PALETTE_SIZE - 1) / SimulationConstants.VELOCITY_COLOR_THRESHOLD;
+    private static final float TEMPERATURE_SCALE = (PALETTE_SIZE - 1) /
+        (SimulationConstants.MAX_TEMPERATURE - SimulationConstants.MIN_TEMPERATURE);
+    private static final int[] VELOCITY_PALETTE = gradient(
+        SimulationConstants.PARTICLE_COLOR_SLOW, SimulationConstants.PARTICLE_COLOR_FAST);
+    private static final int[] TEMPERATURE_PALETTE = gradient(
+        SimulationConstants.COLD_COLOR, SimulationConstants.NORMAL_COLOR, SimulationConstants.HOT_COLOR);
+    // Цвет по индексу материала (те же индексы, что в materialProperties); у DEAD - прозрачный
+    private static final int[] MATERIAL_PALETTE = materialPalette(
+        new Water(), new Oil(), new Mercury(), new Gasoline(), new Glycerin());
+    // Маска живых: -1, у DEAD - 0, гасит цвет удалённой частицы без ветвления
+    private static final int[] ALIVE_MASK = aliveMask();
+
+    private int particleSize = SimulationConstants.INITIAL_PARTICLE_SIZE;
+    private boolean velocityColoring = false;
+    private boolean temperatureColoring = false;
+    private boolean surfaceRendering = false;
+
+    private final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private final RasterRenderer raster = new RasterRenderer(pool);
+    private final SurfaceRenderer surface = new SurfaceRenderer(pool);
+    private final PostProcessor post = new PostProcessor(pool);
+    // Кружки кадра: левый верхний угол и цвет; сначала частицы, потом по три на призрака
+    private int[] splatX = new int[0];
+    private int[] splatY = new int[0];
+    private int[] splatColor = new int[0];
+    private int[] paletteIndex = new int[0];
+
+    // Частицы и призраки (если есть) в один растровый кадр, на экран - одним drawImage.
+    // В режиме поверхности частицы идут отдельным слоем поверхности, призраки - кружками поверх.
+    // При включённых шлейфе или свечении слои сначала проходят постобработку
+    public void draw(Graphics2D g2d, int width, int height, float[] particles, float[] temperatures,
+                     byte[] materials, float[] ghostParticles, float[] ghostTemperatures) {
+        int count = particles.length / 4;
+        int ghosts = ghostParticles != null ? ghostParticles.length / 4 : 0;
+        ensureSplats(count + ghosts * 3);
+        int half = particleSize / 2;
+
+        for (int i = 0; i < count; i++) {
+            splatX[i] = (int)(particles[i * 4] - half);
+            splatY[i] = (int)(particles[i * 4 + 1] - half);
+        }
+        if (velocityColoring) {
+            velocityIndices(particles, count);
+            lookup(VELOCITY_PALETTE, materials, count);
+        } else if (temperatureColoring) {
+            temperatureIndices(temperatures, count);
+            lookup(TEMPERATURE_PALETTE, materials, count);
+        } else {
+            for (int i = 0; i < count; i++) {
+                splatColor[i] = MATERIAL_PALETTE[materials[i] & 0xFF];
+            }
+        }
+
+        // Призраки стирания времени: три смещённых канала (хроматическая аберрация)
+        if (ghosts > 0) {
+            if (temperatureColoring) {
+                temperatureIndices(ghostTemperatures, ghosts);
+            }
+            for (int i = 0; i < ghosts; i++) {
+                int x = (int)(ghostParticles[i * 4] - half);
+                int y = (int)(ghostParticles[i * 4 + 1] - half);
+                int material = materials[i] & 0xFF;
+                int rgb = (temperatureColoring ? TEMPERATURE_PALETTE[paletteIndex[i]] : MATERIAL_PALETTE[material])
+                    & ALIVE_MASK[material];
+                int alpha = GHOST_ALPHA & ALIVE_MASK[material];
+                int splat = count + i * 3;
+
+                splatX[splat] = x - CHROMATIC_OFFSET;
+                splatY[splat] = y - CHROMATIC_OFFSET;
+                splatColor[splat] = alpha | (rgb & 0xFF0000);
+                splatX[splat + 1] = x;
+                splatY[splat + 1] = y;
+                splatColor[splat + 1] = alpha | (rgb & 0x00FF00);
+                splatX[splat + 2] = x + CHROMATIC_OFFSET;
+                splatY[splat + 2] = y + CHROMATIC_OFFSET;
+                splatColor[splat + 2] = alpha | (rgb & 0x0000FF);
+            }
+        }
+
+        int splats = count + ghosts * 3;
+        int from = 0;
+        BufferedImage surfaceLayer = null;
+        BufferedImage discLayer = null;
+        if (surfaceRendering && count > 0) {
+            surfaceLayer = surface.render(width, height, particleSize, 0, count, particles, splatColor);
+            from = count;
+        }
+        if (splats > from) {
+            discLayer = raster.render(width, height, particleSize, from, splats, splatX, splatY, splatColor);
+        }
+
+        if (post.isActive()) {
+            // Шлейф гаснет и без частиц, поэтому обработка идёт и на пустом кадре
+            g2d.drawImage(post.process(width, height, surfaceLayer, discLayer), 0, 0, null);
+            return;
+        }
+        if (surfaceLayer != null) {
+            g2d.drawImage(surfaceLayer, 0, 0, null);
+        }
+        if (discLayer != null) {
+            g2d.drawImage(discLayer, 0, 0, null);
+        }
+    }
+
+    // |v| / VELOCITY_COLOR_THRESHOLD -> индекс палитры; vx, vy собираются из массива с шагом 4
+    private void velocityIndices(float[] particles, int count) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(count); i < bound; i += SPECIES.length()) {
+            FloatVector vx = FloatVector.fromArray(SPECIES, particles, i * 4 + 2, STRIDE_MAP, 0);
+            FloatVector vy = FloatVector.fromArray(SPECIES, particles, i * 4 + 3, STRIDE_MAP, 0);
+            vx.fma(vx, vy.mul(vy)).sqrt().mul(VELOCITY_SCALE).min(PALETTE_SIZE - 1).max(0.0f)
+                .convert(VectorOperators.F2I, 0).reinterpretAsInts().intoArray(paletteIndex, i);
+        }
+        for (; i < count; i++) {
+            float vx = particles[i * 4 + 2];
+            float vy = particles[i * 4 + 3];
+            paletteIndex[i] = (int)Math.max(0.0f, Math.min((float)Math.sqrt(vx * vx + vy * vy) * VELOCITY_SCALE,
+                PALETTE_SIZE - 1));
+        }
+    }
+
+    private void temperatureIndices(float[] temperatures, int count) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(count); i < bound; i += SPECIES.length()) {
+            FloatVector.fromArray(SPECIES, temperatures, i)
+                .sub(SimulationConstants.MIN_TEMPERATURE).mul(TEMPERATURE_SCALE)
+                .min(PALETTE_SIZE - 1).max(0.0f)
+                .convert(VectorOperators.F2I, 0).reinterpretAsInts().intoArray(paletteIndex, i);
+        }
+        for (; i < count; i++) {
+            paletteIndex[i] = (int)Math.max(0.0f, Math.min(
+                (temperatures[i] - SimulationConstants.MIN_TEMPERATURE) * TEMPERATURE_SCALE, PALETTE_SIZE - 1));
+        }
+    }
+
+    private void lookup(int[] palette, byte[] materials, int count) {
+        for (int i = 0; i < count; i++) {
+            splatColor[i] = palette[paletteIndex[i]] & ALIVE_MASK[materials[i] & 0xFF];
+        }
+    }
+
+    private void ensureSplats(int capacity) {
+        if (splatColor.length < capacity) {
+            int grown = Math.max(capacity, splatColor.length * 2);
+            splatX = new int[grown];
+            splatY = new int[grown];
+            splatColor = new int[grown];
+            paletteIndex = new int[grown];
+        }
+    }
+
+    // Ломаная через равноотстоящие опорные цвета
+    private static int[] gradient(Color... stops) {
+        int[] palette = new int[PALETTE_SIZE];
+        int segments = stops.length - 1;
+        for (int i = 0; i < PALETTE_SIZE; i++) {
+            float position = i / (float)(PALETTE_SIZE - 1) * segments;
+            int segment = Math.min((int)position, segments - 1);
+            palette[i] = interpolateColor(stops[segment], stops[segment + 1], position - segment);
+        }
+        return palette;
+    }
+
+    private static int interpolateColor(Color c1, Color c2, float ratio) {
+        int r = (int)(c1.getRed() + (c2.getRed() - c1.getRed()) * ratio);
+        int g = (int)(c1.getGreen() + (c2.getGreen() - c1.getGreen()) * ratio);
+        int b = (int)(c1.getBlue() + (c2.getBlue() - c1.getBlue()) * ratio);
+        return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+
+    private static int[] materialPalette(Material... materials) {
+        int[] palette = new int[PALETTE_SIZE];
+        Arrays.fill(palette, SimulationConstants.PARTICLE_COLOR.getRGB());
+        for (int i = 0; i < materials.length; i++) {
+            palette[i] = 0xFF000000 | (materials[i].getColor() & 0xFFFFFF);
+        }
+        palette[ParticleStore.DEAD & 0xFF] = 0;
+        return palette;
+    }
+
+    private static int[] aliveMask() {
+        int[] mask = new int[PALETTE_SIZE];
+        Arrays.fill(mask, -1);
+        mask[ParticleStore.DEAD & 0xFF] = 0;
+        return mask;
+    }
+
+    private static int[] strideMap(int lanes) {
+        int[] map = new int[lanes];
+        for (int i = 0; i < lanes; i++) {
+            map[i] = i * ParticleStore.STRIDE;
+        }
+        return map;
+    }
+
+    public void setParticleSize(int size) {
+        this.particleSize = size;
+    }
+
+    public int getParticleSize() {
+        return particleSize;
+    }
+
+    public void setVelocityColoring(boolean enabled) {
+        this.velocityColoring = enabled;
+    }
+
+    public void setTemperatureColoring(boolean enabled) {
+        this.temperatureColoring = enabled;
+    }
+
+    public void setSurfaceRendering(boolean enabled) {
+        this.surfaceRendering = enabled;
+    }
+
+    public void setMotionBlur(boolean enabled) {
+        post.setMotionBlur(enabled);
+    }
+
+    public void setGlow(boolean enabled) {
+        post.setGlow(enabled);
+    }
+}
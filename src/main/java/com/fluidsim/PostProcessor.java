@@ -0,0 +1,215 @@
+package com.fluidsim;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+// Постобработка слоя частиц для эффектов времени. Буферы живут между кадрами и
+// пересоздаются только при смене размера. Проходы идут полосами строк в пуле:
+// - сведение слоёв (поверхность и кружки) в один кадр;
+// - шлейф (ускорение времени): накопление кадров с затуханием;
+// - свечение (стирание времени): раздельное размытие box-фильтром по строкам и по столбцам,
+//   результат добавляется к кадру.
+// Все пиксели ARGB с умноженной альфой
+public class PostProcessor {
+    private static final int BAND_ROWS = 32;
+
+    private final ForkJoinPool pool;
+    private BufferedImage output;
+    private int[] pixels;
+    private int[] history;
+    private int[] scratch;
+    // Суммы окна по столбцам, своё на каждую полосу вертикального прохода
+    private int[][] columnSums = new int[0][];
+    private int width;
+    private int height;
+    private boolean historyValid;
+
+    private boolean motionBlur;
+    private boolean glow;
+
+    // Текущий кадр, на время process
+    private int[] base;
+    private int[] overlay;
+
+    public PostProcessor(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public boolean isActive() {
+        return motionBlur || glow;
+    }
+
+    public void setMotionBlur(boolean enabled) {
+        if (!enabled) {
+            // Следующий шлейф начнётся с чистого кадра, а не со старого следа
+            historyValid = false;
+        }
+        this.motionBlur = enabled;
+    }
+
+    public void setGlow(boolean enabled) {
+        this.glow = enabled;
+    }
+
+    // Слои (любой может быть null) размера width x height; возвращает обработанный кадр
+    public BufferedImage process(int width, int height, BufferedImage base, BufferedImage overlay) {
+        ensureBuffers(Math.max(1, width), Math.max(1, height));
+        this.base = base != null ? data(base) : null;
+        this.overlay = overlay != null ? data(overlay) : null;
+        int bands = bands();
+        pool.invoke(new BandTask(this::composeBand, 0, bands));
+        if (motionBlur) {
+            pool.invoke(new BandTask(this::accumulateBand, 0, bands));
+            historyValid = true;
+        }
+        if (glow) {
+            pool.invoke(new BandTask(this::blurRowsBand, 0, bands));
+            pool.invoke(new BandTask(this::blurColumnsBand, 0, bands));
+        }
+        this.base = null;
+        this.overlay = null;
+        return output;
+    }
+
+    private void ensureBuffers(int width, int height) {
+        if (output != null && this.width == width && this.height == height) {
+            return;
+        }
+        this.width = width;
+        this.height = height;
+        output = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+        pixels = data(output);
+        history = new int[width * height];
+        scratch = new int[width * height];
+        columnSums = new int[bands()][width * 4];
+        historyValid = false;
+    }
+
+    private int bands() {
+        return (height + BAND_ROWS - 1) / BAND_ROWS;
+    }
+
+    private static int[] data(BufferedImage image) {
+        return ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+    }
+
+    // Слои должны быть того же размера, что и кадр
+    private void composeBand(int band) {
+        int start = band * BAND_ROWS * width;
+        int end = Math.min(height, (band + 1) * BAND_ROWS) * width;
+        if (base == null) {
+            Arrays.fill(pixels, start, end, 0);
+        } else {
+            System.arraycopy(base, start, pixels, start, end - start);
+        }
+        if (overlay != null) {
+            for (int i = start; i < end; i++) {
+                pixels[i] = over(overlay[i], pixels[i], 256);
+            }
+        }
+    }
+
+    // history = кадр поверх затухшего history; на экран идёт history
+    private void accumulateBand(int band) {
+        int start = band * BAND_ROWS * width;
+        int end = Math.min(height, (band + 1) * BAND_ROWS) * width;
+        if (!historyValid) {
+            System.arraycopy(pixels, start, history, start, end - start);
+            return;
+        }
+        int decay = (int)(SimulationConstants.MOTION_BLUR_DECAY * 256);
+        for (int i = start; i < end; i++) {
+            int trail = over(pixels[i], history[i], decay);
+            history[i] = trail;
+            pixels[i] = trail;
+        }
+    }
+
+    // src поверх dst, у которого каналы предварительно умножены на dstScale / 256
+    private static int over(int src, int dst, int dstScale) {
+        int inverse = ((255 - (src >>> 24)) * dstScale) >> 8;
+        int a = (src >>> 24) + (((dst >>> 24) * inverse + 127) / 255);
+        int r = ((src >> 16) & 0xFF) + ((((dst >> 16) & 0xFF) * inverse + 127) / 255);
+        int g = ((src >> 8) & 0xFF) + ((((dst >> 8) & 0xFF) * inverse + 127) / 255);
+        int b = (src & 0xFF) + (((dst & 0xFF) * inverse + 127) / 255);
+        // Округление не должно поднять канал выше альфы
+        a = Math.min(255, a);
+        return (a << 24) | (Math.min(a, r) << 16) | (Math.min(a, g) << 8) | Math.min(a, b);
+    }
+
+    // Горизонтальный проход: скользящее окно по строке, кадр -> scratch (суммы / ширина окна)
+    private void blurRowsBand(int band) {
+        int radius = SimulationConstants.GLOW_RADIUS;
+        int window = radius * 2 + 1;
+        int top = band * BAND_ROWS;
+        int bottom = Math.min(height, top + BAND_ROWS);
+        for (int y = top; y < bottom; y++) {
+            int row = y * width;
+            int a = 0, r = 0, g = 0, b = 0;
+            for (int x = 0; x < Math.min(radius, width); x++) {
+                int p = pixels[row + x];
+                a += p >>> 24; r += (p >> 16) & 0xFF; g += (p >> 8) & 0xFF; b += p & 0xFF;
+            }
+            for (int x = 0; x < width; x++) {
+                if (x + radius < width) {
+                    int p = pixels[row + x + radius];
+                    a += p >>> 24; r += (p >> 16) & 0xFF; g += (p >> 8) & 0xFF; b += p & 0xFF;
+                }
+                if (x - radius - 1 >= 0) {
+                    int p = pixels[row + x - radius - 1];
+                    a -= p >>> 24; r -= (p >> 16) & 0xFF; g -= (p >> 8) & 0xFF; b -= p & 0xFF;
+                }
+                scratch[row + x] = (a / window << 24) | (r / window << 16) | (g / window << 8) | b / window;
+            }
+        }
+    }
+
+    // Вертикальный проход по scratch теми же окнами, но строка за строкой: суммы по каждому
+    // столбцу держатся в массиве полосы. Размытое добавляется к кадру с силой GLOW_INTENSITY
+    private void blurColumnsBand(int band) {
+        int radius = SimulationConstants.GLOW_RADIUS;
+        int window = radius * 2 + 1;
+        int intensity = (int)(SimulationConstants.GLOW_INTENSITY * 256);
+        int top = band * BAND_ROWS;
+        int bottom = Math.min(height, top + BAND_ROWS);
+        int[] sums = columnSums[band];
+        // Окно строки top - 1: от top - radius - 1 до top + radius - 1
+        Arrays.fill(sums, 0);
+        for (int y = Math.max(0, top - radius - 1); y < Math.min(height, top + radius); y++) {
+            addRow(sums, y, 1);
+        }
+        for (int y = top; y < bottom; y++) {
+            if (y + radius < height) {
+                addRow(sums, y + radius, 1);
+            }
+            if (y - radius - 1 >= 0) {
+                addRow(sums, y - radius - 1, -1);
+            }
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                int s = x * 4;
+                int p = pixels[row + x];
+                int a = (p >>> 24) + (sums[s] / window * intensity >> 8);
+                int r = ((p >> 16) & 0xFF) + (sums[s + 1] / window * intensity >> 8);
+                int g = ((p >> 8) & 0xFF) + (sums[s + 2] / window * intensity >> 8);
+                int b = (p & 0xFF) + (sums[s + 3] / window * intensity >> 8);
+                pixels[row + x] = (Math.min(255, a) << 24) | (Math.min(255, r) << 16)
+                    | (Math.min(255, g) << 8) | Math.min(255, b);
+            }
+        }
+    }
+
+    private void addRow(int[] sums, int y, int sign) {
+        int row = y * width;
+        for (int x = 0; x < width; x++) {
+            int p = scratch[row + x];
+            int s = x * 4;
+            sums[s] += sign * (p >>> 24);
+            sums[s + 1] += sign * ((p >> 16) & 0xFF);
+            sums[s + 2] += sign * ((p >> 8) & 0xFF);
+            sums[s + 3] += sign * (p & 0xFF);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.fluidsim;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+// Отрисовка кружков прямо в int[] изображения вместо fillOval на каждую частицу.
+// Экран делится на полосы строк; каждую полосу рисует свой поток и пишет только в свои строки,
+// поэтому пиксели между потоками не делятся. Кружки раскладываются по полосам подсчётом,
+// кружок на границе попадает в обе. Порядок внутри полосы - исходный, как у fillOval подряд
+public class RasterRenderer {
+    private static final int BAND_ROWS = 32;
+    // Сглаживание края: подвыборка 4x4 на пиксель маски
+    private static final int SUPERSAMPLE = 4;
+
+    private final ForkJoinPool pool;
+    private BufferedImage image;
+    private int[] pixels;
+    private int width;
+    private int height;
+
+    // Покрытие кружка 0..255 для текущего размера
+    private int maskSize = -1;
+    private int[] mask;
+
+    private int[] bandStart = new int[0];
+    private int[] bandSplats = new int[0];
+
+    // Текущий кадр, на время render
+    private int size;
+    private int[] xs;
+    private int[] ys;
+    private int[] colors;
+
+    public RasterRenderer(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    // Кружки диаметром size с левыми верхними углами (xs, ys) и цветами ARGB (альфа не
+    // умножена) поверх прозрачного фона. Изображение переиспользуется, пока не сменится размер
+    // Рисуются элементы массивов с from по to (не включая)
+    public BufferedImage render(int width, int height, int size, int from, int to, int[] xs, int[] ys, int[] colors) {
+        ensureImage(Math.max(1, width), Math.max(1, height));
+        ensureMask(size);
+        this.size = size;
+        this.xs = xs;
+        this.ys = ys;
+        this.colors = colors;
+        bin(from, to);
+        pool.invoke(new BandTask(this::drawBand, 0, bandStart.length - 1));
+        this.xs = null;
+        this.ys = null;
+        this.colors = null;
+        return image;
+    }
+
+    private void ensureImage(int width, int height) {
+        if (image != null && this.width == width && this.height == height) {
+            return;
+        }
+        this.width = width;
+        this.height = height;
+        // Альфа уже умножена: смешивание в полосах и вывод на экран без пересчёта
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+        pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+        bandStart = new int[(height + BAND_ROWS - 1) / BAND_ROWS + 1];
+    }
+
+    private void ensureMask(int size) {
+        if (size == maskSize) {
+            return;
+        }
+        maskSize = size;
+        mask = new int[size * size];
+        float radius = size / 2.0f;
+        int samples = SUPERSAMPLE * SUPERSAMPLE;
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int inside = 0;
+                for (int sy = 0; sy < SUPERSAMPLE; sy++) {
+                    for (int sx = 0; sx < SUPERSAMPLE; sx++) {
+                        float dx = x + (sx + 0.5f) / SUPERSAMPLE - radius;
+                        float dy = y + (sy + 0.5f) / SUPERSAMPLE - radius;
+                        if (dx * dx + dy * dy <= radius * radius) {
+                            inside++;
+                        }
+                    }
+                }
+                mask[y * size + x] = (inside * 255 + samples / 2) / samples;
+            }
+        }
+    }
+
+    // Сортировка подсчётом по полосам; кружки за экраном отбрасываются
+    private void bin(int from, int to) {
+        int bands = bandStart.length - 1;
+        Arrays.fill(bandStart, 0);
+        for (int i = from; i < to; i++) {
+            if (visible(i)) {
+                int last = Math.min(bands - 1, (ys[i] + size - 1) / BAND_ROWS);
+                for (int band = Math.max(0, ys[i]) / BAND_ROWS; band <= last; band++) {
+                    bandStart[band + 1]++;
+                }
+            }
+        }
+        for (int band = 0; band < bands; band++) {
+            bandStart[band + 1] += bandStart[band];
+        }
+        if (bandSplats.length < bandStart[bands]) {
+            bandSplats = new int[Math.max(bandStart[bands], bandSplats.length * 2)];
+        }
+        // bandStart[band] служит курсором заполнения и после прохода сдвигается на полосу вперёд
+        for (int i = from; i < to; i++) {
+            if (visible(i)) {
+                int last = Math.min(bands - 1, (ys[i] + size - 1) / BAND_ROWS);
+                for (int band = Math.max(0, ys[i]) / BAND_ROWS; band <= last; band++) {
+                    bandSplats[bandStart[band]++] = i;
+                }
+            }
+        }
+        System.arraycopy(bandStart, 0, bandStart, 1, bands);
+        bandStart[0] = 0;
+    }
+
+    // Прозрачные (удалённые частицы) тоже не рисуются
+    private boolean visible(int i) {
+        return colors[i] >>> 24 != 0 && xs[i] + size > 0 && xs[i] < width && ys[i] + size > 0 && ys[i] < height;
+    }
+
+    private void drawBand(int band) {
+        int top = band * BAND_ROWS;
+        int bottom = Math.min(height, top + BAND_ROWS);
+        Arrays.fill(pixels, top * width, bottom * width, 0);
+        for (int k = bandStart[band]; k < bandStart[band + 1]; k++) {
+            int i = bandSplats[k];
+            int x0 = xs[i];
+            int y0 = ys[i];
+            int color = colors[i];
+            int alpha = color >>> 24;
+            int red = (color >> 16) & 0xFF;
+            int green = (color >> 8) & 0xFF;
+            int blue = color & 0xFF;
+            int rowStart = Math.max(top, y0);
+            int rowEnd = Math.min(bottom, y0 + size);
+            int colStart = Math.max(0, x0);
+            int colEnd = Math.min(width, x0 + size);
+            for (int y = rowStart; y < rowEnd; y++) {
+                int maskRow = (y - y0) * size - x0;
+                int row = y * width;
+                for (int x = colStart; x < colEnd; x++) {
+                    int a = div255(mask[maskRow + x] * alpha);
+                    if (a == 0) {
+                        continue;
+                    }
+                    if (a == 255) {
+                        pixels[row + x] = 0xFF000000 | (color & 0xFFFFFF);
+                        continue;
+                    }
+                    int dst = pixels[row + x];
+                    int inverse = 255 - a;
+                    int outA = a + div255((dst >>> 24) * inverse);
+                    int outR = div255(red * a + ((dst >> 16) & 0xFF) * inverse);
+                    int outG = div255(green * a + ((dst >> 8) & 0xFF) * inverse);
+                    int outB = div255(blue * a + (dst & 0xFF) * inverse);
+                    pixels[row + x] = (outA << 24) | (outR << 16) | (outG << 8) | outB;
+                }
+            }
+        }
+    }
+
+    // Точное деление на 255 для значений до 255 * 255
+    private static int div255(int value) {
+        return (value * 0x8081) >>> 23;
+    }
+}
@@ -0,0 +1,47 @@
+package com.fluidsim;
+
+import com.fluidsim.physics.ParticleStore;
+
+// Готовый кадр для отрисовки: копия состояния, снятая потоком симуляции после шага.
+// Массивы переиспользуются, пока число частиц не меняется
+public class RenderFrame {
+    private float[] particles = new float[0];
+    private float[] temperatures = new float[0];
+    private byte[] materials = new byte[0];
+    private float[] ghostParticles;
+    private float[] ghostTemperatures;
+
+    // Снимает первые count частиц хранилища; массивы кадра ровно по числу частиц
+    public void set(ParticleStore store) {
+        int count = store.getCount();
+        if (this.temperatures.length != count) {
+            this.particles = new float[count * ParticleStore.STRIDE];
+            this.temperatures = new float[count];
+            this.materials = new byte[count];
+        }
+        System.arraycopy(store.getParticles(), 0, this.particles, 0, count * ParticleStore.STRIDE);
+        System.arraycopy(store.getTemperatures(), 0, this.temperatures, 0, count);
+        System.arraycopy(store.getMaterials(), 0, this.materials, 0, count);
+    }
+
+    public void setGhosts(float[] ghostParticles, float[] ghostTemperatures) {
+        if (ghostParticles == null) {
+            this.ghostParticles = null;
+            this.ghostTemperatures = null;
+            return;
+        }
+        if (this.ghostParticles == null || this.ghostParticles.length != ghostParticles.length) {
+            this.ghostParticles = new float[ghostParticles.length];
+            this.ghostTemperatures = new float[ghostTemperatures.length];
+        }
+        System.arraycopy(ghostParticles, 0, this.ghostParticles, 0, ghostParticles.length);
+        System.arraycopy(ghostTemperatures, 0, this.ghostTemperatures, 0, ghostTemperatures.length);
+    }
+
+    public int getCount() { return particles.length / 4; }
+    public float[] getParticles() { return particles; }
+    public float[] getTemperatures() { return temperatures; }
+    public byte[] getMaterials() { return materials; }
+    public float[] getGhostParticles() { return ghostParticles; }
+    public float[] getGhostTemperatures() { return ghostTemperatures; }
+}
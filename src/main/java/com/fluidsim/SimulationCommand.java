@@ -0,0 +1,38 @@
+package com.fluidsim;
+
+// Правки состояния симуляции. Их создают EDT и сам поток симуляции (зажатая кнопка мыши),
+// а применяет только поток симуляции - пачкой между шагами
+public sealed interface SimulationCommand {
+    enum Parameter {
+        VISCOSITY,
+        REPULSION,
+        SURFACE_TENSION,
+        GRAVITY,
+        DENSITY
+    }
+
+    record Spawn(float x, float y, int count, float radius, int material) implements SimulationCommand {}
+
+    // amount - изменение температуры в центре кисти, к краю спадает линейно
+    record Heat(float x, float y, float radius, float amount) implements SimulationCommand {}
+
+    // Удаляет все частицы в круге
+    record Erase(float x, float y, float radius) implements SimulationCommand {}
+
+    // Ставит сток в точке или убирает существующий, если точка внутри него
+    record ToggleDrain(float x, float y, float radius) implements SimulationCommand {}
+
+    record SetTemperature(float temperature) implements SimulationCommand {}
+
+    record SetParameter(Parameter parameter, float value) implements SimulationCommand {}
+
+    record SetRewindTime(float seconds) implements SimulationCommand {}
+
+    record Clear() implements SimulationCommand {}
+
+    // Начать запись прогона в новый файл или закончить текущую
+    record ToggleRecording() implements SimulationCommand {}
+
+    // Воспроизвести последнюю запись вместо физики или остановить воспроизведение
+    record ToggleReplay() implements SimulationCommand {}
+}
@@ -49,9 +49,34 @@ public class SimulationConstants {
     public static final float MAX_SPAWN_RADIUS = 50.0f;
     public static final float INITIAL_REWIND_TIME = 5.0f;
     public static final float MIN_REWIND_TIME = 0.0f;
-    public static final float MAX_REWIND_TIME = 10.0f;
+    public static final float MAX_REWIND_TIME = 300.0f;
+    
+    // История перемотки: ключевой кадр и дельты Float16, старое - в файл на диске
+    public static final int TIMELINE_KEYFRAME_INTERVAL = 60;
+    public static final long TIMELINE_MEMORY_BYTES = 64L << 20;
+    public static final long TIMELINE_SPILL_BYTES = 4L << 30;  // файл разрежённый: занято только записанное, если ФС это умеет
+
+    // Запись прогона: буферов в очереди к потоку-писателю и каталог файлов
+    public static final int RECORDER_QUEUE_FRAMES = 16;
+    public static final String RECORDINGS_DIRECTORY = "recordings";
     public static final int TARGET_FPS = 60;
     
+    // Фиксированный шаг физики и подшаги по условию CFL
+    public static final float FIXED_TIME_STEP = 1.0f / 120.0f;
+    public static final float CFL_NUMBER = 0.4f;  // доля CFL_LENGTH, проходимая частицей за подшаг
+    public static final float CFL_LENGTH = 10.0f;  // MIN_DISTANCE из fluid_kernel.cl
+    public static final int MAX_SUBSTEPS = 8;
+    public static final int MAX_STEPS_PER_FRAME = 24;  // 10x ускорение при 60 FPS - 20 шагов
+    public static final float MAX_FRAME_TIME = 0.1f;  // длинные подвисания кадра не догоняем
+    
+    // Параметры упорядочивания частиц (Z-кривая)
+    public static final int REORDER_INTERVAL = 120;
+    public static final float REORDER_CELL_SIZE = 30.0f;
+
+    // Удаление частиц: ластик, стоки и уплотнение освободившихся слотов
+    public static final float DRAIN_RADIUS = 40.0f;
+    public static final float COMPACT_FREE_FRACTION = 0.1f;  // доля пустых слотов, после которой уплотняем
+    
     // Параметры физики
     public static final float INITIAL_GRAVITY = 500.0f;
     public static final float MIN_GRAVITY = 0.0f;
@@ -62,6 +87,18 @@ public class SimulationConstants {
     public static final Color PARTICLE_COLOR_FAST = new Color(255, 50, 50);
     public static final float VELOCITY_COLOR_THRESHOLD = 1000.0f;
 
+    // Режим поверхности: ячейка сетки плотности, радиус ядра в размерах частицы,
+    // порог плотности (у одиночной частицы в центре 1) и полуширина сглаженного края
+    public static final int SURFACE_CELL_SIZE = 4;
+    public static final float SURFACE_KERNEL_SCALE = 2.0f;
+    public static final float SURFACE_THRESHOLD = 0.5f;
+    public static final float SURFACE_EDGE = 0.15f;
+
+    // Постобработка: доля прошлого кадра в шлейфе (R), радиус и сила свечения (E)
+    public static final float MOTION_BLUR_DECAY = 0.8f;
+    public static final int GLOW_RADIUS = 6;
+    public static final float GLOW_INTENSITY = 0.9f;
+
     // Параметры температуры
     public static final float INITIAL_TEMPERATURE = 20.0f;
     public static final float MIN_TEMPERATURE = 0.0f;
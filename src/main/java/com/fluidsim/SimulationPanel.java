@@ -10,16 +10,20 @@ import java.awt.KeyboardFocusManager;
 import java.awt.Point;
 import java.awt.RenderingHints;
 import java.awt.Toolkit;
-import java.awt.Transparency;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
-import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Queue;
 import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.swing.JPanel;
 
@@ -30,57 +34,75 @@ import com.fluidsim.materials.Mercury;
 import com.fluidsim.materials.Oil;
 import com.fluidsim.materials.Water;
 import com.fluidsim.physics.FluidSimulator;
+import com.fluidsim.physics.MortonOrder;
+import com.fluidsim.physics.ParticleStore;
+import com.fluidsim.physics.PhysicsSolver;
+import com.fluidsim.physics.Recorder;
+import com.fluidsim.physics.Recording;
+import com.fluidsim.physics.Scene;
 import com.fluidsim.physics.SimulationListener;
 import com.fluidsim.physics.SimulationState;
+import com.fluidsim.physics.Timeline;
+import com.fluidsim.physics.TripleBuffer;
 
 import jdk.incubator.vector.FloatVector;
 
 public class SimulationPanel extends JPanel implements SimulationListener {
-    private final GPUCalculator gpuCalculator;
+    private final PhysicsSolver solver;
     private int particleSize = SimulationConstants.INITIAL_PARTICLE_SIZE;
-    private float[] particles;
+    private final ParticleStore store = new ParticleStore();
     private BufferedImage particleImage;
     private final int imageSize = 20;
-    private Point mousePosition = new Point(0, 0);
-    private float mouseForce = 0;
+    private volatile Point mousePosition = new Point(0, 0);
+    private volatile float mouseForce = 0;
     private long lastUpdateTime = System.nanoTime();
-    private float currentMouseForce = SimulationConstants.INITIAL_MOUSE_FORCE;
+    private volatile float currentMouseForce = SimulationConstants.INITIAL_MOUSE_FORCE;
     private float currentViscosity = SimulationConstants.INITIAL_VISCOSITY;
     private float currentRepulsion = SimulationConstants.INITIAL_REPULSION;
     private float currentSurfaceTension = SimulationConstants.INITIAL_SURFACE_TENSION;
     private float currentGravity = SimulationConstants.INITIAL_GRAVITY;
-    private List<float[]> particleHistory = new ArrayList<>();
     private float rewindTime = SimulationConstants.INITIAL_REWIND_TIME;
-    private int maxHistorySize = (int)(SimulationConstants.INITIAL_REWIND_TIME * SimulationConstants.TARGET_FPS);
-    private boolean isRewinding = false;
-    private boolean isSpawning = false;
-    private float spawnRadius = SimulationConstants.INITIAL_SPAWN_RADIUS;
-    private float spawnRate = SimulationConstants.INITIAL_SPAWN_RATE;
-    private boolean velocityColoring = false;
-    private boolean temperatureColoring = false;
+    private final Timeline history = new Timeline(
+        (int)(SimulationConstants.INITIAL_REWIND_TIME / SimulationConstants.FIXED_TIME_STEP));
+    private volatile boolean isRewinding = false;
+    private volatile boolean isSpawning = false;
+    private volatile boolean isErasing = false;
+    private volatile float spawnRadius = SimulationConstants.INITIAL_SPAWN_RADIUS;
+    private volatile float spawnRate = SimulationConstants.INITIAL_SPAWN_RATE;
     private float currentTemperature = SimulationConstants.INITIAL_TEMPERATURE;
-    private float[] particleTemperatures;
-    private Material currentMaterial;
-    private int[] particleColors;
-    private int[] particleMaterials;
-    private int currentMaterialIndex;
+    private volatile Material currentMaterial;
+    private volatile int currentMaterialIndex;
+    private final MortonOrder mortonOrder = new MortonOrder(SimulationConstants.REORDER_CELL_SIZE);
+    private volatile boolean particleReordering = true;
+    private int stepsSinceReorder = 0;
 
     public enum MouseMode {
         DRAWING,
         TEMPERATURE,
-        VORTEX
+        VORTEX,
+        ERASER
     }
     
-    private MouseMode currentMouseMode = MouseMode.DRAWING;
+    private volatile MouseMode currentMouseMode = MouseMode.DRAWING;
     private boolean fixedTemperature = false;
     private float temperatureChangeRate = 50.0f;
 
     private final FluidSimulator simulator;
-    private boolean physicsEnabled = true;
+    private volatile boolean physicsEnabled = true;
+
+    // Состояние частиц принадлежит потоку симуляции: EDT присылает правки через очередь,
+    // а рисует из кадров тройного буфера
+    private final Queue<SimulationCommand> commands = new ConcurrentLinkedQueue<>();
+    private final List<SimulationCommand.Spawn> pendingSpawns = new ArrayList<>();
+    private final TripleBuffer<RenderFrame> frames = new TripleBuffer<>(RenderFrame::new);
+    private final float[] materialProps = createMaterialProperties();
+    // Стоки меняет только поток симуляции; EDT рисует неизменяемый снимок
+    private final List<SimulationCommand.ToggleDrain> drains = new ArrayList<>();
+    private volatile List<SimulationCommand.ToggleDrain> drainsView = List.of();
 
     private float[] ghostParticles;
     private float[] ghostTemperatures;
-    private boolean ghostsActive = false;
+    private volatile boolean ghostsActive = false;
 
     private long lastBlinkTime = System.nanoTime();
     private boolean rewindBlinkState = true;
@@ -95,22 +117,45 @@ public class SimulationPanel extends JPanel implements SimulationListener {
     private long effectStartTime;
     private static final int NUM_STARS = 200;
 
-    private boolean isAccelerating = false;
-    private float timeAcceleration = 1.0f;
-    private float MAX_TIME_ACCELERATION = 10.0f;
+    private volatile boolean isAccelerating = false;
+    private volatile float timeAcceleration = 1.0f;
+    private volatile float MAX_TIME_ACCELERATION = 10.0f;
     private static final float ACCELERATION_RATE = 2.0f;
     
     private float deltaTime;
-    
-    private BufferedImage motionBlurBuffer;
 
-    private List<Float> accelerationWaves = new ArrayList<>();
     private static final float WAVE_SPEED = 500.0f;
     private static final int MAX_WAVES = 3;
+    private final float[] accelerationWaves = new float[MAX_WAVES];
+    private int waveCount;
+    private String accelerationLabel = "";
+    private int accelerationLabelTenths = -1;
+
+    // Оформление эффектов времени создаётся один раз, а не на каждый кадр
+    private static final Font OVERLAY_FONT = new Font("Arial", Font.BOLD, 20);
+    private static final BasicStroke WAVE_STROKE = new BasicStroke(2);
+    private static final Color[] WAVE_COLORS = alphaRamp(255, 215, 0);
+    private static final Color[] STAR_COLORS = alphaRamp(255, 255, 255);
+    private static final Color[] CRACK_COLORS = alphaRamp(255, 0, 0);
+    // Толщины трещин с шагом в четверть пикселя
+    private static final BasicStroke[] CRACK_STROKES = crackStrokes(8.0f);
+    private static final Color ACCELERATION_TEXT_COLOR = new Color(255, 255, 255, 200);
+    private static final Color ERASE_BACKGROUND_COLOR = new Color(0, 0, 20);
+    private static final Color ERASE_TEXT_COLOR = new Color(255, 0, 0, 200);
+    private static final Color REWIND_TINT_COLOR = new Color(0, 0, 255, 30);
+    private static final Color REWIND_DOT_COLOR = new Color(255, 255, 255, 100);
+    private static final Color REWIND_TEXT_COLOR = new Color(100, 100, 255, 200);
+    private static final Color LOOP_TINT_COLOR = new Color(147, 112, 219, 30);
+    private static final Color LOOP_GHOST_COLOR = new Color(255, 255, 255, 150);
+    // Значок перемотки: два треугольника перед подписью на базовой линии 35
+    private static final int[] REWIND_TRIANGLE_X1 = {20, 20, 32};
+    private static final int[] REWIND_TRIANGLE_X2 = {36, 36, 48};
+    private static final int[] REWIND_TRIANGLE_Y = {23, 35, 29};
+    private static final int REWIND_TEXT_X = 58;
 
     private boolean isRecordingLoop = false;
     private boolean isPlayingLoop = false;
-    private float[] loopStartPoints;
+    private volatile float[] loopStartPoints;
     private float[] loopEndPoints;
     private float[] loopParticles;
     private float loopTimer = 0;
@@ -120,21 +165,27 @@ public class SimulationPanel extends JPanel implements SimulationListener {
     private static final Color LOOP_START_COLOR = new Color(147, 112, 219, 200);
     private static final Color LOOP_END_COLOR = new Color(218, 112, 214, 200);
     private static final Color LOOP_COLOR = new Color(147, 112, 219);
+    private static final Color RECORD_COLOR = new Color(230, 60, 60);
+
+    // Запись прогона и воспроизведение; меняются только в потоке симуляции, EDT лишь читает
+    private volatile Recorder recorder;
+    private volatile boolean replaying;
+    private Recording replayRecording;
+    private Path lastRecording;
+    private float recordTime;
+    private static final Color DRAIN_COLOR = new Color(10, 10, 15, 200);
+    private static final Color DRAIN_RIM_COLOR = new Color(90, 90, 110, 200);
     private float LOOP_GHOST_SPEED = 0.75f;
 
-    private static final int CHROMATIC_OFFSET = 3;
+    private final ParticleRenderer particleRenderer = new ParticleRenderer();
 
-    public SimulationPanel(GPUCalculator gpuCalculator) {
-        this.gpuCalculator = gpuCalculator;
-        this.simulator = new FluidSimulator(gpuCalculator);
+    public SimulationPanel(PhysicsSolver solver) {
+        this.solver = solver;
+        this.simulator = new FluidSimulator(solver);
         simulator.addListener(this);
         setBackground(SimulationConstants.BACKGROUND_COLOR);
         initializeParticles();
         particleImage = createParticleImage();
-        particleTemperatures = new float[particles.length / 4];
-        for (int i = 0; i < particleTemperatures.length; i++) {
-            particleTemperatures[i] = SimulationConstants.INITIAL_TEMPERATURE;
-        }
         
         MouseAdapter mouseAdapter = new MouseAdapter() {
             @Override
@@ -167,6 +218,13 @@ public class SimulationPanel extends JPanel implements SimulationListener {
                     } else if (e.getButton() == MouseEvent.BUTTON3) {
                         mouseForce = -currentMouseForce * 4.5f;
                     }
+                } else if (currentMouseMode == MouseMode.ERASER) {
+                    if (e.getButton() == MouseEvent.BUTTON1) {
+                        isErasing = true;
+                    } else if (e.getButton() == MouseEvent.BUTTON3) {
+                        submit(new SimulationCommand.ToggleDrain(e.getX(), e.getY(),
+                            SimulationConstants.DRAIN_RADIUS));
+                    }
                 }
                 
                 if (e.getButton() == MouseEvent.BUTTON2) {
@@ -180,6 +238,7 @@ public class SimulationPanel extends JPanel implements SimulationListener {
                     isSpawning = false;
                 } else {
                     mouseForce = 0;
+                    isErasing = false;
                 }
             }
         };
@@ -199,16 +258,12 @@ public class SimulationPanel extends JPanel implements SimulationListener {
                 if (e.getKeyCode() == KeyEvent.VK_E) {
                     if (e.getID() == KeyEvent.KEY_PRESSED && !ghostsActive) {
                         physicsEnabled = false;
-                        ghostParticles = Arrays.copyOf(particles, particles.length);
-                        ghostTemperatures = Arrays.copyOf(particleTemperatures, particleTemperatures.length);
                         ghostsActive = true;
                         effectStartTime = System.nanoTime();
                         initializeCracks();
                     } else if (e.getID() == KeyEvent.KEY_RELEASED) {
                         physicsEnabled = true;
                         ghostsActive = false;
-                        ghostParticles = null;
-                        ghostTemperatures = null;
                     }
                 }
                 if (e.getKeyCode() == KeyEvent.VK_R) {
@@ -219,10 +274,16 @@ public class SimulationPanel extends JPanel implements SimulationListener {
                         timeAcceleration = 1.0f;
                     }
                 }
+                if (e.getKeyCode() == KeyEvent.VK_V && e.getID() == KeyEvent.KEY_PRESSED) {
+                    submit(new SimulationCommand.ToggleRecording());
+                }
+                if (e.getKeyCode() == KeyEvent.VK_B && e.getID() == KeyEvent.KEY_PRESSED) {
+                    submit(new SimulationCommand.ToggleReplay());
+                }
                 if (e.getKeyCode() == KeyEvent.VK_Z) {
                     if (e.getID() == KeyEvent.KEY_PRESSED && !isPlayingLoop) {
                         isRecordingLoop = true;
-                        loopStartPoints = Arrays.copyOf(particles, particles.length);
+                        loopStartPoints = latestParticles();
                         loopTimer = 0;
                         loopDisplayTimer = 0;
                         lastLoopTime = System.nanoTime();
@@ -230,7 +291,7 @@ public class SimulationPanel extends JPanel implements SimulationListener {
                 }
                 if (e.getKeyCode() == KeyEvent.VK_X) {
                     if (e.getID() == KeyEvent.KEY_PRESSED && isRecordingLoop) {
-                        loopEndPoints = Arrays.copyOf(particles, particles.length);
+                        loopEndPoints = latestParticles();
                         isRecordingLoop = false;
                     }
                 }
@@ -255,6 +316,9 @@ public class SimulationPanel extends JPanel implements SimulationListener {
 
         setFocusable(true);
         requestFocusInWindow();
+
+        publishFrame();
+        simulator.startSimulationLoop(this::simulationTick);
     }
 
     @Override
@@ -268,17 +332,20 @@ public class SimulationPanel extends JPanel implements SimulationListener {
         lastUpdateTime = currentTime;
 
         if (isAccelerating) {
-            if (accelerationWaves.isEmpty() || 
-                (accelerationWaves.get(accelerationWaves.size() - 1) > getWidth() * 0.2f)) {
-                accelerationWaves.add(0f);
+            if (waveCount == 0 || accelerationWaves[waveCount - 1] > getWidth() * 0.2f) {
+                if (waveCount == MAX_WAVES) {
+                    System.arraycopy(accelerationWaves, 1, accelerationWaves, 0, --waveCount);
+                }
+                accelerationWaves[waveCount++] = 0f;
             }
 
-            g2d.setStroke(new BasicStroke(2));
-            for (int i = accelerationWaves.size() - 1; i >= 0; i--) {
-                float radius = accelerationWaves.get(i);
+            g2d.setStroke(WAVE_STROKE);
+            int keptWaves = 0;
+            for (int i = 0; i < waveCount; i++) {
+                float radius = accelerationWaves[i];
                 float alpha = Math.max(0, 1 - radius / getWidth());
                 
-                g2d.setColor(new Color(255, 215, 0, (int)(100 * alpha)));
+                g2d.setColor(WAVE_COLORS[(int)(100 * alpha)]);
                 g2d.drawOval(
                     getWidth()/2 - (int)radius,
                     getHeight()/2 - (int)radius,
@@ -287,121 +354,36 @@ public class SimulationPanel extends JPanel implements SimulationListener {
                 );
                 
                 radius += WAVE_SPEED * deltaTime;
-                if (radius > Math.max(getWidth(), getHeight())) {
-                    accelerationWaves.remove(i);
-                } else {
-                    accelerationWaves.set(i, radius);
+                if (radius <= Math.max(getWidth(), getHeight())) {
+                    accelerationWaves[keptWaves++] = radius;
                 }
             }
+            waveCount = keptWaves;
 
-            while (accelerationWaves.size() > MAX_WAVES) {
-                accelerationWaves.remove(0);
+            // Подпись пересобирается, только когда меняется показываемое значение
+            int tenths = Math.round(timeAcceleration * 10);
+            if (tenths != accelerationLabelTenths) {
+                accelerationLabelTenths = tenths;
+                accelerationLabel = String.format("УСКОРЕНИЕ ВРЕМЕНИ (%.1fx)", tenths / 10.0f);
             }
-
-            g2d.setColor(new Color(255, 255, 255, 200));
-            g2d.setFont(new Font("Arial", Font.BOLD, 20));
-            String text = String.format("УСКОРЕНИЕ ВРЕМЕНИ (%.1fx)", timeAcceleration);
-            g2d.drawString(text, 20, 35);
-
-            Graphics2D blurG2d = getMotionBlurBuffer().createGraphics();
-            blurG2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-            blurG2d.drawImage(g2d.getDeviceConfiguration().createCompatibleImage(
-                getWidth(), getHeight(), Transparency.TRANSLUCENT), 0, 0, null);
-            blurG2d.dispose();
+            g2d.setColor(ACCELERATION_TEXT_COLOR);
+            g2d.setFont(OVERLAY_FONT);
+            g2d.drawString(accelerationLabel, 20, 35);
         } else {
-            accelerationWaves.clear();
+            waveCount = 0;
         }
 
-        if (!isRewinding) {
-            if (physicsEnabled) {
-                if (currentMouseMode == MouseMode.DRAWING && isSpawning) {
-                    addParticlesAtMouse(mousePosition);
-                } else if (currentMouseMode == MouseMode.TEMPERATURE && mouseForce != 0) {
-                    float influence = 100.0f;
-                    float influence2 = influence * influence;
-                    
-                    for (int i = 0; i < particles.length; i += 4) {
-                        float dx = particles[i] - mousePosition.x;
-                        float dy = particles[i + 1] - mousePosition.y;
-                        float dist2 = dx * dx + dy * dy;
-                        
-                        if (dist2 < influence2) {
-                            int particleIndex = i / 4;
-                            float factor = 1.0f - (float)Math.sqrt(dist2) / influence;
-                            float tempChange = mouseForce > 0 ? temperatureChangeRate : -temperatureChangeRate;
-                            float newTemp = particleTemperatures[particleIndex] + tempChange * factor * deltaTime;
-                            particleTemperatures[particleIndex] = Math.max(SimulationConstants.MIN_TEMPERATURE,
-                                Math.min(SimulationConstants.MAX_TEMPERATURE, newTemp));
-                        }
-                    }
-                }
-
-                List<Material> materials = Arrays.asList(
-                    new Water(), new Oil(), new Mercury(),
-                    new Gasoline(), new Glycerin()
-                );
-                
-                float[] materialProps = new float[materials.size() * 4];
-                for (int i = 0; i < materials.size(); i++) {
-                    Material m = materials.get(i);
-                    int offset = i * 4;
-                    materialProps[offset] = (float)m.getDensity();
-                    materialProps[offset + 1] = (float)m.getViscosity();
-                    materialProps[offset + 2] = (float)m.getSurfaceTension();
-                    materialProps[offset + 3] = (float)m.getElasticity();
-                }
-
-                float effectiveDeltaTime = deltaTime;
-                if (isAccelerating) {
-                    timeAcceleration = Math.min(timeAcceleration + ACCELERATION_RATE * deltaTime, MAX_TIME_ACCELERATION);
-                    effectiveDeltaTime *= timeAcceleration;
-                }
-
-                SimulationState state = new SimulationState(
-                    particles,
-                    particleTemperatures,
-                    particleMaterials,
-                    materialProps,
-                    getWidth(),
-                    getHeight(),
-                    mouseForce,
-                    currentViscosity,
-                    currentRepulsion,
-                    currentSurfaceTension,
-                    currentGravity,
-                    mousePosition.x,
-                    mousePosition.y,
-                    currentMouseForce
-                );
-
-                simulator.setState(state);
-                simulator.update(effectiveDeltaTime);
-                
-                float[] historyCopy = new float[particles.length];
-                System.arraycopy(particles, 0, historyCopy, 0, particles.length);
-                particleHistory.add(historyCopy);
-                while (particleHistory.size() > maxHistorySize) {
-                    particleHistory.remove(0);
-                }
-                
-                particles = simulator.getCurrentState().getParticles();
-            }
-        } else if (!particleHistory.isEmpty()) {
-            particles = particleHistory.remove(particleHistory.size() - 1);
-            if (particles.length > 0) {
-                gpuCalculator.updateWorkSize(particles.length / 4);
-            }
-        }
+        RenderFrame frame = frames.front();
 
         if (ghostsActive) {
             initializeStars();
-            g2d.setColor(new Color(0, 0, 20));
+            g2d.setColor(ERASE_BACKGROUND_COLOR);
             g2d.fillRect(0, 0, getWidth(), getHeight());
             
             for (float[] star : stars) {
                 int alpha = (int)(star[2] * 255);
                 float size = star[2] * 3;
-                g2d.setColor(new Color(255, 255, 255, alpha));
+                g2d.setColor(STAR_COLORS[alpha]);
                 g2d.fillOval((int)star[0], (int)star[1], (int)size, (int)size);
                 
                 star[2] = Math.max(0.2f, Math.min(1.0f, 
@@ -422,8 +404,8 @@ public class SimulationPanel extends JPanel implements SimulationListener {
                         
                         for (int w = 3; w >= 0; w--) {
                             float strokeWidth = p1[4] * (w + 1) * 0.5f;
-                            g2d.setStroke(new BasicStroke(strokeWidth));
-                            g2d.setColor(new Color(255, 0, 0, (int)(alpha / (w + 1))));
+                            g2d.setStroke(crackStroke(strokeWidth));
+                            g2d.setColor(CRACK_COLORS[(int)(alpha / (w + 1))]);
                             g2d.drawLine(
                                 (int)p1[0], (int)p1[1],
                                 (int)(p1[0] + (p2[0] - p1[0]) * progress),
@@ -436,8 +418,8 @@ public class SimulationPanel extends JPanel implements SimulationListener {
                             float microLength = currentLength * 0.3f;
                             int mx = (int)(p1[0] + Math.cos(microAngle) * microLength);
                             int my = (int)(p1[1] + Math.sin(microAngle) * microLength);
-                            g2d.setStroke(new BasicStroke(p1[4] * 0.5f));
-                            g2d.setColor(new Color(255, 0, 0, (int)(alpha * 0.7f)));
+                            g2d.setStroke(crackStroke(p1[4] * 0.5f));
+                            g2d.setColor(CRACK_COLORS[(int)(alpha * 0.7f)]);
                             g2d.drawLine((int)p1[0], (int)p1[1], mx, my);
                         }
                     }
@@ -450,8 +432,8 @@ public class SimulationPanel extends JPanel implements SimulationListener {
             }
 
             if (eraseBlinkState) {
-                g2d.setColor(new Color(255, 0, 0, 200));
-                g2d.setFont(new Font("Arial", Font.BOLD, 20));
+                g2d.setColor(ERASE_TEXT_COLOR);
+                g2d.setFont(OVERLAY_FONT);
                 String text = "< СТИРАНИЕ ВРЕМЕНИ >";
                 int textX = 20;
                 int textY = 35;
@@ -459,107 +441,28 @@ public class SimulationPanel extends JPanel implements SimulationListener {
             }
         }
 
-        if (particles.length > 0) {
-            double scale = particleSize / (double)imageSize;
-            AffineTransform transform = new AffineTransform();
-            
-            for (int i = 0; i < particles.length; i += 4) {
-                float x = particles[i] - particleSize/2;
-                float y = particles[i + 1] - particleSize/2;
-                float vx = particles[i + 2];
-                float vy = particles[i + 3];
-                
-                Color particleColor;
-                if (velocityColoring) {
-                    float velocity = (float)Math.sqrt(vx*vx + vy*vy);
-                    float colorRatio = Math.min(velocity / SimulationConstants.VELOCITY_COLOR_THRESHOLD, 1.0f);
-                    particleColor = interpolateColor(
-                        SimulationConstants.PARTICLE_COLOR_SLOW,
-                        SimulationConstants.PARTICLE_COLOR_FAST,
-                        colorRatio
-                    );
-                } else if (temperatureColoring) {
-                    float tempRatio = (particleTemperatures[i/4] - SimulationConstants.MIN_TEMPERATURE) / 
-                        (SimulationConstants.MAX_TEMPERATURE - SimulationConstants.MIN_TEMPERATURE);
-                    if (tempRatio <= 0.5f) {
-                        particleColor = interpolateColor(
-                            SimulationConstants.COLD_COLOR,
-                            SimulationConstants.NORMAL_COLOR,
-                            tempRatio * 2
-                        );
-                    } else {
-                        particleColor = interpolateColor(
-                            SimulationConstants.NORMAL_COLOR,
-                            SimulationConstants.HOT_COLOR,
-                            (tempRatio - 0.5f) * 2
-                        );
-                    }
-                } else {
-                    particleColor = new Color(particleColors[i/4]);
-                }
-                
-                g2d.setColor(particleColor);
-                g2d.fillOval((int)x, (int)y, particleSize, particleSize);
-            }
+        for (SimulationCommand.ToggleDrain drain : drainsView) {
+            int size = (int)(drain.radius() * 2);
+            g2d.setColor(DRAIN_COLOR);
+            g2d.fillOval((int)(drain.x() - drain.radius()), (int)(drain.y() - drain.radius()), size, size);
+            g2d.setColor(DRAIN_RIM_COLOR);
+            g2d.setStroke(WAVE_STROKE);
+            g2d.drawOval((int)(drain.x() - drain.radius()), (int)(drain.y() - drain.radius()), size, size);
         }
 
-        if (ghostsActive && ghostParticles != null && ghostParticles.length == particles.length) {
-            for (int i = 0; i < ghostParticles.length; i += 4) {
-                float x = ghostParticles[i] - particleSize/2;
-                float y = ghostParticles[i + 1] - particleSize/2;
-                
-                Color particleColor;
-                if (temperatureColoring) {
-                    float tempRatio = (ghostTemperatures[i/4] - SimulationConstants.MIN_TEMPERATURE) / 
-                        (SimulationConstants.MAX_TEMPERATURE - SimulationConstants.MIN_TEMPERATURE);
-                    particleColor = tempRatio <= 0.5f ?
-                        interpolateColor(SimulationConstants.COLD_COLOR, SimulationConstants.NORMAL_COLOR, tempRatio * 2) :
-                        interpolateColor(SimulationConstants.NORMAL_COLOR, SimulationConstants.HOT_COLOR, (tempRatio - 0.5f) * 2);
-                } else {
-                    particleColor = new Color(particleColors[i/4]);
-                }
-                
-                g2d.setColor(new Color(particleColor.getRed(), 0, 0, 80));
-                g2d.fillOval((int)(x - CHROMATIC_OFFSET), (int)(y - CHROMATIC_OFFSET), 
-                            particleSize, particleSize);
-                
-                g2d.setColor(new Color(0, particleColor.getGreen(), 0, 80));
-                g2d.fillOval((int)x, (int)y, particleSize, particleSize);
-                
-                g2d.setColor(new Color(0, 0, particleColor.getBlue(), 80));
-                g2d.fillOval((int)(x + CHROMATIC_OFFSET), (int)(y + CHROMATIC_OFFSET), 
-                            particleSize, particleSize);
-            }
-            
-            SimulationState ghostState = new SimulationState(
-                ghostParticles,
-                ghostTemperatures,
-                particleMaterials,
-                simulator.getCurrentState().getMaterialProperties(),
-                getWidth(),
-                getHeight(),
-                mouseForce,
-                currentViscosity,
-                currentRepulsion,
-                currentSurfaceTension,
-                currentGravity,
-                mousePosition.x,
-                mousePosition.y,
-                currentMouseForce
-            );
-            
-            simulator.updateGhosts(ghostState, deltaTime);
-            ghostParticles = simulator.getGhostParticles();
-            ghostTemperatures = simulator.getGhostTemperatures();
-            
-            repaint();
-        }
+        float[] frameGhosts = frame.getGhostParticles();
+        boolean drawGhosts = ghostsActive && frameGhosts != null && frameGhosts.length == frame.getParticles().length;
+        // Ускорение оставляет шлейф, стирание времени - свечение частиц и призраков
+        particleRenderer.setMotionBlur(isAccelerating);
+        particleRenderer.setGlow(ghostsActive);
+        particleRenderer.draw(g2d, getWidth(), getHeight(), frame.getParticles(), frame.getTemperatures(),
+            frame.getMaterials(), drawGhosts ? frameGhosts : null, drawGhosts ? frame.getGhostTemperatures() : null);
 
         if (isRewinding) {
-            g2d.setColor(new Color(0, 0, 255, 30));
+            g2d.setColor(REWIND_TINT_COLOR);
             g2d.fillRect(0, 0, getWidth(), getHeight());
             
-            g2d.setColor(new Color(255, 255, 255, 100));
+            g2d.setColor(REWIND_DOT_COLOR);
             int numDots = 50;
             for (int i = 0; i < numDots; i++) {
                 int x = random.nextInt(getWidth());
@@ -574,30 +477,16 @@ public class SimulationPanel extends JPanel implements SimulationListener {
             }
             
             if (rewindBlinkState) {
-                g2d.setColor(new Color(100, 100, 255, 200));
-                g2d.setFont(new Font("Arial", Font.BOLD, 20));
-                
-                int textX = 20;
-                int textY = 35;
-                int triangleSize = 12;
-                int triangleGap = 4;
-                int triangleY = textY - triangleSize;
-                
-                int[] xPoints1 = {textX, textX, textX + triangleSize};
-                int[] yPoints1 = {triangleY, triangleY + triangleSize, triangleY + triangleSize/2};
-                g2d.fillPolygon(xPoints1, yPoints1, 3);
-                
-                int[] xPoints2 = {textX + triangleSize + triangleGap, textX + triangleSize + triangleGap, 
-                                textX + triangleSize * 2 + triangleGap};
-                int[] yPoints2 = {triangleY, triangleY + triangleSize, triangleY + triangleSize/2};
-                g2d.fillPolygon(xPoints2, yPoints2, 3);
-                
-                g2d.drawString("ПЕРЕМОТКА", textX + triangleSize * 2 + triangleGap + 10, textY);
+                g2d.setColor(REWIND_TEXT_COLOR);
+                g2d.setFont(OVERLAY_FONT);
+                g2d.fillPolygon(REWIND_TRIANGLE_X1, REWIND_TRIANGLE_Y, 3);
+                g2d.fillPolygon(REWIND_TRIANGLE_X2, REWIND_TRIANGLE_Y, 3);
+                g2d.drawString("ПЕРЕМОТКА", REWIND_TEXT_X, 35);
             }
         }
 
         if (isRecordingLoop || isPlayingLoop) {
-            g2d.setColor(new Color(147, 112, 219, 30));
+            g2d.setColor(LOOP_TINT_COLOR);
             g2d.fillRect(0, 0, getWidth(), getHeight());
 
             long currentLoopTime = System.nanoTime();
@@ -607,7 +496,7 @@ public class SimulationPanel extends JPanel implements SimulationListener {
             if (isRecordingLoop) {
                 loopDisplayTimer += loopDeltaTime;
                 if (loopDisplayTimer >= LOOP_DURATION) {
-                    loopEndPoints = Arrays.copyOf(particles, particles.length);
+                    loopEndPoints = Arrays.copyOf(frame.getParticles(), frame.getParticles().length);
                     isRecordingLoop = false;
                 }
             }
@@ -646,7 +535,7 @@ public class SimulationPanel extends JPanel implements SimulationListener {
                     loopParticles[i + 1] = loopStartPoints[i + 1] + (loopEndPoints[i + 1] - loopStartPoints[i + 1]) * ghostProgress;
                 }
                 
-                g2d.setColor(new Color(255, 255, 255, 150));
+                g2d.setColor(LOOP_GHOST_COLOR);
                 for (int i = 0; i < loopParticles.length; i += 4) {
                     g2d.fillOval(
                         (int)(loopParticles[i] - particleSize/2),
@@ -656,35 +545,307 @@ public class SimulationPanel extends JPanel implements SimulationListener {
                 }
             }
 
-            g2d.setFont(new Font("Arial", Font.BOLD, 20));
+            g2d.setFont(OVERLAY_FONT);
             String text = isRecordingLoop ? 
                 String.format("ЗАПИСЬ ПЕТЛИ (%.1f сек)", LOOP_DURATION - loopDisplayTimer) :
                 (isPlayingLoop ? "ВОСПРОИЗВЕДЕНИЕ ПЕТЛИ" : "ПЕТЛЯ ЗАФИКСИРОВАНА");
             g2d.setColor(LOOP_COLOR);
             g2d.drawString(text, 20, 35);
         }
+
+        Recorder activeRecorder = recorder;
+        if (activeRecorder != null || replaying) {
+            g2d.setFont(OVERLAY_FONT);
+            g2d.setColor(RECORD_COLOR);
+            String text;
+            if (replaying) {
+                text = "ВОСПРОИЗВЕДЕНИЕ ЗАПИСИ";
+            } else if (activeRecorder.getDroppedFrames() > 0) {
+                text = String.format("● ЗАПИСЬ (%d кадров, пропущено %d)",
+                    activeRecorder.getWrittenFrames(), activeRecorder.getDroppedFrames());
+            } else {
+                text = String.format("● ЗАПИСЬ (%d кадров)", activeRecorder.getWrittenFrames());
+            }
+            g2d.drawString(text, 20, 65);
+        }
+    }
+
+    // Правку можно отправить из любого потока; применится перед следующим шагом
+    public void submit(SimulationCommand command) {
+        commands.offer(command);
+    }
+
+    // Поток симуляции: правки, шаг физики, история и публикация кадра
+    private void simulationTick(float frameTime) {
+        frameTime = Math.min(frameTime, SimulationConstants.MAX_FRAME_TIME);
+
+        // Зажатая кнопка мыши - такие же правки, как из EDT, только создаются здесь каждый тик
+        if (!isRewinding && physicsEnabled) {
+            Point mouse = mousePosition;
+            if (currentMouseMode == MouseMode.DRAWING && isSpawning) {
+                submit(new SimulationCommand.Spawn(mouse.x, mouse.y, (int)spawnRate, spawnRadius,
+                    currentMaterialIndex));
+            } else if (currentMouseMode == MouseMode.TEMPERATURE && mouseForce != 0) {
+                float tempChange = mouseForce > 0 ? temperatureChangeRate : -temperatureChangeRate;
+                submit(new SimulationCommand.Heat(mouse.x, mouse.y, 100.0f, tempChange * frameTime));
+            } else if (currentMouseMode == MouseMode.ERASER && isErasing) {
+                submit(new SimulationCommand.Erase(mouse.x, mouse.y, spawnRadius));
+            }
+        }
+
+        // Прошлый шаг к этому моменту уже прочитан за время сна потока; дожидаемся его,
+        // чтобы удаления и новые частицы в свободных слотах легли поверх актуального состояния
+        solver.finish();
+        // Петля сопоставляет частицы по индексу, поэтому пока она записана, слоты не двигаем
+        if (loopStartPoints == null
+                && store.getFreeCount() > store.getCount() * SimulationConstants.COMPACT_FREE_FRACTION) {
+            compactParticles();
+        }
+        drainCommands();
+        if (!isRewinding && physicsEnabled) {
+            applyDrains();
+        }
+        // Переписанные на месте слоты - решателю точечно, а не полной загрузкой
+        if (store.getDirtyCount() > 0) {
+            solver.invalidateSlots(store.getDirtySlots(), store.getDirtyCount());
+            store.clearDirty();
+        }
+
+        if (!isRewinding) {
+            if (physicsEnabled) {
+                // Петля сопоставляет частицы по индексу, поэтому пока она записана, порядок не трогаем
+                if (particleReordering && loopStartPoints == null
+                        && ++stepsSinceReorder >= SimulationConstants.REORDER_INTERVAL) {
+                    reorderParticles();
+                }
+
+                // Время кадра только копится в симуляторе; шаг физики всегда фиксированный
+                float simulatedTime = frameTime;
+                if (isAccelerating) {
+                    timeAcceleration = Math.min(timeAcceleration + ACCELERATION_RATE * frameTime, MAX_TIME_ACCELERATION);
+                    simulatedTime *= timeAcceleration;
+                }
+
+                Point mouse = mousePosition;
+                SimulationState state = new SimulationState(
+                    store.getCount(),
+                    store.getParticles(),
+                    store.getTemperatures(),
+                    store.getMaterials(),
+                    materialProps,
+                    getWidth(),
+                    getHeight(),
+                    mouseForce,
+                    currentViscosity,
+                    currentRepulsion,
+                    currentSurfaceTension,
+                    currentGravity,
+                    mouse.x,
+                    mouse.y,
+                    currentMouseForce
+                );
+
+                simulator.setState(state);
+                int steps = simulator.advance(simulatedTime);
+                
+                // Решатель пишет в массивы хранилища на месте; в историю - дельта к прошлому кадру
+                if (steps > 0) {
+                    history.push(store);
+                    Recorder activeRecorder = recorder;
+                    if (activeRecorder != null) {
+                        // Не блокирует: если писатель не успевает, пропадает кадр записи, а не кадр экрана
+                        recordTime += steps * SimulationConstants.FIXED_TIME_STEP;
+                        activeRecorder.record(recordTime, store.getCount(), store.getParticles(),
+                            store.getTemperatures(), store.getMaterials());
+                    }
+                }
+                // Запись доиграла до конца
+                if (replayRecording != null && !simulator.isReplaying()) {
+                    stopReplay();
+                }
+            }
+        } else if (history.pop(store)) {
+            // Кадр возвращает слоты целиком: удалённые после него частицы оживают
+            // со своими температурой и материалом
+            solver.invalidateParticles();
+        }
+
+        stepGhosts(frameTime);
+        publishFrame();
+        repaint();
+    }
+
+    // Всё, что накопилось с прошлого тика. Подряд идущие спавны сливаются в одно
+    // расширение массивов
+    private void drainCommands() {
+        SimulationCommand command;
+        while ((command = commands.poll()) != null) {
+            if (command instanceof SimulationCommand.Spawn spawn) {
+                pendingSpawns.add(spawn);
+                continue;
+            }
+            spawnParticles();
+            switch (command) {
+                case SimulationCommand.Heat heat -> applyHeat(heat);
+                case SimulationCommand.SetTemperature set -> {
+                    Arrays.fill(store.getTemperatures(), 0, store.getCount(), set.temperature());
+                    solver.invalidateTemperatures();
+                }
+                case SimulationCommand.SetParameter set -> applyParameter(set);
+                case SimulationCommand.SetRewindTime set -> {
+                    history.setMaxFrames((int)(set.seconds() / SimulationConstants.FIXED_TIME_STEP));
+                }
+                case SimulationCommand.Erase erase -> eraseParticles(erase.x(), erase.y(), erase.radius());
+                case SimulationCommand.ToggleDrain drain -> toggleDrain(drain);
+                case SimulationCommand.Clear clear -> clearState();
+                case SimulationCommand.ToggleRecording toggle -> toggleRecording();
+                case SimulationCommand.ToggleReplay toggle -> toggleReplay();
+                case SimulationCommand.Spawn spawn -> pendingSpawns.add(spawn);
+            }
+        }
+        spawnParticles();
+    }
+
+    private void applyParameter(SimulationCommand.SetParameter set) {
+        switch (set.parameter()) {
+            case VISCOSITY -> currentViscosity = set.value();
+            case REPULSION -> currentRepulsion = set.value();
+            case SURFACE_TENSION -> currentSurfaceTension = set.value();
+            case GRAVITY -> currentGravity = set.value();
+            case DENSITY -> solver.setDensity(set.value());
+        }
+    }
+
+    private void applyHeat(SimulationCommand.Heat heat) {
+        float influence2 = heat.radius() * heat.radius();
+        float[] particles = store.getParticles();
+        float[] particleTemperatures = store.getTemperatures();
+        
+        for (int i = 0; i < store.getCount() * 4; i += 4) {
+            float dx = particles[i] - heat.x();
+            float dy = particles[i + 1] - heat.y();
+            float dist2 = dx * dx + dy * dy;
+            
+            if (dist2 < influence2) {
+                int particleIndex = i / 4;
+                float factor = 1.0f - (float)Math.sqrt(dist2) / heat.radius();
+                float newTemp = particleTemperatures[particleIndex] + heat.amount() * factor;
+                particleTemperatures[particleIndex] = Math.max(SimulationConstants.MIN_TEMPERATURE,
+                    Math.min(SimulationConstants.MAX_TEMPERATURE, newTemp));
+            }
+        }
+        solver.invalidateTemperatures();
+    }
+
+    private int eraseParticles(float x, float y, float radius) {
+        float radius2 = radius * radius;
+        float[] particles = store.getParticles();
+        int removed = 0;
+        for (int i = 0; i < store.getCount(); i++) {
+            float dx = particles[i * 4] - x;
+            float dy = particles[i * 4 + 1] - y;
+            if (dx * dx + dy * dy < radius2 && store.remove(i)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private void toggleDrain(SimulationCommand.ToggleDrain drain) {
+        boolean removed = drains.removeIf(d -> {
+            float dx = d.x() - drain.x();
+            float dy = d.y() - drain.y();
+            return dx * dx + dy * dy < d.radius() * d.radius();
+        });
+        if (!removed) {
+            drains.add(drain);
+        }
+        drainsView = List.copyOf(drains);
+    }
+
+    // Стоки работают как ластик, который стоит на месте и срабатывает каждый тик
+    private void applyDrains() {
+        for (SimulationCommand.ToggleDrain drain : drains) {
+            eraseParticles(drain.x(), drain.y(), drain.radius());
+        }
+    }
+
+    // Удалённые частицы копятся дырами в слотах; уплотнение возвращает число слотов к числу живых
+    private void compactParticles() {
+        int[] sourceSlots = store.compact();
+        if (sourceSlots != null) {
+            solver.compact(sourceSlots, store.getCount());
+        }
+    }
+
+    // Призраки стирания времени считаются тем же решателем, пока основная физика стоит
+    private void stepGhosts(float frameTime) {
+        if (!ghostsActive) {
+            ghostParticles = null;
+            ghostTemperatures = null;
+            return;
+        }
+        if (ghostParticles == null || ghostParticles.length != store.getCount() * 4) {
+            ghostParticles = store.copyParticles();
+            ghostTemperatures = Arrays.copyOf(store.getTemperatures(), store.getCount());
+            return;
+        }
+
+        SimulationState ghostState = new SimulationState(
+            ghostParticles,
+            ghostTemperatures,
+            store.getMaterials(),
+            simulator.getCurrentState().getMaterialProperties(),
+            getWidth(),
+            getHeight(),
+            mouseForce,
+            currentViscosity,
+            currentRepulsion,
+            currentSurfaceTension,
+            currentGravity,
+            mousePosition.x,
+            mousePosition.y,
+            currentMouseForce
+        );
+        
+        simulator.updateGhosts(ghostState, frameTime);
+        ghostParticles = simulator.getGhostParticles();
+        ghostTemperatures = simulator.getGhostTemperatures();
+    }
+
+    // Копия состояния в свободный слот; отрисовка заберёт её без копирования и без замка
+    private void publishFrame() {
+        RenderFrame frame = frames.back();
+        frame.set(store);
+        frame.setGhosts(ghostParticles, ghostTemperatures);
+        frames.publish();
+    }
+
+    // Для петли: снимок последнего кадра, вызывается только из EDT (единственный читатель буфера)
+    private float[] latestParticles() {
+        float[] latest = frames.front().getParticles();
+        return Arrays.copyOf(latest, latest.length);
     }
 
     @Override
+    // Вызывается из потока симуляции внутри simulationTick. Обычно решатель уже записал шаг
+    // в массивы хранилища; чужие массивы (загруженное состояние) копируются в него
     public void onSimulationUpdated(SimulationState state) {
         if (!physicsEnabled) {
             return;
         }
         
-        long currentTime = System.nanoTime();
-        deltaTime = (currentTime - lastUpdateTime) / 1_000_000_000.0f;
-        lastUpdateTime = currentTime;
-        
-        if (state.hasParticles()) {
-            particles = state.getParticles();
-            particleTemperatures = state.getTemperatures();
+        if (state.hasParticles() && state.getParticles() != store.getParticles()) {
+            store.load(state.getParticles(), state.getTemperatures(), state.getMaterialIndices(),
+                state.getParticleCount());
+            history.clear();
+            solver.invalidateParticles();
         }
-        
-        repaint();
     }
 
     public void setParticleSize(int size) {
         this.particleSize = size;
+        particleRenderer.setParticleSize(size);
         repaint();
     }
 
@@ -693,15 +854,15 @@ public class SimulationPanel extends JPanel implements SimulationListener {
     }
 
     public void setViscosity(float viscosity) {
-        this.currentViscosity = viscosity;
+        submit(new SimulationCommand.SetParameter(SimulationCommand.Parameter.VISCOSITY, viscosity));
     }
 
     public void setRepulsion(float repulsion) {
-        this.currentRepulsion = repulsion;
+        submit(new SimulationCommand.SetParameter(SimulationCommand.Parameter.REPULSION, repulsion));
     }
     
     public void setSurfaceTension(float tension) {
-        this.currentSurfaceTension = tension;
+        submit(new SimulationCommand.SetParameter(SimulationCommand.Parameter.SURFACE_TENSION, tension));
     }
 
     public void setSpawnRadius(float radius) {
@@ -714,78 +875,133 @@ public class SimulationPanel extends JPanel implements SimulationListener {
 
     public void setRewindTime(float seconds) {
         this.rewindTime = seconds;
-        this.maxHistorySize = (int)(seconds * SimulationConstants.TARGET_FPS);
-        while (particleHistory.size() > maxHistorySize) {
-            particleHistory.remove(0);
-        }
+        submit(new SimulationCommand.SetRewindTime(seconds));
     }
 
     public void setGravity(float gravity) {
-        this.currentGravity = gravity;
+        submit(new SimulationCommand.SetParameter(SimulationCommand.Parameter.GRAVITY, gravity));
     }
 
-    private void addParticlesAtMouse(Point position) {
-        int newParticles = (int)spawnRate;
-        float[] newArray = new float[(particles.length + newParticles * 4)];
-        float[] newTemperatures = new float[particleTemperatures.length + newParticles];
-        int[] newColors = new int[particleColors.length + newParticles];
-        int[] newMaterials = new int[particleMaterials.length + newParticles];
-        
-        System.arraycopy(particles, 0, newArray, 0, particles.length);
-        System.arraycopy(particleTemperatures, 0, newTemperatures, 0, particleTemperatures.length);
-        System.arraycopy(particleColors, 0, newColors, 0, particleColors.length);
-        System.arraycopy(particleMaterials, 0, newMaterials, 0, particleMaterials.length);
-        
-        int currentColor = currentMaterial != null ? 
-            currentMaterial.getColor() : SimulationConstants.PARTICLE_COLOR.getRGB();
-            
-        for(int i = 0; i < newParticles; i++) {
-            int idx = particles.length / 4 + i;
-            int pidx = particles.length + i * 4;
-            
-            double angle = Math.random() * 2 * Math.PI;
-            double radius = Math.random() * spawnRadius;
-            
-            newArray[pidx] = position.x + (float)(Math.cos(angle) * radius);
-            newArray[pidx + 1] = position.y + (float)(Math.sin(angle) * radius);
-            newArray[pidx + 2] = 0;
-            newArray[pidx + 3] = 0;
-            
-            newTemperatures[particleTemperatures.length + i] = SimulationConstants.INITIAL_TEMPERATURE;
-            newColors[idx] = currentColor;
-            newMaterials[idx] = currentMaterialIndex;
+    public void clearParticles() {
+        submit(new SimulationCommand.Clear());
+    }
+
+    // Все отложенные спавны; хранилище растёт удвоением, так что обычно без перевыделения
+    private void spawnParticles() {
+        if (pendingSpawns.isEmpty()) {
+            return;
+        }
+        int newParticles = 0;
+        for (SimulationCommand.Spawn spawn : pendingSpawns) {
+            newParticles += spawn.count();
         }
+        store.ensureCapacity(store.getCount() + newParticles);
         
-        particles = newArray;
-        particleTemperatures = newTemperatures;
-        particleColors = newColors;
-        particleMaterials = newMaterials;
-        gpuCalculator.updateWorkSize(particles.length / 4);
+        for (SimulationCommand.Spawn spawn : pendingSpawns) {
+            for (int i = 0; i < spawn.count(); i++) {
+                double angle = Math.random() * 2 * Math.PI;
+                double radius = Math.random() * spawn.radius();
+                store.add(spawn.x() + (float)(Math.cos(angle) * radius),
+                    spawn.y() + (float)(Math.sin(angle) * radius),
+                    SimulationConstants.INITIAL_TEMPERATURE, spawn.material());
+            }
+        }
+        pendingSpawns.clear();
+        solver.updateWorkSize(store.getCount());
     }
 
-    public void clearParticles() {
-        particles = new float[0];
-        particleTemperatures = new float[0];
-        particleColors = new int[0];
-        particleMaterials = new int[0];
-        particleHistory.clear();
-        gpuCalculator.updateWorkSize(0);
+    // Слоты переиспользуются новыми частицами, поэтому незавершённый шаг решателя отбрасываем
+    private void clearState() {
+        store.clear();
+        drains.clear();
+        drainsView = List.of();
+        history.clear();
+        solver.invalidateParticles();
+    }
+
+    private void toggleRecording() {
+        Recorder active = recorder;
+        if (active != null) {
+            recorder = null;
+            active.close();
+            lastRecording = active.getFile();
+            return;
+        }
+        String name = "run-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".fsrec";
+        try {
+            recordTime = 0;
+            recorder = new Recorder(Path.of(SimulationConstants.RECORDINGS_DIRECTORY, name));
+        } catch (IOException e) {
+            System.err.println("Warning: cannot start recording (" + e + ")");
+        }
+    }
+
+    // Последняя запись этого сеанса; идущая запись сначала завершается, чтобы файл был полным
+    private void toggleReplay() {
+        if (replayRecording != null) {
+            stopReplay();
+            return;
+        }
+        if (recorder != null) {
+            toggleRecording();
+        }
+        if (lastRecording == null) {
+            return;
+        }
+        try {
+            replayRecording = Recording.open(lastRecording);
+        } catch (IOException e) {
+            System.err.println("Warning: cannot replay " + lastRecording + " (" + e + ")");
+            return;
+        }
+        simulator.startReplay(replayRecording);
+        replaying = simulator.isReplaying();
+        if (!replaying) {
+            stopReplay();
+        }
+    }
+
+    private void stopReplay() {
+        simulator.stopReplay();
+        replayRecording.close();
+        replayRecording = null;
+        replaying = false;
+    }
+
+    public void setParticleReordering(boolean enabled) {
+        this.particleReordering = enabled;
+    }
+
+    private void reorderParticles() {
+        stepsSinceReorder = 0;
+        // Дыры не переставляем вместе с живыми - сначала убираем их
+        compactParticles();
+        int count = store.getCount();
+        if (count < 2 || !mortonOrder.sort(store.getParticles(), count)) {
+            return;
+        }
+
+        store.reorder(mortonOrder);
+        solver.invalidateParticles();
     }
 
     public void setVelocityColoring(boolean enabled) {
-        this.velocityColoring = enabled;
+        particleRenderer.setVelocityColoring(enabled);
         repaint();
     }
 
     public void setTemperatureColoring(boolean enabled) {
-        this.temperatureColoring = enabled;
+        particleRenderer.setTemperatureColoring(enabled);
+        repaint();
+    }
+
+    public void setSurfaceRendering(boolean enabled) {
+        particleRenderer.setSurfaceRendering(enabled);
         repaint();
     }
 
     public void setTemperature(float temperature) {
-        for (int i = 0; i < particleTemperatures.length; i++) {
-            particleTemperatures[i] = temperature;
-        }
+        submit(new SimulationCommand.SetTemperature(temperature));
     }
 
     public void setMouseMode(MouseMode mode) {
@@ -796,21 +1012,32 @@ public class SimulationPanel extends JPanel implements SimulationListener {
         this.fixedTemperature = fixed;
     }
 
-    private Color interpolateColor(Color c1, Color c2, float ratio) {
-        int r = (int)(c1.getRed() + (c2.getRed() - c1.getRed()) * ratio);
-        int g = (int)(c1.getGreen() + (c2.getGreen() - c1.getGreen()) * ratio);
-        int b = (int)(c1.getBlue() + (c2.getBlue() - c1.getBlue()) * ratio);
-        return new Color(r, g, b);
-    }
-
     public void setMaterial(Material material) {
         this.currentMaterial = material;
         this.currentMaterialIndex = getMaterialIndex(material);
-        gpuCalculator.setDensity(material.getDensity());
+        submit(new SimulationCommand.SetParameter(SimulationCommand.Parameter.DENSITY, (float)material.getDensity()));
         this.particleImage = createParticleImage();
         repaint();
     }
 
+    private static float[] createMaterialProperties() {
+        List<Material> materials = Arrays.asList(
+            new Water(), new Oil(), new Mercury(),
+            new Gasoline(), new Glycerin()
+        );
+        
+        float[] materialProps = new float[materials.size() * 4];
+        for (int i = 0; i < materials.size(); i++) {
+            Material m = materials.get(i);
+            int offset = i * 4;
+            materialProps[offset] = (float)m.getDensity();
+            materialProps[offset + 1] = (float)m.getViscosity();
+            materialProps[offset + 2] = (float)m.getSurfaceTension();
+            materialProps[offset + 3] = (float)m.getElasticity();
+        }
+        return materialProps;
+    }
+
     private int getMaterialIndex(Material material) {
         if (material instanceof Water) return 0;
         if (material instanceof Oil) return 1;
@@ -869,18 +1096,24 @@ public class SimulationPanel extends JPanel implements SimulationListener {
         }
     }
 
-    private BufferedImage getMotionBlurBuffer() {
-        if (motionBlurBuffer == null || 
-            motionBlurBuffer.getWidth() != getWidth() || 
-            motionBlurBuffer.getHeight() != getHeight()) {
-            
-            motionBlurBuffer = new BufferedImage(
-                Math.max(1, getWidth()), 
-                Math.max(1, getHeight()), 
-                BufferedImage.TYPE_INT_ARGB
-            );
+    private static Color[] alphaRamp(int red, int green, int blue) {
+        Color[] colors = new Color[256];
+        for (int alpha = 0; alpha < colors.length; alpha++) {
+            colors[alpha] = new Color(red, green, blue, alpha);
         }
-        return motionBlurBuffer;
+        return colors;
+    }
+
+    private static BasicStroke[] crackStrokes(float maxWidth) {
+        BasicStroke[] strokes = new BasicStroke[(int)(maxWidth * 4) + 1];
+        for (int i = 0; i < strokes.length; i++) {
+            strokes[i] = new BasicStroke(i / 4.0f);
+        }
+        return strokes;
+    }
+
+    private static BasicStroke crackStroke(float width) {
+        return CRACK_STROKES[Math.min(CRACK_STROKES.length - 1, Math.round(width * 4))];
     }
 
     public void setMaxTimeAcceleration(double value) {
@@ -897,33 +1130,11 @@ public class SimulationPanel extends JPanel implements SimulationListener {
 
     private void initializeParticles() {
         Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
-        int screenWidth = (int)screenSize.getWidth();
-        int screenHeight = (int)screenSize.getHeight();
-        
-        int margin = SimulationConstants.SCREEN_MARGIN;
-        int usableWidth = screenWidth - 2 * margin - SimulationConstants.CONTROL_PANEL_WIDTH;
-        int usableHeight = screenHeight - 2 * margin;
-        
-        int cols = usableWidth / SimulationConstants.PARTICLE_SPACING;
-        int rows = usableHeight / SimulationConstants.PARTICLE_SPACING;
+        SimulationState initial = Scene.defaultScene((int)screenSize.getWidth(), (int)screenSize.getHeight())
+            .createState(new float[0]);
         
-        particles = new float[cols * rows * 4];
-        particleColors = new int[cols * rows];
-        particleMaterials = new int[cols * rows];
-        
-        for (int i = 0; i < rows; i++) {
-            for (int j = 0; j < cols; j++) {
-                int idx = (i * cols + j);
-                int pidx = idx * 4;
-                particles[pidx] = margin + j * SimulationConstants.PARTICLE_SPACING;
-                particles[pidx + 1] = margin + i * SimulationConstants.PARTICLE_SPACING;
-                particles[pidx + 2] = 0;
-                particles[pidx + 3] = 0;
-                particleColors[idx] = currentMaterial != null ? 
-                    currentMaterial.getColor() : SimulationConstants.PARTICLE_COLOR.getRGB();
-                particleMaterials[idx] = 0;
-            }
-        }
+        store.load(initial.getParticles(), initial.getTemperatures(), initial.getMaterialIndices(),
+            initial.getParticleCount());
     }
 
     private BufferedImage createParticleImage() {
@@ -942,8 +1153,9 @@ public class SimulationPanel extends JPanel implements SimulationListener {
     private void updateParticlePhysics() {
         var species = FloatVector.SPECIES_256;
         int vectorSize = species.length();
+        float[] particles = store.getParticles();
         
-        for (int i = 0; i < particles.length; i += vectorSize * 4) {
+        for (int i = 0; i < store.getCount() * 4; i += vectorSize * 4) {
             var posX = FloatVector.fromArray(species, particles, i);
             var posY = FloatVector.fromArray(species, particles, i + vectorSize);
             var velX = FloatVector.fromArray(species, particles, i + vectorSize * 2);
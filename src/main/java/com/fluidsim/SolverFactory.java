@@ -0,0 +1,33 @@
+package com.fluidsim;
+
+import org.jocl.CL;
+
+import com.fluidsim.physics.PhysicsSolver;
+
+public class SolverFactory {
+    public static final String BACKEND_PROPERTY = "fluidsim.backend";
+
+    public static PhysicsSolver create() {
+        return create(System.getProperty(BACKEND_PROPERTY, "auto"));
+    }
+
+    // gpu - только OpenCL, opencl-cpu - OpenCL на процессоре, cpu - только ForkJoin,
+    // auto - GPU с откатом на CPU
+    public static PhysicsSolver create(String backend) {
+        switch (backend.toLowerCase()) {
+            case "gpu":
+                return new GPUCalculator();
+            case "opencl-cpu":
+                return new GPUCalculator(CL.CL_DEVICE_TYPE_CPU);
+            case "cpu":
+                return new CPUCalculator();
+            default:
+                try {
+                    return new GPUCalculator();
+                } catch (RuntimeException | LinkageError e) {
+                    System.err.println("Warning: OpenCL GPU unavailable (" + e + "), falling back to CPU");
+                    return new CPUCalculator();
+                }
+        }
+    }
+}
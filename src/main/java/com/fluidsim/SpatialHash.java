@@ -1,50 +1,218 @@
 package com.fluidsim;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.Arrays;
 
+// Плоская сетка без боксинга: частицы раскладываются по ячейкам сортировкой подсчётом
 public class SpatialHash {
+    // Ограничение размера сетки на случай частиц, улетевших далеко за экран
+    private static final int MAX_GRID_DIMENSION = 4096;
+
     private final float cellSize;
-    private final Map<Long, List<Integer>> grid = new HashMap<>();
-    
+    private float originX;
+    private float originY;
+    private int gridWidth;
+    private int gridHeight;
+    private int[] cellStart = new int[1];
+    private int[] cellFill = new int[0];
+    private int[] sortedIndex = new int[0];
+    private int[] particleCell = new int[0];
+    private float[] particles = new float[0];
+    private int count;
+
     public SpatialHash(float cellSize) {
         this.cellSize = cellSize;
     }
-    
-    private long hashPos(float x, float y) {
-        int xi = (int)(x / cellSize);
-        int yi = (int)(y / cellSize);
-        return (((long)xi) << 32) | (yi & 0xffffffffL);
+
+    // particles - упакованные (x, y, vx, vy), как в остальной симуляции
+    public void build(float[] particles, int count) {
+        this.particles = particles;
+        this.count = count;
+
+        float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < count; i++) {
+            float x = particles[i * 4];
+            float y = particles[i * 4 + 1];
+            if (x < minX) minX = x;
+            if (x > maxX) maxX = x;
+            if (y < minY) minY = y;
+            if (y > maxY) maxY = y;
+        }
+        if (count == 0 || !(maxX >= minX) || !(maxY >= minY)) {
+            minX = minY = maxX = maxY = 0;
+        }
+
+        originX = minX;
+        originY = minY;
+        gridWidth = clampDimension((maxX - minX) / cellSize);
+        gridHeight = clampDimension((maxY - minY) / cellSize);
+        int numCells = gridWidth * gridHeight;
+
+        if (cellStart.length < numCells + 1) {
+            cellStart = new int[numCells + 1];
+            cellFill = new int[numCells];
+        } else {
+            Arrays.fill(cellStart, 0, numCells + 1, 0);
+        }
+        if (sortedIndex.length < count) {
+            int capacity = Math.max(count, sortedIndex.length * 2);
+            sortedIndex = new int[capacity];
+            particleCell = new int[capacity];
+        }
+
+        for (int i = 0; i < count; i++) {
+            int cell = cellY(particles[i * 4 + 1]) * gridWidth + cellX(particles[i * 4]);
+            particleCell[i] = cell;
+            cellStart[cell + 1]++;
+        }
+        for (int c = 0; c < numCells; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        System.arraycopy(cellStart, 0, cellFill, 0, numCells);
+        for (int i = 0; i < count; i++) {
+            sortedIndex[cellFill[particleCell[i]]++] = i;
+        }
     }
-    
+
     public void clear() {
-        grid.clear();
-    }
-    
-    public void addParticle(int index, float x, float y) {
-        long hash = hashPos(x, y);
-        grid.computeIfAbsent(hash, k -> new ArrayList<>()).add(index);
-    }
-    
-    public List<Integer> getNeighbors(float x, float y, float radius) {
-        List<Integer> result = new ArrayList<>();
-        float r = radius + cellSize;
-        int minX = (int)((x - r) / cellSize);
-        int maxX = (int)((x + r) / cellSize);
-        int minY = (int)((y - r) / cellSize);
-        int maxY = (int)((y + r) / cellSize);
-        
-        for (int xi = minX; xi <= maxX; xi++) {
-            for (int yi = minY; yi <= maxY; yi++) {
-                long hash = (((long)xi) << 32) | (yi & 0xffffffffL);
-                List<Integer> cell = grid.get(hash);
-                if (cell != null) {
-                    result.addAll(cell);
+        build(particles, 0);
+    }
+
+    // Обходит все частицы строго внутри радиуса, без выделения памяти
+    public void forEachNeighbor(float x, float y, float radius, NeighborVisitor visitor) {
+        float radius2 = radius * radius;
+        int minX = cellX(x - radius), maxX = cellX(x + radius);
+        int minY = cellY(y - radius), maxY = cellY(y + radius);
+
+        for (int cy = minY; cy <= maxY; cy++) {
+            for (int cx = minX; cx <= maxX; cx++) {
+                int cell = cy * gridWidth + cx;
+                for (int s = cellStart[cell], end = cellStart[cell + 1]; s < end; s++) {
+                    int i = sortedIndex[s];
+                    float dx = particles[i * 4] - x;
+                    float dy = particles[i * 4 + 1] - y;
+                    float dist2 = dx * dx + dy * dy;
+                    if (dist2 < radius2) {
+                        visitor.visit(i, dist2);
+                    }
                 }
             }
         }
-        return result;
     }
-} 
\ No newline at end of file
+
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getCellCount() {
+        return gridWidth * gridHeight;
+    }
+
+    // cellStart[c]..cellStart[c + 1] - диапазон sortedIndex для ячейки c
+    public int[] getCellStart() {
+        return cellStart;
+    }
+
+    public int[] getSortedIndex() {
+        return sortedIndex;
+    }
+
+    private int cellX(float x) {
+        return clampCell((int)((x - originX) / cellSize), gridWidth);
+    }
+
+    private int cellY(float y) {
+        return clampCell((int)((y - originY) / cellSize), gridHeight);
+    }
+
+    private static int clampCell(int cell, int dimension) {
+        return cell < 0 ? 0 : (cell >= dimension ? dimension - 1 : cell);
+    }
+
+    private static int clampDimension(float extent) {
+        if (!(extent >= 0)) return 1;
+        return (int)Math.min(MAX_GRID_DIMENSION, extent + 1);
+    }
+
+    @FunctionalInterface
+    public interface NeighborVisitor {
+        void visit(int index, float distance2);
+    }
+
+    // Курсор для поиска соседей без лямбд; каждому потоку нужен свой экземпляр
+    public final class Cursor {
+        private float x;
+        private float y;
+        private float radius2;
+        private int minX;
+        private int maxX;
+        private int maxY;
+        private int cx;
+        private int cy;
+        private int slot;
+        private int slotEnd;
+        private float distance2;
+
+        private Cursor() {
+        }
+
+        public Cursor reset(float x, float y, float radius) {
+            this.x = x;
+            this.y = y;
+            this.radius2 = radius * radius;
+            minX = cellX(x - radius);
+            maxX = cellX(x + radius);
+            cy = cellY(y - radius);
+            maxY = cellY(y + radius);
+            cx = minX;
+            slot = 0;
+            slotEnd = 0;
+            if (count > 0) {
+                enterCell();
+            } else {
+                cy = maxY + 1;
+            }
+            return this;
+        }
+
+        // Индекс следующей частицы внутри радиуса или -1
+        public int next() {
+            while (true) {
+                while (slot < slotEnd) {
+                    int i = sortedIndex[slot++];
+                    float dx = particles[i * 4] - x;
+                    float dy = particles[i * 4 + 1] - y;
+                    float dist2 = dx * dx + dy * dy;
+                    if (dist2 < radius2) {
+                        distance2 = dist2;
+                        return i;
+                    }
+                }
+                if (cy > maxY) {
+                    return -1;
+                }
+                if (++cx > maxX) {
+                    cx = minX;
+                    if (++cy > maxY) {
+                        return -1;
+                    }
+                }
+                enterCell();
+            }
+        }
+
+        public float distance2() {
+            return distance2;
+        }
+
+        private void enterCell() {
+            int cell = cy * gridWidth + cx;
+            slot = cellStart[cell];
+            slotEnd = cellStart[cell + 1];
+        }
+    }
+}
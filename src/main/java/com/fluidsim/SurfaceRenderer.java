@@ -0,0 +1,277 @@
+package com.fluidsim;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+// Сплошная поверхность жидкости вместо отдельных кружков (метаболы). Каждая частица
+// добавляет ядро (1 - r²/h²)³ в поле плотности на грубой сетке и тем же весом - свой цвет.
+// Затем поле затеняется по градиенту плотности, а каждый пиксель экрана берёт плотность
+// и цвет билинейно и отсекается по порогу со сглаженным краем.
+// Все три прохода идут полосами строк в пуле: каждая полоса пишет только свои строки
+public class SurfaceRenderer {
+    private static final int CELL = SimulationConstants.SURFACE_CELL_SIZE;
+    private static final int BAND_CELLS = 8;
+    private static final int BAND_ROWS = BAND_CELLS * CELL;
+    private static final float LOW = SimulationConstants.SURFACE_THRESHOLD - SimulationConstants.SURFACE_EDGE;
+    private static final float EDGE_SCALE = 0.5f / SimulationConstants.SURFACE_EDGE;
+    // Свет сверху слева и полувектор к наблюдателю (0, 0, 1) для блика
+    private static final float LIGHT_X = -0.45f;
+    private static final float LIGHT_Y = -0.6f;
+    private static final float LIGHT_Z = 0.66f;
+    private static final float HALF_X = LIGHT_X / 1.82f;
+    private static final float HALF_Y = LIGHT_Y / 1.82f;
+    private static final float HALF_Z = (LIGHT_Z + 1.0f) / 1.82f;
+
+    private final ForkJoinPool pool;
+    private BufferedImage image;
+    private int[] pixels;
+    private int width;
+    private int height;
+
+    // Сетка: плотность и взвешенные ею цвета
+    private int gridWidth;
+    private int gridHeight;
+    private float[] density = new float[0];
+    private float[] red = new float[0];
+    private float[] green = new float[0];
+    private float[] blue = new float[0];
+    // Наибольшая плотность в строке сетки: пустые строки экрана заливаются целиком
+    private float[] rowMax = new float[0];
+
+    private int[] bandStart = new int[0];
+    private int[] bandParticles = new int[0];
+
+    // Текущий кадр, на время render
+    private float[] particles;
+    private int[] colors;
+    private float radius;
+
+    public SurfaceRenderer(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    // Частицы from..to с цветами ARGB; прозрачные (удалённые) пропускаются.
+    // Радиус ядра - SURFACE_KERNEL_SCALE размеров частицы
+    public BufferedImage render(int width, int height, int particleSize, int from, int to,
+                                float[] particles, int[] colors) {
+        ensureImage(Math.max(1, width), Math.max(1, height));
+        this.particles = particles;
+        this.colors = colors;
+        this.radius = particleSize * SimulationConstants.SURFACE_KERNEL_SCALE / CELL;
+        int bands = bandStart.length - 1;
+        bin(from, to);
+        pool.invoke(new BandTask(this::splatBand, 0, bands));
+        // Затенению нужны соседние строки плотности, поэтому оно идёт после всех полос сплата
+        pool.invoke(new BandTask(this::shadeBand, 0, bands));
+        pool.invoke(new BandTask(this::resolveBand, 0, (height + BAND_ROWS - 1) / BAND_ROWS));
+        this.particles = null;
+        this.colors = null;
+        return image;
+    }
+
+    private void ensureImage(int width, int height) {
+        if (image != null && this.width == width && this.height == height) {
+            return;
+        }
+        this.width = width;
+        this.height = height;
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+        pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+        gridWidth = (width + CELL - 1) / CELL;
+        gridHeight = (height + CELL - 1) / CELL;
+        int cells = gridWidth * gridHeight;
+        density = new float[cells];
+        red = new float[cells];
+        green = new float[cells];
+        blue = new float[cells];
+        rowMax = new float[gridHeight];
+        bandStart = new int[(gridHeight + BAND_CELLS - 1) / BAND_CELLS + 1];
+    }
+
+    // Частицы по полосам сетки подсчётом, как в RasterRenderer; ядро может задеть несколько полос
+    private void bin(int from, int to) {
+        int bands = bandStart.length - 1;
+        Arrays.fill(bandStart, 0);
+        for (int i = from; i < to; i++) {
+            if (visible(i)) {
+                for (int band = firstBand(i), last = lastBand(i, bands); band <= last; band++) {
+                    bandStart[band + 1]++;
+                }
+            }
+        }
+        for (int band = 0; band < bands; band++) {
+            bandStart[band + 1] += bandStart[band];
+        }
+        if (bandParticles.length < bandStart[bands]) {
+            bandParticles = new int[Math.max(bandStart[bands], bandParticles.length * 2)];
+        }
+        for (int i = from; i < to; i++) {
+            if (visible(i)) {
+                for (int band = firstBand(i), last = lastBand(i, bands); band <= last; band++) {
+                    bandParticles[bandStart[band]++] = i;
+                }
+            }
+        }
+        System.arraycopy(bandStart, 0, bandStart, 1, bands);
+        bandStart[0] = 0;
+    }
+
+    private boolean visible(int i) {
+        float x = particles[i * 4] / CELL;
+        float y = particles[i * 4 + 1] / CELL;
+        // Сравнения с NaN ложны, так что такие частицы тоже отбрасываются
+        return colors[i] >>> 24 != 0
+            && x + radius > 0 && x - radius < gridWidth && y + radius > 0 && y - radius < gridHeight;
+    }
+
+    private int firstBand(int i) {
+        return Math.max(0, (int)(particles[i * 4 + 1] / CELL - radius)) / BAND_CELLS;
+    }
+
+    private int lastBand(int i, int bands) {
+        return Math.min(bands - 1, (int)(particles[i * 4 + 1] / CELL + radius) / BAND_CELLS);
+    }
+
+    private void splatBand(int band) {
+        int top = band * BAND_CELLS;
+        int bottom = Math.min(gridHeight, top + BAND_CELLS);
+        Arrays.fill(density, top * gridWidth, bottom * gridWidth, 0.0f);
+        Arrays.fill(red, top * gridWidth, bottom * gridWidth, 0.0f);
+        Arrays.fill(green, top * gridWidth, bottom * gridWidth, 0.0f);
+        Arrays.fill(blue, top * gridWidth, bottom * gridWidth, 0.0f);
+        float inverseRadius2 = 1.0f / (radius * radius);
+        for (int k = bandStart[band]; k < bandStart[band + 1]; k++) {
+            int i = bandParticles[k];
+            // Центр в координатах сетки; центр ячейки (gx, gy) - (gx + 0.5, gy + 0.5)
+            float cx = particles[i * 4] / CELL - 0.5f;
+            float cy = particles[i * 4 + 1] / CELL - 0.5f;
+            int color = colors[i];
+            float r = (color >> 16) & 0xFF;
+            float g = (color >> 8) & 0xFF;
+            float b = color & 0xFF;
+            int rowStart = Math.max(top, (int)Math.ceil(cy - radius));
+            int rowEnd = Math.min(bottom - 1, (int)Math.floor(cy + radius));
+            int colStart = Math.max(0, (int)Math.ceil(cx - radius));
+            int colEnd = Math.min(gridWidth - 1, (int)Math.floor(cx + radius));
+            for (int gy = rowStart; gy <= rowEnd; gy++) {
+                float dy = gy - cy;
+                float rest = 1.0f - dy * dy * inverseRadius2;
+                int row = gy * gridWidth;
+                for (int gx = colStart; gx <= colEnd; gx++) {
+                    float dx = gx - cx;
+                    float q = rest - dx * dx * inverseRadius2;
+                    if (q <= 0.0f) {
+                        continue;
+                    }
+                    float w = q * q * q;
+                    density[row + gx] += w;
+                    red[row + gx] += w * r;
+                    green[row + gx] += w * g;
+                    blue[row + gx] += w * b;
+                }
+            }
+        }
+    }
+
+    // Нормаль из градиента плотности; рассеянный свет плюс блик. Цвета остаются умноженными
+    // на плотность, чтобы на краю билинейная выборка не тянула цвет к чёрному
+    private void shadeBand(int band) {
+        int top = band * BAND_CELLS;
+        int bottom = Math.min(gridHeight, top + BAND_CELLS);
+        for (int gy = top; gy < bottom; gy++) {
+            int up = Math.max(0, gy - 1) * gridWidth;
+            int down = Math.min(gridHeight - 1, gy + 1) * gridWidth;
+            int row = gy * gridWidth;
+            float max = 0.0f;
+            for (int gx = 0; gx < gridWidth; gx++) {
+                float d = density[row + gx];
+                if (d <= 0.0f) {
+                    continue;
+                }
+                max = Math.max(max, d);
+                float nx = density[row + Math.max(0, gx - 1)] - density[row + Math.min(gridWidth - 1, gx + 1)];
+                float ny = density[up + gx] - density[down + gx];
+                float inverse = 1.0f / (float)Math.sqrt(nx * nx + ny * ny + 1.0f);
+                nx *= inverse;
+                ny *= inverse;
+                float nz = inverse;
+                float diffuse = Math.max(0.0f, nx * LIGHT_X + ny * LIGHT_Y + nz * LIGHT_Z);
+                float specular = Math.max(0.0f, nx * HALF_X + ny * HALF_Y + nz * HALF_Z);
+                specular *= specular;
+                specular *= specular;
+                specular *= specular;
+                specular *= specular;
+                float light = 0.55f + 0.45f * diffuse;
+                float highlight = 255.0f * 0.35f * specular * d;
+                red[row + gx] = red[row + gx] * light + highlight;
+                green[row + gx] = green[row + gx] * light + highlight;
+                blue[row + gx] = blue[row + gx] * light + highlight;
+            }
+            rowMax[gy] = max;
+        }
+    }
+
+    // Пиксели между центрами соседних ячеек сетки (x0, x0 + 1) интерполируются от одних и тех же
+    // столбцов: вертикальная интерполяция считается раз на отрезок, а отрезок, где плотность
+    // ниже порога на обоих концах, сразу заливается прозрачным
+    private void resolveBand(int band) {
+        int top = band * BAND_ROWS;
+        int bottom = Math.min(height, top + BAND_ROWS);
+        for (int py = top; py < bottom; py++) {
+            float v = (py + 0.5f) / CELL - 0.5f;
+            int y0 = Math.max(0, (int)Math.floor(v));
+            int y1 = Math.min(gridHeight - 1, y0 + 1);
+            float fy = Math.max(0.0f, Math.min(1.0f, v - y0));
+            int row0 = y0 * gridWidth;
+            int row1 = y1 * gridWidth;
+            int out = py * width;
+            if (rowMax[y0] <= LOW && rowMax[y1] <= LOW) {
+                Arrays.fill(pixels, out, out + width, 0);
+                continue;
+            }
+            // Отрезок x0 = -1 - левый край экрана до центра первой ячейки
+            for (int x0 = -1; x0 < gridWidth; x0++) {
+                int pxStart = Math.max(0, x0 * CELL + CELL / 2);
+                int pxEnd = Math.min(width, (x0 + 1) * CELL + CELL / 2);
+                if (pxStart >= pxEnd) {
+                    continue;
+                }
+                int a = Math.max(0, x0);
+                int b = Math.min(gridWidth - 1, x0 + 1);
+                float densityA = density[row0 + a] + (density[row1 + a] - density[row0 + a]) * fy;
+                float densityB = density[row0 + b] + (density[row1 + b] - density[row0 + b]) * fy;
+                if (densityA <= LOW && densityB <= LOW) {
+                    for (int px = pxStart; px < pxEnd; px++) {
+                        pixels[out + px] = 0;
+                    }
+                    continue;
+                }
+                float redA = red[row0 + a] + (red[row1 + a] - red[row0 + a]) * fy;
+                float redB = red[row0 + b] + (red[row1 + b] - red[row0 + b]) * fy;
+                float greenA = green[row0 + a] + (green[row1 + a] - green[row0 + a]) * fy;
+                float greenB = green[row0 + b] + (green[row1 + b] - green[row0 + b]) * fy;
+                float blueA = blue[row0 + a] + (blue[row1 + a] - blue[row0 + a]) * fy;
+                float blueB = blue[row0 + b] + (blue[row1 + b] - blue[row0 + b]) * fy;
+                for (int px = pxStart; px < pxEnd; px++) {
+                    float fx = Math.max(0.0f, Math.min(1.0f, (px + 0.5f) / CELL - 0.5f - x0));
+                    float d = densityA + (densityB - densityA) * fx;
+                    if (d <= LOW) {
+                        pixels[out + px] = 0;
+                        continue;
+                    }
+                    float t = Math.min(1.0f, (d - LOW) * EDGE_SCALE);
+                    float alpha = t * t * (3.0f - 2.0f * t);
+                    // Премультипликация: цвет / плотность * альфа
+                    float scale = alpha / d;
+                    int alpha255 = (int)(alpha * 255.0f);
+                    int r = Math.min(alpha255, (int)((redA + (redB - redA) * fx) * scale));
+                    int g = Math.min(alpha255, (int)((greenA + (greenB - greenA) * fx) * scale));
+                    int bl = Math.min(alpha255, (int)((blueA + (blueB - blueA) * fx) * scale));
+                    pixels[out + px] = (alpha255 << 24) | (r << 16) | (g << 8) | bl;
+                }
+            }
+        }
+    }
+}
@@ -3,49 +3,161 @@ package com.fluidsim.physics;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 
-import com.fluidsim.GPUCalculator;
+import com.fluidsim.SimulationConstants;
+
 
 public class FluidSimulator {
     private static final int TARGET_FPS = 120;
-    private final GPUCalculator gpuCalculator;
+    private final PhysicsSolver solver;
     private SimulationState currentState;
     private final List<SimulationListener> listeners;
     private boolean physicsEnabled = true;
+    private float accumulator;
     
     private float[] ghostParticles;
     private float[] ghostTemperatures;
+
+    // Воспроизведение записи: вместо физики слушатели получают кадры файла по времени
+    private Recording replay;
+    private float replayTime;
+    private int replayFrame;
+    private float[] replayParticles = new float[0];
+    private float[] replayTemperatures = new float[0];
+    private byte[] replayMaterials = new byte[0];
     
-    public FluidSimulator(GPUCalculator gpuCalculator) {
-        this.gpuCalculator = gpuCalculator;
+    public FluidSimulator(PhysicsSolver solver) {
+        this.solver = solver;
         this.listeners = new CopyOnWriteArrayList<>();
         this.currentState = new SimulationState();
     }
     
+    // Ровно один вызов решателя с заданным dt, без подшагов
     public void update(float deltaTime) {
         if (currentState.hasParticles() && physicsEnabled) {
-            float[] newParticles = gpuCalculator.updateParticles(
-                currentState.getParticles(),
-                currentState.getTemperatures(),
-                currentState.getMaterialIndices(),
-                currentState.getMaterialProperties(),
-                currentState.getWidth(),
-                currentState.getHeight(),
-                currentState.getMouseX(),
-                currentState.getMouseY(),
-                currentState.getMouseForce(),
-                deltaTime,
-                currentState.getViscosity(),
-                currentState.getRepulsion(),
-                currentState.getSurfaceTension(),
-                currentState.getGravity(),
-                currentState.getCurrentMouseForce()
-            );
-            
-            currentState = currentState.withParticles(newParticles);
+            solve(deltaTime);
+            notifyListeners();
+        }
+    }
+
+    // Копит реальное время кадра и отрабатывает его шагами фиксированной длины.
+    // Ускорение времени даёт больше шагов, а не более длинные
+    public int advance(float frameTime) {
+        if (replay != null) {
+            advanceReplay(frameTime);
+            return 0;
+        }
+        if (!currentState.hasParticles() || !physicsEnabled) {
+            return 0;
+        }
+
+        accumulator += frameTime;
+        int steps = 0;
+        while (accumulator >= SimulationConstants.FIXED_TIME_STEP
+                && steps < SimulationConstants.MAX_STEPS_PER_FRAME) {
+            substep(SimulationConstants.FIXED_TIME_STEP);
+            accumulator -= SimulationConstants.FIXED_TIME_STEP;
+            steps++;
+        }
+        // Не успеваем за реальным временем - лучше замедлиться, чем копить долг
+        if (steps == SimulationConstants.MAX_STEPS_PER_FRAME) {
+            accumulator = Math.min(accumulator, SimulationConstants.FIXED_TIME_STEP);
+        }
+
+        if (steps > 0) {
             notifyListeners();
         }
+        return steps;
+    }
+
+    // Один шаг длины dt, разбитый на подшаги по условию CFL
+    public void step(float dt) {
+        if (currentState.hasParticles() && physicsEnabled) {
+            substep(dt);
+            notifyListeners();
+        }
+    }
+
+    // За подшаг самая быстрая частица проходит не больше CFL_NUMBER * CFL_LENGTH;
+    // подшагов не больше MAX_SUBSTEPS, иначе один выброс скорости остановит симуляцию
+    private void substep(float dt) {
+        float minStep = dt / SimulationConstants.MAX_SUBSTEPS;
+        float remaining = dt;
+        while (remaining > 0.0f) {
+            float h = remaining;
+            float maxSpeed = solver.getMaxSpeed();
+            if (maxSpeed > 0.0f) {
+                h = Math.min(h, SimulationConstants.CFL_NUMBER * SimulationConstants.CFL_LENGTH / maxSpeed);
+            }
+            h = Math.max(h, minStep);
+            // Не оставляем крошечный хвост на отдельный подшаг
+            if (remaining - h < minStep * 0.5f) {
+                h = remaining;
+            }
+            solve(h);
+            remaining -= h;
+        }
+    }
+
+    private void solve(float deltaTime) {
+        float[] newParticles = solver.updateParticles(
+            currentState.getParticleCount(),
+            currentState.getParticles(),
+            currentState.getTemperatures(),
+            currentState.getMaterialIndices(),
+            currentState.getMaterialProperties(),
+            currentState.getWidth(),
+            currentState.getHeight(),
+            currentState.getMouseX(),
+            currentState.getMouseY(),
+            currentState.getMouseForce(),
+            deltaTime,
+            currentState.getViscosity(),
+            currentState.getRepulsion(),
+            currentState.getSurfaceTension(),
+            currentState.getGravity(),
+            currentState.getCurrentMouseForce()
+        );
+        
+        currentState = currentState.withParticles(newParticles);
     }
     
+    // Запись остаётся за вызывающим: он же её и закрывает после stopReplay()
+    public void startReplay(Recording recording) {
+        replay = recording.getFrameCount() > 0 ? recording : null;
+        replayTime = replay != null ? recording.getTime(0) : 0;
+        replayFrame = -1;
+        advanceReplay(0);
+    }
+
+    public void stopReplay() {
+        replay = null;
+    }
+
+    public boolean isReplaying() {
+        return replay != null;
+    }
+
+    // Массивы кадра переиспользуются: слушатель должен скопировать их в onSimulationUpdated
+    private void advanceReplay(float frameTime) {
+        replayTime += frameTime;
+        int frame = replay.frameAt(replayTime);
+        if (frame != replayFrame) {
+            int count = replay.getParticleCount(frame);
+            if (replayTemperatures.length < count) {
+                replayParticles = new float[count * ParticleStore.STRIDE];
+                replayTemperatures = new float[count];
+                replayMaterials = new byte[count];
+            }
+            replay.read(frame, replayParticles, replayTemperatures, replayMaterials);
+            replayFrame = frame;
+            currentState = currentState.withFrame(count, replayParticles, replayTemperatures, replayMaterials);
+            notifyListeners();
+        }
+        if (frame == replay.getFrameCount() - 1) {
+            replay = null;
+        }
+    }
+
     public void addListener(SimulationListener listener) {
         listeners.add(listener);
     }
@@ -57,7 +169,11 @@ public class FluidSimulator {
     }
     
     public void saveState(String filename) {
-        StateSerializer.saveState(currentState, filename);
+        saveState(filename, false);
+    }
+
+    public void saveState(String filename, boolean compress) {
+        StateSerializer.saveState(currentState, filename, compress);
     }
     
     public void loadState(String filename) {
@@ -79,7 +195,8 @@ public class FluidSimulator {
 
     public void updateGhosts(SimulationState state, float deltaTime) {
         if (state.hasParticles()) {
-            ghostParticles = gpuCalculator.updateParticles(
+            ghostParticles = solver.updateParticles(
+                state.getParticleCount(),
                 state.getParticles(),
                 state.getTemperatures(),
                 state.getMaterialIndices(),
@@ -108,23 +225,35 @@ public class FluidSimulator {
         return ghostTemperatures;
     }
 
-    private void startSimulationLoop() {
-        Thread.startVirtualThread(() -> {
-            while (!Thread.interrupted()) {
+    // Отдельный поток с фиксированной частотой TARGET_FPS; tick получает реальное время
+    // с прошлого вызова, так что отстающий тик догоняется накопителем advance()
+    public Thread startSimulationLoop(Tick tick) {
+        return Thread.ofPlatform().name("simulation").daemon().start(() -> {
+            long period = 1_000_000_000L / TARGET_FPS;
+            long lastTime = System.nanoTime();
+            while (!Thread.currentThread().isInterrupted()) {
                 long startTime = System.nanoTime();
-                update(1.0f / TARGET_FPS);
-                long endTime = System.nanoTime();
-                
-                long sleepTime = (1_000_000_000 / TARGET_FPS) - (endTime - startTime);
+                try {
+                    tick.run((startTime - lastTime) / 1_000_000_000.0f);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+                lastTime = startTime;
+
+                long sleepTime = period - (System.nanoTime() - startTime);
                 if (sleepTime > 0) {
                     try {
-                        Thread.sleep(sleepTime / 1_000_000);
+                        Thread.sleep(sleepTime / 1_000_000, (int)(sleepTime % 1_000_000));
                     } catch (InterruptedException e) {
                         Thread.currentThread().interrupt();
-                        break;
                     }
                 }
             }
         });
     }
-} 
\ No newline at end of file
+
+    @FunctionalInterface
+    public interface Tick {
+        void run(float frameTime);
+    }
+}
@@ -0,0 +1,329 @@
+package com.fluidsim.physics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Выгрузка кадров для ParaView и pandas: один файл на кадр, кадры пишутся параллельно пулом.
+// Очередь пула ограничена: если диск не успевает, задачу выполняет сам вызывающий поток,
+// так что копии живых кадров не копятся в памяти. Мёртвые слоты в файл не попадают
+public class FrameExporter implements AutoCloseable {
+    public enum Format {
+        VTK("vtp"),
+        CSV("csv"),
+        PLY("ply");
+
+        final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        public static Format parse(String name) {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private static final int CHUNK_BYTES = 1 << 20;
+    // Буфер записи свой у каждого рабочего потока
+    private static final ThreadLocal<ByteBuffer> CHUNKS = ThreadLocal.withInitial(
+        () -> ByteBuffer.allocateDirect(CHUNK_BYTES).order(ByteOrder.LITTLE_ENDIAN));
+
+    private final Format format;
+    private final Path directory;
+    private final ThreadPoolExecutor pool;
+    private final AtomicInteger exportedFrames = new AtomicInteger();
+    private final AtomicInteger failedFrames = new AtomicInteger();
+
+    public FrameExporter(Format format, Path directory) throws IOException {
+        this(format, directory, Runtime.getRuntime().availableProcessors());
+    }
+
+    public FrameExporter(Format format, Path directory, int threads) throws IOException {
+        this.format = format;
+        this.directory = directory;
+        Files.createDirectories(directory);
+        AtomicInteger threadNumber = new AtomicInteger();
+        pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(threads * 2),
+            task -> Thread.ofPlatform().name("exporter-" + threadNumber.incrementAndGet()).daemon().unstarted(task),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    // Живой кадр: массивы копируются сразу, вызывающий может менять их дальше
+    public void submit(int frame, float time, int count, float[] particles, float[] temperatures, byte[] materials) {
+        float[] particlesCopy = Arrays.copyOf(particles, count * ParticleStore.STRIDE);
+        float[] temperaturesCopy = Arrays.copyOf(temperatures, count);
+        byte[] materialsCopy = Arrays.copyOf(materials, count);
+        pool.execute(() -> export(frame, time, count, particlesCopy, temperaturesCopy, materialsCopy));
+    }
+
+    // Все кадры записи; каждый рабочий поток сам читает свой кадр из отображённого файла.
+    // Запись должна оставаться открытой до close() экспортёра
+    public void submitAll(Recording recording) {
+        for (int i = 0; i < recording.getFrameCount(); i++) {
+            int frame = i;
+            pool.execute(() -> {
+                int count = recording.getParticleCount(frame);
+                float[] particles = new float[count * ParticleStore.STRIDE];
+                float[] temperatures = new float[count];
+                byte[] materials = new byte[count];
+                recording.read(frame, particles, temperatures, materials);
+                export(frame, recording.getTime(frame), count, particles, temperatures, materials);
+            });
+        }
+    }
+
+    private void export(int frame, float time, int count, float[] particles, float[] temperatures, byte[] materials) {
+        Path file = directory.resolve(String.format("frame_%06d.%s", frame, format.extension));
+        int live = 0;
+        for (int i = 0; i < count; i++) {
+            if (materials[i] != ParticleStore.DEAD) {
+                live++;
+            }
+        }
+        try (Output out = new Output(file)) {
+            switch (format) {
+                case VTK -> writeVtk(out, frame, time, live, count, particles, temperatures, materials);
+                case CSV -> writeCsv(out, count, particles, temperatures, materials);
+                case PLY -> writePly(out, frame, time, live, count, particles, temperatures, materials);
+            }
+            exportedFrames.incrementAndGet();
+        } catch (IOException e) {
+            if (failedFrames.getAndIncrement() == 0) {
+                System.err.println("Warning: export of " + file + " failed (" + e + ")");
+            }
+        }
+    }
+
+    // VTK XML PolyData с сырыми данными в AppendedData: у каждого массива префикс UInt64 с длиной
+    private static void writeVtk(Output out, int frame, float time, int live, int count,
+                                 float[] particles, float[] temperatures, byte[] materials) throws IOException {
+        long pointsBytes = live * 12L;
+        long velocityBytes = live * 12L;
+        long temperatureBytes = live * 4L;
+        long materialBytes = live;
+        long connectivityBytes = live * 4L;
+        long offsetsBytes = live * 4L;
+        long offset = 0;
+        long pointsOffset = offset;
+        offset += 8 + pointsBytes;
+        long velocityOffset = offset;
+        offset += 8 + velocityBytes;
+        long temperatureOffset = offset;
+        offset += 8 + temperatureBytes;
+        long materialOffset = offset;
+        offset += 8 + materialBytes;
+        long connectivityOffset = offset;
+        offset += 8 + connectivityBytes;
+        long offsetsOffset = offset;
+
+        out.putAscii("<?xml version=\"1.0\"?>\n"
+            + "<VTKFile type=\"PolyData\" version=\"1.0\" byte_order=\"LittleEndian\" header_type=\"UInt64\">\n"
+            + "  <PolyData>\n"
+            + "    <FieldData>\n"
+            + "      <DataArray type=\"Float64\" Name=\"TimeValue\" NumberOfTuples=\"1\" format=\"ascii\">"
+            + time + "</DataArray>\n"
+            + "      <DataArray type=\"Int32\" Name=\"Frame\" NumberOfTuples=\"1\" format=\"ascii\">"
+            + frame + "</DataArray>\n"
+            + "    </FieldData>\n"
+            + "    <Piece NumberOfPoints=\"" + live + "\" NumberOfVerts=\"" + live
+            + "\" NumberOfLines=\"0\" NumberOfStrips=\"0\" NumberOfPolys=\"0\">\n"
+            + "      <Points>\n"
+            + "        <DataArray type=\"Float32\" NumberOfComponents=\"3\" format=\"appended\" offset=\""
+            + pointsOffset + "\"/>\n"
+            + "      </Points>\n"
+            + "      <PointData Scalars=\"temperature\" Vectors=\"velocity\">\n"
+            + "        <DataArray type=\"Float32\" Name=\"velocity\" NumberOfComponents=\"3\" format=\"appended\" offset=\""
+            + velocityOffset + "\"/>\n"
+            + "        <DataArray type=\"Float32\" Name=\"temperature\" format=\"appended\" offset=\""
+            + temperatureOffset + "\"/>\n"
+            + "        <DataArray type=\"UInt8\" Name=\"material\" format=\"appended\" offset=\""
+            + materialOffset + "\"/>\n"
+            + "      </PointData>\n"
+            + "      <Verts>\n"
+            + "        <DataArray type=\"Int32\" Name=\"connectivity\" format=\"appended\" offset=\""
+            + connectivityOffset + "\"/>\n"
+            + "        <DataArray type=\"Int32\" Name=\"offsets\" format=\"appended\" offset=\""
+            + offsetsOffset + "\"/>\n"
+            + "      </Verts>\n"
+            + "    </Piece>\n"
+            + "  </PolyData>\n"
+            + "  <AppendedData encoding=\"raw\">\n"
+            + "   _");
+
+        out.putLong(pointsBytes);
+        for (int i = 0; i < count; i++) {
+            if (materials[i] != ParticleStore.DEAD) {
+                out.putFloat(particles[i * 4]).putFloat(particles[i * 4 + 1]).putFloat(0.0f);
+            }
+        }
+        out.putLong(velocityBytes);
+        for (int i = 0; i < count; i++) {
+            if (materials[i] != ParticleStore.DEAD) {
+                out.putFloat(particles[i * 4 + 2]).putFloat(particles[i * 4 + 3]).putFloat(0.0f);
+            }
+        }
+        out.putLong(temperatureBytes);
+        for (int i = 0; i < count; i++) {
+            if (materials[i] != ParticleStore.DEAD) {
+                out.putFloat(temperatures[i]);
+            }
+        }
+        out.putLong(materialBytes);
+        for (int i = 0; i < count; i++) {
+            if (materials[i] != ParticleStore.DEAD) {
+                out.putByte(materials[i]);
+            }
+        }
+        // Каждая частица - отдельная вершина, чтобы ParaView рисовал точки без фильтров
+        out.putLong(connectivityBytes);
+        for (int i = 0; i < live; i++) {
+            out.putInt(i);
+        }
+        out.putLong(offsetsBytes);
+        for (int i = 0; i < live; i++) {
+            out.putInt(i + 1);
+        }
+        out.putAscii("\n  </AppendedData>\n</VTKFile>\n");
+    }
+
+    private static void writeCsv(Output out, int count, float[] particles, float[] temperatures,
+                                 byte[] materials) throws IOException {
+        out.putAscii("x,y,vx,vy,temperature,material\n");
+        StringBuilder row = new StringBuilder(96);
+        for (int i = 0; i < count; i++) {
+            if (materials[i] == ParticleStore.DEAD) {
+                continue;
+            }
+            row.setLength(0);
+            row.append(particles[i * 4]).append(',')
+                .append(particles[i * 4 + 1]).append(',')
+                .append(particles[i * 4 + 2]).append(',')
+                .append(particles[i * 4 + 3]).append(',')
+                .append(temperatures[i]).append(',')
+                .append(materials[i] & 0xFF).append('\n');
+            out.putAscii(row);
+        }
+    }
+
+    private static void writePly(Output out, int frame, float time, int live, int count,
+                                 float[] particles, float[] temperatures, byte[] materials) throws IOException {
+        out.putAscii("ply\n"
+            + "format binary_little_endian 1.0\n"
+            + "comment fluidsim frame " + frame + " time " + time + "\n"
+            + "element vertex " + live + "\n"
+            + "property float x\n"
+            + "property float y\n"
+            + "property float z\n"
+            + "property float vx\n"
+            + "property float vy\n"
+            + "property float temperature\n"
+            + "property uchar material\n"
+            + "end_header\n");
+        for (int i = 0; i < count; i++) {
+            if (materials[i] != ParticleStore.DEAD) {
+                out.putFloat(particles[i * 4]).putFloat(particles[i * 4 + 1]).putFloat(0.0f)
+                    .putFloat(particles[i * 4 + 2]).putFloat(particles[i * 4 + 3])
+                    .putFloat(temperatures[i]).putByte(materials[i]);
+            }
+        }
+    }
+
+    public int getExportedFrames() { return exportedFrames.get(); }
+    public int getFailedFrames() { return failedFrames.get(); }
+
+    // Дожидается всех поставленных кадров
+    @Override
+    public void close() {
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Буферизованная запись в канал через direct-буфер потока
+    private static final class Output implements AutoCloseable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+
+        Output(Path file) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+            buffer = CHUNKS.get();
+            buffer.clear();
+        }
+
+        Output putFloat(float value) throws IOException {
+            ensure(Float.BYTES);
+            buffer.putFloat(value);
+            return this;
+        }
+
+        Output putInt(int value) throws IOException {
+            ensure(Integer.BYTES);
+            buffer.putInt(value);
+            return this;
+        }
+
+        Output putLong(long value) throws IOException {
+            ensure(Long.BYTES);
+            buffer.putLong(value);
+            return this;
+        }
+
+        Output putByte(byte value) throws IOException {
+            ensure(1);
+            buffer.put(value);
+            return this;
+        }
+
+        Output putAscii(CharSequence text) throws IOException {
+            byte[] bytes = text.toString().getBytes(StandardCharsets.US_ASCII);
+            int written = 0;
+            while (written < bytes.length) {
+                ensure(1);
+                int n = Math.min(buffer.remaining(), bytes.length - written);
+                buffer.put(bytes, written, n);
+                written += n;
+            }
+            return this;
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+}
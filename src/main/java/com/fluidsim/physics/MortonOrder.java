@@ -0,0 +1,107 @@
+package com.fluidsim.physics;
+
+import java.util.Arrays;
+
+// Перестановка частиц по Z-кривой (код Мортона ячейки), чтобы соседи в пространстве
+// оказывались рядом и в памяти
+public class MortonOrder {
+    // 15 бит на ось: код помещается в положительную старшую половину long
+    private static final int MAX_CELL = (1 << 15) - 1;
+
+    private final float cellSize;
+    private long[] keys = new long[0];
+    private int[] order = new int[0];
+    private float[] floatScratch = new float[0];
+    private int[] intScratch = new int[0];
+    private byte[] byteScratch = new byte[0];
+    private int count;
+
+    public MortonOrder(float cellSize) {
+        this.cellSize = cellSize;
+    }
+
+    // Возвращает false, если частицы уже упорядочены и переставлять нечего
+    public boolean sort(float[] particles, int count) {
+        this.count = count;
+        if (keys.length < count) {
+            keys = new long[count];
+            order = new int[count];
+        }
+
+        float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY;
+        for (int i = 0; i < count; i++) {
+            minX = Math.min(minX, particles[i * 4]);
+            minY = Math.min(minY, particles[i * 4 + 1]);
+        }
+
+        boolean sorted = true;
+        long previous = Long.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            int cx = toCell(particles[i * 4] - minX);
+            int cy = toCell(particles[i * 4 + 1] - minY);
+            long key = ((long)interleave(cx, cy) << 32) | i;
+            keys[i] = key;
+            sorted &= key > previous;
+            previous = key;
+        }
+        if (sorted) {
+            return false;
+        }
+
+        Arrays.sort(keys, 0, count);
+        for (int i = 0; i < count; i++) {
+            order[i] = (int)keys[i];
+        }
+        return true;
+    }
+
+    // Применяет последнюю перестановку на месте; stride - число значений на частицу
+    public void apply(float[] data, int stride) {
+        int length = count * stride;
+        if (floatScratch.length < length) {
+            floatScratch = new float[length];
+        }
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(data, order[i] * stride, floatScratch, i * stride, stride);
+        }
+        System.arraycopy(floatScratch, 0, data, 0, length);
+    }
+
+    public void apply(int[] data) {
+        if (intScratch.length < count) {
+            intScratch = new int[count];
+        }
+        for (int i = 0; i < count; i++) {
+            intScratch[i] = data[order[i]];
+        }
+        System.arraycopy(intScratch, 0, data, 0, count);
+    }
+
+    public void apply(byte[] data) {
+        if (byteScratch.length < count) {
+            byteScratch = new byte[count];
+        }
+        for (int i = 0; i < count; i++) {
+            byteScratch[i] = data[order[i]];
+        }
+        System.arraycopy(byteScratch, 0, data, 0, count);
+    }
+
+    private int toCell(float offset) {
+        int cell = (int)(offset / cellSize);
+        return cell < 0 ? 0 : Math.min(cell, MAX_CELL);
+    }
+
+    static int interleave(int x, int y) {
+        return spreadBits(x) | (spreadBits(y) << 1);
+    }
+
+    private static int spreadBits(int v) {
+        v &= 0x0000ffff;
+        v = (v | (v << 8)) & 0x00ff00ff;
+        v = (v | (v << 4)) & 0x0f0f0f0f;
+        v = (v | (v << 2)) & 0x33333333;
+        v = (v | (v << 1)) & 0x55555555;
+        return v;
+    }
+}
@@ -0,0 +1,198 @@
+package com.fluidsim.physics;
+
+import java.util.Arrays;
+
+// Все данные частиц в одном месте: параллельные массивы с запасом ёмкости и число занятых слотов.
+// Кинематика лежит как x, y, vx, vy подряд - это float4, который читают ядра OpenCL.
+// Цвет не хранится: он следует из материала.
+// Удалённая частица остаётся в своём слоте с материалом DEAD, слот уходит в список свободных
+// и занимается следующим спавном; compact() убирает дыры целиком
+public class ParticleStore {
+    public static final int STRIDE = 4;
+    public static final byte DEAD = (byte)0xFF;
+    private static final int MIN_CAPACITY = 1024;
+
+    private float[] particles = new float[0];
+    private float[] temperatures = new float[0];
+    private byte[] materials = new byte[0];
+    private int[] ids = new int[0];
+    private int count;
+    private int nextId;
+    private int[] freeSlots = new int[0];
+    private int freeCount;
+    // Слоты внутри уже занятого диапазона, переписанные на месте - их нужно донести до решателя
+    private int[] dirtySlots = new int[0];
+    private int dirtyCount;
+    // Растёт при любом изменении состава или порядка частиц
+    private int modCount;
+
+    public void ensureCapacity(int required) {
+        if (required <= temperatures.length) {
+            return;
+        }
+        int capacity = Math.max(Math.max(required, temperatures.length * 2), MIN_CAPACITY);
+        particles = Arrays.copyOf(particles, capacity * STRIDE);
+        temperatures = Arrays.copyOf(temperatures, capacity);
+        materials = Arrays.copyOf(materials, capacity);
+        ids = Arrays.copyOf(ids, capacity);
+    }
+
+    // Новая частица в состоянии покоя, по возможности в освободившемся слоте; возвращает слот
+    public int add(float x, float y, float temperature, int material) {
+        int slot;
+        if (freeCount > 0) {
+            slot = freeSlots[--freeCount];
+            markDirty(slot);
+        } else {
+            ensureCapacity(count + 1);
+            slot = count++;
+        }
+        particles[slot * STRIDE] = x;
+        particles[slot * STRIDE + 1] = y;
+        particles[slot * STRIDE + 2] = 0;
+        particles[slot * STRIDE + 3] = 0;
+        temperatures[slot] = temperature;
+        materials[slot] = (byte)material;
+        ids[slot] = nextId++;
+        modCount++;
+        return slot;
+    }
+
+    // Частица остаётся на месте без скорости, чтобы не портить границы сетки и максимум скорости
+    public boolean remove(int slot) {
+        if (materials[slot] == DEAD) {
+            return false;
+        }
+        particles[slot * STRIDE + 2] = 0;
+        particles[slot * STRIDE + 3] = 0;
+        materials[slot] = DEAD;
+        ids[slot] = -1;
+        addFreeSlot(slot);
+        markDirty(slot);
+        modCount++;
+        return true;
+    }
+
+    // Сдвигает живые частицы к началу с сохранением порядка. Возвращает откуда взят каждый
+    // новый слот, или null, если дыр нет
+    public int[] compact() {
+        if (freeCount == 0) {
+            return null;
+        }
+        int live = count - freeCount;
+        int[] sourceSlots = new int[live];
+        int target = 0;
+        for (int slot = 0; slot < count; slot++) {
+            if (materials[slot] == DEAD) {
+                continue;
+            }
+            if (target != slot) {
+                System.arraycopy(particles, slot * STRIDE, particles, target * STRIDE, STRIDE);
+                temperatures[target] = temperatures[slot];
+                materials[target] = materials[slot];
+                ids[target] = ids[slot];
+            }
+            sourceSlots[target++] = slot;
+        }
+        count = live;
+        freeCount = 0;
+        dirtyCount = 0;
+        modCount++;
+        return sourceSlots;
+    }
+
+    // Мёртвые слоты (снимки, записи) сразу уходят в список свободных, как в restore
+    public void load(float[] particles, float[] temperatures, byte[] materials, int count) {
+        clear();
+        ensureCapacity(count);
+        System.arraycopy(particles, 0, this.particles, 0, count * STRIDE);
+        System.arraycopy(temperatures, 0, this.temperatures, 0, count);
+        System.arraycopy(materials, 0, this.materials, 0, count);
+        for (int i = 0; i < count; i++) {
+            if (materials[i] == DEAD) {
+                ids[i] = -1;
+                addFreeSlot(i);
+            } else {
+                ids[i] = i;
+            }
+        }
+        this.count = count;
+        this.nextId = count;
+    }
+
+    // Возврат к снимку: слоты, ID и мёртвые частицы - ровно как в момент записи
+    public void restore(float[] particles, float[] temperatures, byte[] materials, int[] ids, int count) {
+        ensureCapacity(count);
+        System.arraycopy(particles, 0, this.particles, 0, count * STRIDE);
+        System.arraycopy(temperatures, 0, this.temperatures, 0, count);
+        System.arraycopy(materials, 0, this.materials, 0, count);
+        System.arraycopy(ids, 0, this.ids, 0, count);
+        this.count = count;
+        freeCount = 0;
+        dirtyCount = 0;
+        for (int slot = 0; slot < count; slot++) {
+            if (materials[slot] == DEAD) {
+                addFreeSlot(slot);
+            } else {
+                nextId = Math.max(nextId, ids[slot] + 1);
+            }
+        }
+        modCount++;
+    }
+
+    public void clear() {
+        count = 0;
+        nextId = 0;
+        freeCount = 0;
+        dirtyCount = 0;
+        modCount++;
+    }
+
+    // Перестановка слотов по последней сортировке MortonOrder; дыр к этому моменту быть не должно
+    public void reorder(MortonOrder order) {
+        order.apply(particles, STRIDE);
+        order.apply(temperatures, 1);
+        order.apply(materials);
+        order.apply(ids);
+        modCount++;
+    }
+
+    public float[] copyParticles() {
+        return Arrays.copyOf(particles, count * STRIDE);
+    }
+
+    public void clearDirty() {
+        dirtyCount = 0;
+    }
+
+    private void addFreeSlot(int slot) {
+        if (freeSlots.length == freeCount) {
+            freeSlots = Arrays.copyOf(freeSlots, Math.max(16, freeCount * 2));
+        }
+        freeSlots[freeCount++] = slot;
+    }
+
+    private void markDirty(int slot) {
+        if (dirtySlots.length == dirtyCount) {
+            dirtySlots = Arrays.copyOf(dirtySlots, Math.max(16, dirtyCount * 2));
+        }
+        dirtySlots[dirtyCount++] = slot;
+    }
+
+    public boolean isAlive(int slot) {
+        return materials[slot] != DEAD;
+    }
+
+    public int getCount() { return count; }
+    public int getLiveCount() { return count - freeCount; }
+    public int getFreeCount() { return freeCount; }
+    public int getCapacity() { return temperatures.length; }
+    public int getNextId() { return nextId; }
+    public int getModCount() { return modCount; }
+    public int[] getDirtySlots() { return dirtySlots; }
+    public int getDirtyCount() { return dirtyCount; }
+    public float[] getParticles() { return particles; }
+    public float[] getTemperatures() { return temperatures; }
+    public byte[] getMaterials() { return materials; }
+    public int[] getIds() { return ids; }
+}
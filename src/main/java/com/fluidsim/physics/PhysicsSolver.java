@@ -0,0 +1,41 @@
+package com.fluidsim.physics;
+
+public interface PhysicsSolver extends AutoCloseable {
+    // Считаются первые count частиц; массивы могут быть длиннее (запас ёмкости ParticleStore)
+    float[] updateParticles(int count, float[] particles, float[] temperatures,
+                            byte[] materialIndices, float[] materialProperties,
+                            int width, int height,
+                            int mouseX, int mouseY, float mouseForce,
+                            float deltaTime, float viscosity,
+                            float repulsion, float surfaceTension,
+                            float gravity, float currentMouseForce);
+
+    // Число частиц изменилось, первые частицы остались прежними (спавн, очистка)
+    void updateWorkSize(int size);
+
+    // Содержимое массивов заменено целиком (перемотка, перестановка, загрузка)
+    void invalidateParticles();
+
+    // Хост переписал отдельные слоты на месте (удаление, новая частица в свободном слоте)
+    void invalidateSlots(int[] slots, int count);
+
+    // Массивы хоста уплотнены: слот i теперь содержит бывший слот sourceSlots[i].
+    // Вызывается после finish()
+    void compact(int[] sourceSlots, int count);
+
+    // Хост изменил температуры (кисть, общий ползунок)
+    void invalidateTemperatures();
+
+    // Дождаться незавершённого шага и записать его результат в последние переданные массивы
+    void finish();
+
+    // Наибольшая скорость частицы после последнего шага, для выбора подшага CFL
+    float getMaxSpeed();
+
+    void setDensity(double density);
+
+    String getName();
+
+    @Override
+    void close();
+}
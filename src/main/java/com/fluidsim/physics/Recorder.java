@@ -0,0 +1,211 @@
+package com.fluidsim.physics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.fluidsim.SimulationConstants;
+
+// Запись прогона в файл кадров. Поток симуляции только копирует массивы в свободный буфер
+// из пула и кладёт его в очередь; на диск пишет отдельный поток. Если писатель не успевает
+// и свободных буферов нет, кадр записи пропускается - живая симуляция его не ждёт.
+// Пакетный прогон без окна вместо этого ждёт буфер (blocking), чтобы не терять кадры.
+// Формат: заголовок, кадры подряд, в конце индекс смещений (см. Recording)
+public class Recorder implements AutoCloseable {
+    static final int MAGIC = 0x43525346;  // "FSRC"
+    static final short VERSION = 1;
+    static final int HEADER_BYTES = 8;
+    // Заголовок кадра: время симуляции и число частиц
+    static final int FRAME_HEADER_BYTES = 8;
+    // Хвост файла: смещение индекса, число кадров, MAGIC
+    static final int TRAILER_BYTES = 16;
+
+    private static final class Frame {
+        float time;
+        int count;
+        float[] particles = new float[0];
+        float[] temperatures = new float[0];
+        byte[] materials = new byte[0];
+    }
+
+    private static final Frame END = new Frame();
+
+    private final Path file;
+    private final FileChannel channel;
+    private final BlockingQueue<Frame> free;
+    private final BlockingQueue<Frame> filled;
+    private final Thread writer;
+    private final boolean blocking;
+    private long[] index = new long[1024];
+    private volatile int writtenFrames;
+    private volatile int droppedFrames;
+    private volatile IOException failure;
+    private boolean closed;
+
+    public Recorder(Path file) throws IOException {
+        this(file, false);
+    }
+
+    public Recorder(Path file, boolean blocking) throws IOException {
+        this.file = file;
+        this.blocking = blocking;
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putShort(VERSION).putShort((short)0).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+
+        int queueFrames = SimulationConstants.RECORDER_QUEUE_FRAMES;
+        free = new ArrayBlockingQueue<>(queueFrames);
+        filled = new ArrayBlockingQueue<>(queueFrames + 1);
+        for (int i = 0; i < queueFrames; i++) {
+            free.add(new Frame());
+        }
+        writer = Thread.ofPlatform().name("recorder").daemon().start(this::writeLoop);
+    }
+
+    // Вызывается из потока симуляции после шага. false, если кадр пропущен
+    public boolean record(float time, int count, float[] particles, float[] temperatures, byte[] materials) {
+        Frame frame = failure == null ? nextFreeFrame() : null;
+        if (frame == null) {
+            droppedFrames++;
+            return false;
+        }
+        if (frame.temperatures.length < count) {
+            // С запасом, чтобы буфер не перевыделялся на каждом спавне
+            int capacity = Math.max(count, frame.temperatures.length * 2);
+            frame.particles = new float[capacity * ParticleStore.STRIDE];
+            frame.temperatures = new float[capacity];
+            frame.materials = new byte[capacity];
+        }
+        System.arraycopy(particles, 0, frame.particles, 0, count * ParticleStore.STRIDE);
+        System.arraycopy(temperatures, 0, frame.temperatures, 0, count);
+        System.arraycopy(materials, 0, frame.materials, 0, count);
+        frame.time = time;
+        frame.count = count;
+        filled.add(frame);
+        return true;
+    }
+
+    private Frame nextFreeFrame() {
+        if (!blocking) {
+            return free.poll();
+        }
+        try {
+            return free.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private void writeLoop() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(0);
+        try {
+            while (true) {
+                Frame frame = filled.take();
+                if (frame == END) {
+                    break;
+                }
+                int count = frame.count;
+                int bytes = FRAME_HEADER_BYTES + count * (ParticleStore.STRIDE * 4 + 4 + 1);
+                if (buffer.capacity() < bytes) {
+                    buffer = ByteBuffer.allocateDirect(Math.max(bytes, buffer.capacity() * 2));
+                }
+                buffer.clear();
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                buffer.putFloat(frame.time).putInt(count);
+                buffer.asFloatBuffer().put(frame.particles, 0, count * ParticleStore.STRIDE);
+                buffer.position(buffer.position() + count * ParticleStore.STRIDE * 4);
+                buffer.asFloatBuffer().put(frame.temperatures, 0, count);
+                buffer.position(buffer.position() + count * 4);
+                buffer.put(frame.materials, 0, count);
+                free.add(frame);
+
+                buffer.flip();
+                if (failure == null) {
+                    append(buffer);
+                }
+            }
+            if (failure == null) {
+                writeIndex();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void append(ByteBuffer buffer) {
+        try {
+            long offset = channel.position();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            int frames = writtenFrames;
+            if (frames == index.length) {
+                index = Arrays.copyOf(index, frames * 2);
+            }
+            index[frames] = offset;
+            writtenFrames = frames + 1;
+        } catch (IOException e) {
+            // Дальше кадры только отбрасываются; уже записанное читается и без индекса
+            failure = e;
+            System.err.println("Warning: recording to " + file + " stopped (" + e + ")");
+        }
+    }
+
+    private void writeIndex() {
+        int frames = writtenFrames;
+        ByteBuffer tail = ByteBuffer.allocate(frames * 8 + TRAILER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            long indexOffset = channel.position();
+            for (int i = 0; i < frames; i++) {
+                tail.putLong(index[i]);
+            }
+            tail.putLong(indexOffset).putInt(frames).putInt(MAGIC).flip();
+            while (tail.hasRemaining()) {
+                channel.write(tail);
+            }
+        } catch (IOException e) {
+            failure = e;
+            System.err.println("Warning: index of " + file + " not written (" + e + ")");
+        }
+    }
+
+    public Path getFile() { return file; }
+    public int getWrittenFrames() { return writtenFrames; }
+    public int getDroppedFrames() { return droppedFrames; }
+
+    // Дописывает очередь и индекс; ждёт писателя
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            filled.put(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
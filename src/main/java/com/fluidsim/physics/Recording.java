@@ -0,0 +1,131 @@
+package com.fluidsim.physics;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// Файл кадров, записанный Recorder, открытый отображением в память. Индекс берётся из хвоста
+// файла; если запись оборвалась и хвоста нет, он восстанавливается проходом по кадрам
+public class Recording implements AutoCloseable {
+    private final Arena arena;
+    private final MemorySegment file;
+    private final long[] offsets;
+    private final float[] times;
+
+    private Recording(Arena arena, MemorySegment file, long[] offsets) {
+        this.arena = arena;
+        this.file = file;
+        this.offsets = offsets;
+        this.times = new float[offsets.length];
+        for (int i = 0; i < offsets.length; i++) {
+            times[i] = file.asSlice(offsets[i], Recorder.FRAME_HEADER_BYTES).asByteBuffer()
+                .order(ByteOrder.LITTLE_ENDIAN).getFloat(0);
+        }
+    }
+
+    public static Recording open(Path path) throws IOException {
+        Arena arena = Arena.ofShared();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MemorySegment file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+            if (file.byteSize() < Recorder.HEADER_BYTES || header(file, 0, 4).getInt(0) != Recorder.MAGIC) {
+                throw new IOException(path + " is not a recording");
+            }
+            short version = header(file, 4, 2).getShort(0);
+            if (version > Recorder.VERSION) {
+                throw new IOException("Unsupported recording version " + version);
+            }
+            long[] offsets = readIndex(file);
+            if (offsets == null) {
+                offsets = scanFrames(file);
+            }
+            return new Recording(arena, file, offsets);
+        } catch (IOException | RuntimeException e) {
+            arena.close();
+            throw e;
+        }
+    }
+
+    private static long[] readIndex(MemorySegment file) {
+        long size = file.byteSize();
+        if (size < Recorder.HEADER_BYTES + Recorder.TRAILER_BYTES) {
+            return null;
+        }
+        ByteBuffer trailer = header(file, size - Recorder.TRAILER_BYTES, Recorder.TRAILER_BYTES);
+        long indexOffset = trailer.getLong(0);
+        int frames = trailer.getInt(8);
+        if (trailer.getInt(12) != Recorder.MAGIC || frames < 0
+                || indexOffset < Recorder.HEADER_BYTES || indexOffset + frames * 8L + Recorder.TRAILER_BYTES != size) {
+            return null;
+        }
+        long[] offsets = new long[frames];
+        header(file, indexOffset, frames * 8L).asLongBuffer().get(offsets);
+        return offsets;
+    }
+
+    // Кадры идут подряд, длина кадра следует из числа частиц; недописанный последний отбрасывается
+    private static long[] scanFrames(MemorySegment file) {
+        long[] offsets = new long[1024];
+        int frames = 0;
+        long offset = Recorder.HEADER_BYTES;
+        while (offset + Recorder.FRAME_HEADER_BYTES <= file.byteSize()) {
+            int count = header(file, offset + 4, 4).getInt(0);
+            long next = offset + frameBytes(count);
+            if (count < 0 || next > file.byteSize()) {
+                break;
+            }
+            if (frames == offsets.length) {
+                offsets = Arrays.copyOf(offsets, frames * 2);
+            }
+            offsets[frames++] = offset;
+            offset = next;
+        }
+        return Arrays.copyOf(offsets, frames);
+    }
+
+    private static long frameBytes(int count) {
+        return Recorder.FRAME_HEADER_BYTES + (long)count * (ParticleStore.STRIDE * 4 + 4 + 1);
+    }
+
+    private static ByteBuffer header(MemorySegment file, long offset, long length) {
+        return file.asSlice(offset, length).asByteBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public int getFrameCount() { return offsets.length; }
+    public float getTime(int frame) { return times[frame]; }
+
+    public int getParticleCount(int frame) {
+        return header(file, offsets[frame] + 4, 4).getInt(0);
+    }
+
+    // Последний кадр со временем не позже time
+    public int frameAt(float time) {
+        int found = Arrays.binarySearch(times, time);
+        if (found >= 0) {
+            return found;
+        }
+        return Math.max(0, -found - 2);
+    }
+
+    // Массивы должны вмещать getParticleCount(frame) частиц
+    public void read(int frame, float[] particles, float[] temperatures, byte[] materials) {
+        int count = getParticleCount(frame);
+        ByteBuffer data = header(file, offsets[frame] + Recorder.FRAME_HEADER_BYTES,
+            frameBytes(count) - Recorder.FRAME_HEADER_BYTES);
+        data.asFloatBuffer().get(particles, 0, count * ParticleStore.STRIDE);
+        data.position(count * ParticleStore.STRIDE * 4);
+        data.asFloatBuffer().get(temperatures, 0, count);
+        data.position(data.position() + count * 4);
+        data.get(materials, 0, count);
+    }
+
+    @Override
+    public void close() {
+        arena.close();
+    }
+}
@@ -0,0 +1,149 @@
+package com.fluidsim.physics;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import com.fluidsim.SimulationConstants;
+
+// Описание начального состояния без привязки к экрану и Swing.
+// Формат файла - properties:
+//   width=1280
+//   height=720
+//   viscosity=0.8
+//   block.0=50,50,60,30,water      (x, y, колонки, строки, материал)
+//   block.0.spacing=15
+//   block.0.temperature=20
+public class Scene {
+    private static final String[] MATERIAL_NAMES = {"water", "oil", "mercury", "gasoline", "glycerin"};
+
+    private final int width;
+    private final int height;
+    private float viscosity = SimulationConstants.INITIAL_VISCOSITY;
+    private float repulsion = SimulationConstants.INITIAL_REPULSION;
+    private float surfaceTension = SimulationConstants.INITIAL_SURFACE_TENSION;
+    private float gravity = SimulationConstants.INITIAL_GRAVITY;
+    private final List<Block> blocks = new ArrayList<>();
+
+    public Scene(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    // Та же сетка, что SimulationPanel строит под размер экрана
+    public static Scene defaultScene(int screenWidth, int screenHeight) {
+        int margin = SimulationConstants.SCREEN_MARGIN;
+        int usableWidth = screenWidth - 2 * margin - SimulationConstants.CONTROL_PANEL_WIDTH;
+        int usableHeight = screenHeight - 2 * margin;
+
+        Scene scene = new Scene(screenWidth - SimulationConstants.CONTROL_PANEL_WIDTH, screenHeight);
+        scene.addBlock(new Block(margin, margin,
+            Math.max(0, usableWidth / SimulationConstants.PARTICLE_SPACING),
+            Math.max(0, usableHeight / SimulationConstants.PARTICLE_SPACING),
+            SimulationConstants.PARTICLE_SPACING, 0, SimulationConstants.INITIAL_TEMPERATURE));
+        return scene;
+    }
+
+    public static Scene load(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file)) {
+            properties.load(reader);
+        }
+
+        Scene scene = new Scene(
+            Integer.parseInt(properties.getProperty("width", "1280").trim()),
+            Integer.parseInt(properties.getProperty("height", "720").trim()));
+        scene.viscosity = floatProperty(properties, "viscosity", scene.viscosity);
+        scene.repulsion = floatProperty(properties, "repulsion", scene.repulsion);
+        scene.surfaceTension = floatProperty(properties, "surfaceTension", scene.surfaceTension);
+        scene.gravity = floatProperty(properties, "gravity", scene.gravity);
+
+        for (int i = 0; properties.containsKey("block." + i); i++) {
+            String prefix = "block." + i;
+            String[] parts = properties.getProperty(prefix).split(",");
+            if (parts.length < 4) {
+                throw new IOException(prefix + ": expected x,y,cols,rows[,material]");
+            }
+            scene.addBlock(new Block(
+                Float.parseFloat(parts[0].trim()),
+                Float.parseFloat(parts[1].trim()),
+                Integer.parseInt(parts[2].trim()),
+                Integer.parseInt(parts[3].trim()),
+                floatProperty(properties, prefix + ".spacing", SimulationConstants.PARTICLE_SPACING),
+                parts.length > 4 ? parseMaterial(prefix, parts[4].trim()) : 0,
+                floatProperty(properties, prefix + ".temperature", SimulationConstants.INITIAL_TEMPERATURE)));
+        }
+        return scene;
+    }
+
+    public void addBlock(Block block) {
+        blocks.add(block);
+    }
+
+    public int getParticleCount() {
+        int count = 0;
+        for (Block block : blocks) {
+            count += block.cols() * block.rows();
+        }
+        return count;
+    }
+
+    public SimulationState createState(float[] materialProperties) {
+        int count = getParticleCount();
+        float[] particles = new float[count * 4];
+        float[] temperatures = new float[count];
+        byte[] materials = new byte[count];
+
+        int idx = 0;
+        for (Block block : blocks) {
+            for (int i = 0; i < block.rows(); i++) {
+                for (int j = 0; j < block.cols(); j++) {
+                    particles[idx * 4] = block.x() + j * block.spacing();
+                    particles[idx * 4 + 1] = block.y() + i * block.spacing();
+                    temperatures[idx] = block.temperature();
+                    materials[idx] = (byte)block.material();
+                    idx++;
+                }
+            }
+        }
+
+        return new SimulationState(particles, temperatures, materials, materialProperties,
+            width, height, 0, viscosity, repulsion, surfaceTension, gravity,
+            0, 0, SimulationConstants.INITIAL_MOUSE_FORCE);
+    }
+
+    public int getWidth() { return width; }
+    public int getHeight() { return height; }
+
+    // Имя или номер материала; номер за пределами таблицы вывел бы решатели за materialProperties,
+    // а после обрезки до байта мог бы совпасть с ParticleStore.DEAD
+    private static int parseMaterial(String key, String value) {
+        for (int i = 0; i < MATERIAL_NAMES.length; i++) {
+            if (MATERIAL_NAMES[i].equalsIgnoreCase(value)) {
+                return i;
+            }
+        }
+        int material;
+        try {
+            material = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + ": unknown material '" + value + "'");
+        }
+        if (material < 0 || material >= MATERIAL_NAMES.length) {
+            throw new IllegalArgumentException(key + ": material " + material + " is outside 0.."
+                + (MATERIAL_NAMES.length - 1));
+        }
+        return material;
+    }
+
+    private static float floatProperty(Properties properties, String key, float defaultValue) {
+        String value = properties.getProperty(key);
+        return value != null ? Float.parseFloat(value.trim()) : defaultValue;
+    }
+
+    public record Block(float x, float y, int cols, int rows, float spacing, int material, float temperature) {}
+}
@@ -1,13 +1,16 @@
 package com.fluidsim.physics;
 
 import java.io.Serializable;
+import java.util.Arrays;
 
 public class SimulationState implements Serializable {
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 2L;
     
+    // Массивы могут быть длиннее: живых частиц particleCount, остальное - запас ParticleStore
+    private final int particleCount;
     private final float[] particles;
     private final float[] temperatures;
-    private final int[] materialIndices;
+    private final byte[] materialIndices;
     private final float[] materialProperties;
     private final int width;
     private final int height;
@@ -21,13 +24,23 @@ public class SimulationState implements Serializable {
     private final float currentMouseForce;
 
     public SimulationState() {
-        this(new float[0], new float[0], new int[0], new float[0], 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+        this(new float[0], new float[0], new byte[0], new float[0], 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
     }
     
-    public SimulationState(float[] particles, float[] temperatures, int[] materialIndices,
+    public SimulationState(float[] particles, float[] temperatures, byte[] materialIndices,
                           float[] materialProperties, int width, int height, float mouseForce, 
                           float viscosity, float repulsion, float surfaceTension, float gravity,
                           int mouseX, int mouseY, float currentMouseForce) {
+        this(particles.length / 4, particles, temperatures, materialIndices, materialProperties,
+            width, height, mouseForce, viscosity, repulsion, surfaceTension, gravity,
+            mouseX, mouseY, currentMouseForce);
+    }
+
+    public SimulationState(int particleCount, float[] particles, float[] temperatures, byte[] materialIndices,
+                          float[] materialProperties, int width, int height, float mouseForce, 
+                          float viscosity, float repulsion, float surfaceTension, float gravity,
+                          int mouseX, int mouseY, float currentMouseForce) {
+        this.particleCount = particleCount;
         this.particles = particles;
         this.temperatures = temperatures;
         this.materialIndices = materialIndices;
@@ -44,9 +57,10 @@ public class SimulationState implements Serializable {
         this.currentMouseForce = currentMouseForce;
     }
 
+    public int getParticleCount() { return particleCount; }
     public float[] getParticles() { return particles; }
     public float[] getTemperatures() { return temperatures; }
-    public int[] getMaterialIndices() { return materialIndices; }
+    public byte[] getMaterialIndices() { return materialIndices; }
     public float[] getMaterialProperties() { return materialProperties; }
     public int getWidth() { return width; }
     public int getHeight() { return height; }
@@ -60,12 +74,33 @@ public class SimulationState implements Serializable {
     public float getCurrentMouseForce() { return currentMouseForce; }
 
     public SimulationState withParticles(float[] newParticles) {
-        return new SimulationState(newParticles, temperatures, materialIndices, materialProperties,
+        return new SimulationState(particleCount, newParticles, temperatures, materialIndices, materialProperties,
+            width, height, mouseForce, viscosity, repulsion, surfaceTension,
+            gravity, mouseX, mouseY, currentMouseForce);
+    }
+    
+    // Тот же набор параметров с другим составом частиц (кадр записи)
+    public SimulationState withFrame(int count, float[] newParticles, float[] newTemperatures, byte[] newMaterials) {
+        return new SimulationState(count, newParticles, newTemperatures, newMaterials, materialProperties,
             width, height, mouseForce, viscosity, repulsion, surfaceTension,
             gravity, mouseX, mouseY, currentMouseForce);
     }
     
     public boolean hasParticles() {
-        return particles != null && particles.length > 0;
+        return particleCount > 0;
+    }
+
+    // Копия без запаса ёмкости - для сохранения на диск
+    public SimulationState compact() {
+        if (particles.length == particleCount * 4 && temperatures.length == particleCount
+                && materialIndices.length == particleCount) {
+            return this;
+        }
+        return new SimulationState(particleCount,
+            Arrays.copyOf(particles, particleCount * 4),
+            Arrays.copyOf(temperatures, particleCount),
+            Arrays.copyOf(materialIndices, particleCount),
+            materialProperties, width, height, mouseForce, viscosity, repulsion, surfaceTension,
+            gravity, mouseX, mouseY, currentMouseForce);
     }
 } 
\ No newline at end of file
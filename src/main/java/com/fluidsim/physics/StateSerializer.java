@@ -1,24 +1,282 @@
 package com.fluidsim.physics;
 
-import java.io.*;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
+// Снимок состояния в бинарном колоночном формате: заголовок со скалярами и таблицей секций,
+// дальше каждое поле одним непрерывным куском (little-endian). Пишется через FileChannel,
+// читается отображением файла в память. Секции можно сжимать Deflater'ом.
+// Заголовок проверяется целиком: битый или чужой файл даёт IOException, а не падение загрузки.
+// Старые снимки ObjectOutputStream не читаются: класс состояния с тех пор изменился
 public class StateSerializer {
+    private static final int MAGIC = 0x4D495346;  // "FSIM"
+    private static final short VERSION = 1;
+    private static final short FLAG_DEFLATE = 1;
+
+    private static final int SECTION_PARTICLES = 1;
+    private static final int SECTION_TEMPERATURES = 2;
+    private static final int SECTION_MATERIALS = 3;
+    private static final int SECTION_MATERIAL_PROPERTIES = 4;
+    private static final int SECTION_COUNT = 4;
+
+    // magic, версия, флаги, число секций, 5 int и 6 float скаляров
+    private static final int SCALARS_BYTES = 4 + 2 + 2 + 4 + 5 * 4 + 6 * 4;
+    // id секции, смещение, длина в файле, длина без сжатия
+    private static final int SECTION_ENTRY_BYTES = 4 + 8 + 8 + 8;
+    private static final int HEADER_BYTES = SCALARS_BYTES + SECTION_COUNT * SECTION_ENTRY_BYTES;
+    private static final int CHUNK_BYTES = 1 << 20;
+    // Байт на частицу во всех секциях: x, y, vx, vy, температура, материал
+    private static final int PARTICLE_BYTES = 4 * Float.BYTES + Float.BYTES + 1;
+    // Предел сжатия Deflate - около 1032:1; больше из файла не распаковать
+    private static final long MAX_DEFLATE_RATIO = 1032;
+
     public static void saveState(SimulationState state, String filename) {
-        try (ObjectOutputStream out = new ObjectOutputStream(
-                new FileOutputStream(filename))) {
-            out.writeObject(state);
+        saveState(state, filename, false);
+    }
+
+    public static void saveState(SimulationState state, String filename, boolean compress) {
+        try (FileChannel channel = FileChannel.open(Path.of(filename), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            write(state.compact(), channel, compress);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
-    
+
     public static SimulationState loadState(String filename) {
-        try (ObjectInputStream in = new ObjectInputStream(
-                new FileInputStream(filename))) {
-            return (SimulationState) in.readObject();
-        } catch (IOException | ClassNotFoundException e) {
+        try (FileChannel channel = FileChannel.open(Path.of(filename), StandardOpenOption.READ);
+             Arena arena = Arena.ofConfined()) {
+            // Отображение закрывается вместе с ареной, а не когда до него доберётся сборщик
+            MemorySegment file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+            return read(file);
+        } catch (IOException | DataFormatException e) {
             e.printStackTrace();
             return new SimulationState();
         }
     }
-} 
\ No newline at end of file
+
+    private static void write(SimulationState state, FileChannel channel, boolean compress) throws IOException {
+        int count = state.getParticleCount();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC)
+            .putShort(VERSION)
+            .putShort(compress ? FLAG_DEFLATE : 0)
+            .putInt(SECTION_COUNT)
+            .putInt(count)
+            .putInt(state.getWidth())
+            .putInt(state.getHeight())
+            .putInt(state.getMouseX())
+            .putInt(state.getMouseY())
+            .putFloat(state.getMouseForce())
+            .putFloat(state.getViscosity())
+            .putFloat(state.getRepulsion())
+            .putFloat(state.getSurfaceTension())
+            .putFloat(state.getGravity())
+            .putFloat(state.getCurrentMouseForce());
+
+        // Заголовок пишется последним, когда известны размеры сжатых секций
+        channel.position(HEADER_BYTES);
+        ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer compressed = compress ? ByteBuffer.allocateDirect(CHUNK_BYTES) : null;
+        Deflater deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+        try {
+            writeSection(channel, header, chunk, compressed, deflater, SECTION_PARTICLES,
+                state.getParticles(), count * 4);
+            writeSection(channel, header, chunk, compressed, deflater, SECTION_TEMPERATURES,
+                state.getTemperatures(), count);
+            writeSection(channel, header, chunk, compressed, deflater, SECTION_MATERIALS,
+                state.getMaterialIndices(), count);
+            float[] properties = state.getMaterialProperties();
+            writeSection(channel, header, chunk, compressed, deflater, SECTION_MATERIAL_PROPERTIES,
+                properties, properties.length);
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+    }
+
+    // Массив кусками через direct-буфер: без промежуточной копии всего поля в куче
+    private static void writeSection(FileChannel channel, ByteBuffer header, ByteBuffer chunk,
+                                     ByteBuffer compressed, Deflater deflater,
+                                     int id, Object array, int length) throws IOException {
+        int elementBytes = array instanceof float[] ? Float.BYTES : Byte.BYTES;
+        long rawLength = (long)length * elementBytes;
+        long offset = channel.position();
+        int perChunk = CHUNK_BYTES / elementBytes;
+        if (deflater != null) {
+            deflater.reset();
+        }
+
+        // Пустая секция тоже проходит один раз: сжатому потоку нужен завершающий блок
+        int start = 0;
+        do {
+            int n = Math.min(perChunk, length - start);
+            chunk.clear();
+            if (array instanceof float[] floats) {
+                chunk.asFloatBuffer().put(floats, start, n);
+            } else {
+                chunk.put((byte[])array, start, n);
+            }
+            chunk.position(0).limit(n * elementBytes);
+            start += n;
+
+            if (deflater == null) {
+                while (chunk.hasRemaining()) {
+                    channel.write(chunk);
+                }
+                continue;
+            }
+            boolean last = start == length;
+            deflater.setInput(chunk);
+            if (last) {
+                deflater.finish();
+            }
+            while (last ? !deflater.finished() : !deflater.needsInput()) {
+                compressed.clear();
+                deflater.deflate(compressed);
+                compressed.flip();
+                while (compressed.hasRemaining()) {
+                    channel.write(compressed);
+                }
+            }
+        } while (start < length);
+
+        header.putInt(id)
+            .putLong(offset)
+            .putLong(channel.position() - offset)
+            .putLong(rawLength);
+    }
+
+    private static SimulationState read(MemorySegment file) throws IOException, DataFormatException {
+        long fileBytes = file.byteSize();
+        if (fileBytes < SCALARS_BYTES) {
+            throw new IOException("Not a snapshot: " + fileBytes + " bytes");
+        }
+        ByteBuffer header = file.asSlice(0, Math.min(fileBytes, Integer.MAX_VALUE)).asByteBuffer()
+            .order(ByteOrder.LITTLE_ENDIAN);
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not a snapshot (no FSIM magic; Java-serialized snapshots are not supported)");
+        }
+        short version = header.getShort();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        boolean deflated = (header.getShort() & FLAG_DEFLATE) != 0;
+        int sections = header.getInt();
+        int count = header.getInt();
+        int width = header.getInt();
+        int height = header.getInt();
+        int mouseX = header.getInt();
+        int mouseY = header.getInt();
+        float mouseForce = header.getFloat();
+        float viscosity = header.getFloat();
+        float repulsion = header.getFloat();
+        float surfaceTension = header.getFloat();
+        float gravity = header.getFloat();
+        float currentMouseForce = header.getFloat();
+
+        if (sections < 0 || sections > (fileBytes - SCALARS_BYTES) / SECTION_ENTRY_BYTES) {
+            throw new IOException("Snapshot section table does not fit the file: " + sections + " sections");
+        }
+        // Данные частиц должны помещаться в файл (сжатые - с учётом предела сжатия)
+        long maxRawBytes = deflated ? fileBytes * MAX_DEFLATE_RATIO : fileBytes;
+        if (count < 0 || count > (Integer.MAX_VALUE - 8) / 4 || (long)count * PARTICLE_BYTES > maxRawBytes) {
+            throw new IOException("Snapshot particle count " + count + " does not fit the file");
+        }
+
+        float[] particles = new float[count * 4];
+        float[] temperatures = new float[count];
+        byte[] materials = new byte[count];
+        float[] properties = new float[0];
+        int found = 0;
+        // Неизвестные секции из более новых версий пропускаются
+        for (int i = 0; i < sections; i++) {
+            int id = header.getInt();
+            long offset = header.getLong();
+            long length = header.getLong();
+            long rawLength = header.getLong();
+            if (offset < 0 || length < 0 || offset > fileBytes - length) {
+                throw new IOException("Snapshot section " + id + " is truncated");
+            }
+            if (rawLength < 0 || (deflated ? rawLength > length * MAX_DEFLATE_RATIO : rawLength != length)) {
+                throw new IOException("Snapshot section " + id + " has inconsistent length " + rawLength);
+            }
+            long expected = switch (id) {
+                case SECTION_PARTICLES -> (long)particles.length * Float.BYTES;
+                case SECTION_TEMPERATURES -> (long)temperatures.length * Float.BYTES;
+                case SECTION_MATERIALS -> materials.length;
+                case SECTION_MATERIAL_PROPERTIES -> rawLength - rawLength % Float.BYTES;
+                default -> -1;
+            };
+            if (expected < 0) {
+                continue;
+            }
+            if (rawLength != expected) {
+                throw new IOException("Snapshot section " + id + " holds " + rawLength + " bytes, expected " + expected);
+            }
+            ByteBuffer data = section(file.asSlice(offset, length), rawLength, deflated);
+            switch (id) {
+                case SECTION_PARTICLES -> data.asFloatBuffer().get(particles);
+                case SECTION_TEMPERATURES -> data.asFloatBuffer().get(temperatures);
+                case SECTION_MATERIALS -> data.get(materials);
+                case SECTION_MATERIAL_PROPERTIES -> {
+                    properties = new float[(int)(rawLength / Float.BYTES)];
+                    data.asFloatBuffer().get(properties);
+                }
+                default -> { }
+            }
+            found |= 1 << id;
+        }
+        int required = (1 << SECTION_PARTICLES) | (1 << SECTION_TEMPERATURES) | (1 << SECTION_MATERIALS);
+        if ((found & required) != required) {
+            throw new IOException("Snapshot is missing particle sections");
+        }
+
+        return new SimulationState(count, particles, temperatures, materials, properties,
+            width, height, mouseForce, viscosity, repulsion, surfaceTension, gravity,
+            mouseX, mouseY, currentMouseForce);
+    }
+
+    // Несжатая секция читается прямо из отображения, сжатая распаковывается в кучу
+    // и должна дать ровно rawLength байт
+    private static ByteBuffer section(MemorySegment stored, long rawLength, boolean deflated)
+            throws IOException, DataFormatException {
+        if (!deflated) {
+            return stored.asByteBuffer().order(ByteOrder.LITTLE_ENDIAN);
+        }
+        if (rawLength > Integer.MAX_VALUE - 8) {
+            throw new IOException("Snapshot section is too large: " + rawLength + " bytes");
+        }
+        ByteBuffer raw = ByteBuffer.allocate((int)rawLength).order(ByteOrder.LITTLE_ENDIAN);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored.asByteBuffer());
+            while (raw.hasRemaining() && !inflater.finished()) {
+                if (inflater.inflate(raw) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Snapshot section ends early");
+                }
+            }
+        } finally {
+            inflater.end();
+        }
+        if (raw.hasRemaining()) {
+            throw new DataFormatException("Snapshot section ends early");
+        }
+        return raw.flip();
+    }
+}
@@ -0,0 +1,432 @@
+package com.fluidsim.physics;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import com.fluidsim.SimulationConstants;
+
+// Длинная история для перемотки. Кадры идут сегментами: полный ключевой кадр и за ним
+// дельты в Float16 к восстановленному предыдущему кадру, так что ошибка квантования
+// не накапливается. Сегмент закрывается каждые TIMELINE_KEYFRAME_INTERVAL кадров или
+// при изменении состава/порядка частиц. Закрытые сегменты держатся в куче в пределах
+// TIMELINE_MEMORY_BYTES, старые уходят в отображённый в память файл, который пишется по кругу
+public class Timeline implements AutoCloseable {
+    // Заголовок сегмента: число частиц и число кадров
+    private static final int HEADER_BYTES = 8;
+    private static final int DELTA_COMPONENTS = ParticleStore.STRIDE + 1;
+
+    private static class Segment {
+        final int count;
+        final int frames;
+        final int length;
+        byte[] data;       // в куче, пока не вытеснен в файл
+        long offset = -1;  // место в файле после вытеснения
+
+        Segment(int count, int frames, byte[] data) {
+            this.count = count;
+            this.frames = frames;
+            this.length = data.length;
+            this.data = data;
+        }
+    }
+
+    private final ArrayDeque<Segment> sealed = new ArrayDeque<>();
+    private long heapBytes;
+    private int totalFrames;
+    private int maxFrames;
+    private final long memoryBytes;
+    private final long spillBytes;
+
+    // Текущий сегмент: кодируется прямо в буфер, prev* - восстановленный последний кадр
+    private ByteBuffer build = ByteBuffer.allocate(0).order(ByteOrder.LITTLE_ENDIAN);
+    private int buildFrames;
+    private int buildCount;
+    private int buildModCount;
+    private float[] prevParticles = new float[0];
+    private float[] prevTemperatures = new float[0];
+    private int[] keyIds = new int[0];
+    private byte[] keyMaterials = new byte[0];
+
+    private FileChannel spillChannel;
+    private Arena spillArena;
+    private MemorySegment spill;
+    private long spillWritePosition;
+    private boolean spillFailed;
+
+    public Timeline(int maxFrames) {
+        this(maxFrames, SimulationConstants.TIMELINE_MEMORY_BYTES, SimulationConstants.TIMELINE_SPILL_BYTES);
+    }
+
+    // Пределы кучи и файла задаются отдельно, чтобы тесты доходили до вытеснения и круга
+    Timeline(int maxFrames, long memoryBytes, long spillBytes) {
+        this.maxFrames = Math.max(0, maxFrames);
+        this.memoryBytes = memoryBytes;
+        this.spillBytes = spillBytes;
+    }
+
+    public void push(ParticleStore store) {
+        if (maxFrames == 0) {
+            return;
+        }
+        boolean appended = buildFrames > 0
+            && buildFrames < SimulationConstants.TIMELINE_KEYFRAME_INTERVAL
+            && buildModCount == store.getModCount()
+            && buildCount == store.getCount()
+            && appendDelta(store);
+        if (!appended) {
+            if (buildFrames > 0) {
+                seal();
+            }
+            startSegment(store);
+        }
+        totalFrames++;
+        trim();
+    }
+
+    // Возвращает хранилище к самому свежему кадру и убирает кадр из истории
+    public boolean pop(ParticleStore store) {
+        if (buildFrames == 0 && !reopenLastSegment()) {
+            return false;
+        }
+        store.restore(prevParticles, prevTemperatures, keyMaterials, keyIds, buildCount);
+        // После restore раскладка хранилища совпадает с сегментом - дельты можно продолжать
+        buildModCount = store.getModCount();
+
+        int frame = buildFrames - 1;
+        if (frame > 0) {
+            // Шаг назад вычитанием дельты: расхождение с прямым декодированием - в пределах ulp
+            int position = deltaPosition(buildCount, frame);
+            applyDelta(build, position, buildCount, prevParticles, prevTemperatures, -1.0f);
+            build.position(position);
+        }
+        buildFrames = frame;
+        totalFrames--;
+        return true;
+    }
+
+    public void setMaxFrames(int maxFrames) {
+        this.maxFrames = Math.max(0, maxFrames);
+        if (this.maxFrames == 0) {
+            clear();
+        }
+        trim();
+    }
+
+    // Файл и буферы остаются для следующей записи
+    public void clear() {
+        sealed.clear();
+        heapBytes = 0;
+        totalFrames = 0;
+        buildFrames = 0;
+        spillWritePosition = 0;
+    }
+
+    public boolean isEmpty() { return totalFrames == 0; }
+    public int size() { return totalFrames; }
+
+    @Override
+    public void close() {
+        clear();
+        releaseSpill();
+    }
+
+    private void releaseSpill() {
+        spill = null;
+        if (spillArena != null) {
+            spillArena.close();
+            spillArena = null;
+        }
+        if (spillChannel != null) {
+            try {
+                spillChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            spillChannel = null;
+        }
+    }
+
+    private void startSegment(ParticleStore store) {
+        int count = store.getCount();
+        ensureBuild(keyframeBytes(count));
+        build.clear();
+        build.putInt(count).putInt(0);
+        int[] ids = store.getIds();
+        byte[] materials = store.getMaterials();
+        float[] particles = store.getParticles();
+        float[] temperatures = store.getTemperatures();
+        for (int i = 0; i < count; i++) {
+            build.putInt(ids[i]);
+        }
+        build.put(materials, 0, count);
+        for (int i = 0; i < count * ParticleStore.STRIDE; i++) {
+            build.putFloat(particles[i]);
+        }
+        for (int i = 0; i < count; i++) {
+            build.putFloat(temperatures[i]);
+        }
+
+        if (prevTemperatures.length < count) {
+            prevParticles = new float[store.getCapacity() * ParticleStore.STRIDE];
+            prevTemperatures = new float[store.getCapacity()];
+            keyIds = new int[store.getCapacity()];
+            keyMaterials = new byte[store.getCapacity()];
+        }
+        System.arraycopy(particles, 0, prevParticles, 0, count * ParticleStore.STRIDE);
+        System.arraycopy(temperatures, 0, prevTemperatures, 0, count);
+        System.arraycopy(ids, 0, keyIds, 0, count);
+        System.arraycopy(materials, 0, keyMaterials, 0, count);
+        buildCount = count;
+        buildModCount = store.getModCount();
+        buildFrames = 1;
+    }
+
+    // false, если какая-то разница не влезает в Float16 - тогда начинается новый сегмент
+    private boolean appendDelta(ParticleStore store) {
+        int count = buildCount;
+        ensureBuild(build.position() + (long)count * DELTA_COMPONENTS * 2);
+        int start = build.position();
+        float[] particles = store.getParticles();
+        float[] temperatures = store.getTemperatures();
+        for (int i = 0; i < count * ParticleStore.STRIDE; i++) {
+            short half = Float.floatToFloat16(particles[i] - prevParticles[i]);
+            if (Float.isInfinite(Float.float16ToFloat(half))) {
+                build.position(start);
+                return false;
+            }
+            build.putShort(half);
+        }
+        for (int i = 0; i < count; i++) {
+            short half = Float.floatToFloat16(temperatures[i] - prevTemperatures[i]);
+            if (Float.isInfinite(Float.float16ToFloat(half))) {
+                build.position(start);
+                return false;
+            }
+            build.putShort(half);
+        }
+        // Следующая дельта считается от того, что восстановит декодер, а не от точных значений
+        applyDelta(build, start, count, prevParticles, prevTemperatures, 1.0f);
+        buildFrames++;
+        return true;
+    }
+
+    private static void applyDelta(ByteBuffer data, int position, int count,
+                                   float[] particles, float[] temperatures, float sign) {
+        for (int i = 0; i < count * ParticleStore.STRIDE; i++) {
+            particles[i] += sign * Float.float16ToFloat(data.getShort(position));
+            position += 2;
+        }
+        for (int i = 0; i < count; i++) {
+            temperatures[i] += sign * Float.float16ToFloat(data.getShort(position));
+            position += 2;
+        }
+    }
+
+    private static int keyframeBytes(int count) {
+        return HEADER_BYTES + count * (4 + 1 + ParticleStore.STRIDE * 4 + 4);
+    }
+
+    // Начало дельты кадра frame (кадр 0 - ключевой)
+    private static int deltaPosition(int count, int frame) {
+        return keyframeBytes(count) + (frame - 1) * count * DELTA_COMPONENTS * 2;
+    }
+
+    // Ключевой кадр в массивы и frames - 1 дельт поверх
+    private void readSegment(ByteBuffer data, int count, int frames,
+                             float[] particles, float[] temperatures, int[] ids, byte[] materials) {
+        int position = HEADER_BYTES;
+        for (int i = 0; i < count; i++) {
+            ids[i] = data.getInt(position);
+            position += 4;
+        }
+        data.get(position, materials, 0, count);
+        position += count;
+        for (int i = 0; i < count * ParticleStore.STRIDE; i++) {
+            particles[i] = data.getFloat(position);
+            position += 4;
+        }
+        for (int i = 0; i < count; i++) {
+            temperatures[i] = data.getFloat(position);
+            position += 4;
+        }
+        for (int frame = 1; frame < frames; frame++) {
+            applyDelta(data, deltaPosition(count, frame), count, particles, temperatures, 1.0f);
+        }
+    }
+
+    // Последний закрытый сегмент снова становится текущим, чтобы перемотка шла дальше назад
+    private boolean reopenLastSegment() {
+        Segment segment = sealed.pollLast();
+        if (segment == null) {
+            return false;
+        }
+        ByteBuffer data = segmentData(segment);
+        if (segment.data != null) {
+            heapBytes -= segment.length;
+        } else {
+            // Он же был записан в файл последним - место можно переписать
+            spillWritePosition = segment.offset;
+        }
+        ensureBuild(segment.length);
+        build.clear();
+        build.put(0, data, 0, segment.length);
+        build.position(segment.length);
+
+        int count = segment.count;
+        if (prevTemperatures.length < count) {
+            prevParticles = new float[count * ParticleStore.STRIDE];
+            prevTemperatures = new float[count];
+            keyIds = new int[count];
+            keyMaterials = new byte[count];
+        }
+        readSegment(build, count, segment.frames, prevParticles, prevTemperatures, keyIds, keyMaterials);
+        buildCount = count;
+        buildFrames = segment.frames;
+        return true;
+    }
+
+    private void seal() {
+        build.putInt(4, buildFrames);
+        Segment segment = new Segment(buildCount, buildFrames, Arrays.copyOf(build.array(), build.position()));
+        buildFrames = 0;
+        sealed.addLast(segment);
+        heapBytes += segment.length;
+
+        // Вытесняем самые старые сегменты из кучи; без файла они просто отбрасываются
+        while (heapBytes > memoryBytes) {
+            Segment candidate = oldestInHeap();
+            if (candidate == null) {
+                break;
+            }
+            if (!spill(candidate)) {
+                dropOldestUntil(candidate);
+            }
+        }
+    }
+
+    // Вытесненные сегменты всегда идут первыми, так что это первый с данными в куче
+    private Segment oldestInHeap() {
+        for (Segment segment : sealed) {
+            if (segment.data != null) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    private boolean spill(Segment segment) {
+        if (!ensureSpillFile() || segment.length > spill.byteSize()) {
+            return false;
+        }
+        if (spillWritePosition + segment.length > spill.byteSize()) {
+            // Новый круг. Сегменты прошлого круга за указателем старше всех, что записаны с начала
+            // файла, и стоят в голове очереди - уходят все сразу. Иначе проверка ниже остановится
+            // на таком сегменте выше end и не заметит более новые, которые запись перекроет
+            while (!sealed.isEmpty()) {
+                Segment head = sealed.peekFirst();
+                if (head.data != null || head.offset < spillWritePosition) {
+                    break;
+                }
+                totalFrames -= head.frames;
+                sealed.pollFirst();
+            }
+            spillWritePosition = 0;
+        }
+        long start = spillWritePosition;
+        long end = start + segment.length;
+        // Файл пишется по кругу: самые старые сегменты лежат как раз там, куда пишем
+        while (!sealed.isEmpty()) {
+            Segment head = sealed.peekFirst();
+            if (head.data != null || head.offset >= end || head.offset + head.length <= start) {
+                break;
+            }
+            totalFrames -= head.frames;
+            sealed.pollFirst();
+        }
+        spill.asSlice(start, segment.length).asByteBuffer().put(segment.data);
+        heapBytes -= segment.length;
+        segment.offset = start;
+        segment.data = null;
+        spillWritePosition = end;
+        return true;
+    }
+
+    private boolean ensureSpillFile() {
+        if (spill != null) {
+            return true;
+        }
+        if (spillFailed) {
+            return false;
+        }
+        try {
+            // SPARSE учитывается только при CREATE_NEW, поэтому файл создаётся здесь же, а не
+            // createTempFile. На NTFS без него отображение зарезервировало бы весь spillBytes;
+            // в ext4/APFS файл разрежён и так. На ФС без разрежённых файлов место занимается целиком
+            Path directory = Files.createTempDirectory("fluidsim-timeline");
+            directory.toFile().deleteOnExit();
+            Path file = directory.resolve("spill.bin");
+            file.toFile().deleteOnExit();
+            spillChannel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.SPARSE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+            spillArena = Arena.ofShared();
+            spill = spillChannel.map(FileChannel.MapMode.READ_WRITE, 0, spillBytes, spillArena);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            System.err.println("Warning: timeline spill file unavailable (" + e + "), old history will be dropped");
+            spillFailed = true;
+            releaseSpill();
+            return false;
+        }
+    }
+
+    private ByteBuffer segmentData(Segment segment) {
+        ByteBuffer data = segment.data != null
+            ? ByteBuffer.wrap(segment.data)
+            : spill.asSlice(segment.offset, segment.length).asByteBuffer();
+        return data.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void dropOldestUntil(Segment last) {
+        while (!sealed.isEmpty()) {
+            Segment head = sealed.pollFirst();
+            totalFrames -= head.frames;
+            if (head.data != null) {
+                heapBytes -= head.length;
+            }
+            if (head == last) {
+                return;
+            }
+        }
+    }
+
+    // Целыми сегментами, но не меньше maxFrames кадров
+    private void trim() {
+        while (!sealed.isEmpty() && totalFrames - sealed.peekFirst().frames >= maxFrames) {
+            Segment head = sealed.pollFirst();
+            totalFrames -= head.frames;
+            if (head.data != null) {
+                heapBytes -= head.length;
+            }
+        }
+    }
+
+    private void ensureBuild(long required) {
+        if (required <= build.capacity()) {
+            return;
+        }
+        int capacity = (int)Math.min(Integer.MAX_VALUE - 8, Math.max(required, (long)build.capacity() * 2));
+        ByteBuffer grown = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+        grown.put(0, build, 0, build.position());
+        grown.position(build.position());
+        build = grown;
+    }
+}
@@ -0,0 +1,43 @@
+package com.fluidsim.physics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// Передача кадров от одного писателя одному читателю без блокировок и копирования.
+// Писатель заполняет свой слот и меняет его местами со средним; читатель забирает
+// средний, только если там появился новый кадр. Ни одна сторона не ждёт другую
+public class TripleBuffer<T> {
+    private static final int INDEX_MASK = 3;
+    private static final int FRESH = 4;
+
+    private final Object[] slots = new Object[3];
+    // Индекс среднего слота и флаг FRESH, если писатель положил туда кадр после последнего чтения
+    private final AtomicInteger middle = new AtomicInteger(1);
+    private int back = 0;
+    private int front = 2;
+
+    public TripleBuffer(Supplier<T> factory) {
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = factory.get();
+        }
+    }
+
+    // Слот писателя; читатель его не видит до publish()
+    @SuppressWarnings("unchecked")
+    public T back() {
+        return (T)slots[back];
+    }
+
+    public void publish() {
+        back = middle.getAndSet(back | FRESH) & INDEX_MASK;
+    }
+
+    // Самый свежий опубликованный кадр; остаётся валидным до следующего вызова front()
+    @SuppressWarnings("unchecked")
+    public T front() {
+        if ((middle.get() & FRESH) != 0) {
+            front = middle.getAndSet(front) & INDEX_MASK;
+        }
+        return (T)slots[front];
+    }
+}
@@ -0,0 +1,41 @@
+// Правки хоста в отдельных слотах: удаление частицы или новая частица в освободившемся слоте.
+// Один слот может встретиться дважды - данные у обеих копий одинаковые
+__kernel void scatterParticles(
+    __global const int* slots,
+    __global const float4* editParticles,
+    __global const float* editTemperatures,
+    __global const uchar* editMaterials,
+    __global float4* particles,
+    __global float* temperatures,
+    __global uchar* materialIndices,
+    int numEdits
+) {
+    int gid = get_global_id(0);
+    if (gid >= numEdits) return;
+    
+    int slot = slots[gid];
+    particles[slot] = editParticles[gid];
+    temperatures[slot] = editTemperatures[gid];
+    materialIndices[slot] = editMaterials[gid];
+}
+
+// Уплотнение: живые частицы переезжают в начало буфера, sourceSlots[i] - откуда берётся
+// частица для слота i. Порядок живых частиц сохраняется
+__kernel void gatherParticles(
+    __global const float4* particles,
+    __global const float* temperatures,
+    __global const uchar* materialIndices,
+    __global const int* sourceSlots,
+    __global float4* particlesOut,
+    __global float* temperaturesOut,
+    __global uchar* materialsOut,
+    int numParticles
+) {
+    int gid = get_global_id(0);
+    if (gid >= numParticles) return;
+    
+    int source = sourceSlots[gid];
+    particlesOut[gid] = particles[source];
+    temperaturesOut[gid] = temperatures[source];
+    materialsOut[gid] = materialIndices[source];
+}
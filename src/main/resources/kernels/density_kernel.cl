@@ -1,43 +1,39 @@
+// Стадия 1: локальная плотность и новая температура за один проход по соседям
 __kernel void computeDensity(
-    __global float4* particles,
+    __global const float4* particles,
+    __global const float* temperatures,
+    __global const int* neighborIndices,
+    __global const int* neighborCounts,
     __global float* localDensities,
-    __global int* neighborIndices,
-    __global int* neighborCounts,
-    float interactionRadius,
-    __local float4* localParticles
+    __global float* temperaturesOut,
+    float deltaTime
 ) {
     int gid = get_global_id(0);
-    int lid = get_local_id(0);
-    int groupSize = get_local_size(0);
     
-    localParticles[lid] = particles[gid];
-    barrier(CLK_LOCAL_MEM_FENCE);
+    float2 pos = particles[gid].xy;
+    float particleTemp = temperatures[gid];
+    float interactionRadius2 = INTERACTION_RADIUS * INTERACTION_RADIUS;
     
-    float2 pos = (float2)(particles[gid].x, particles[gid].y);
     float localDensity = 0.0f;
-    float interactionRadius2 = interactionRadius * interactionRadius;
+    float tempDiff = 0.0f;
     
     int startIdx = gid * MAX_NEIGHBORS;
     int count = neighborCounts[gid];
     
-    for(int n = 0; n < count; n += 4) {
-        int4 indices = vload4(0, neighborIndices + startIdx + n);
-        float4 densitySum = 0.0f;
+    for(int n = 0; n < count; n++) {
+        int i = neighborIndices[startIdx + n];
+        float2 diff = particles[i].xy - pos;
+        float dist2 = dot(diff, diff);
         
-        #pragma unroll
-        for(int i = 0; i < 4; i++) {
-            if(n + i >= count) break;
-            int idx = indices[i];
-            float2 otherPos = (float2)(particles[idx].x, particles[idx].y);
-            float2 diff = otherPos - pos;
-            float dist2 = dot(diff, diff);
-            
-            if(dist2 < interactionRadius2) {
-                densitySum[i] = 1.0f - sqrt(dist2)/interactionRadius;
+        if(dist2 < interactionRadius2) {
+            float influence = 1.0f - sqrt(dist2) / INTERACTION_RADIUS;
+            if(dist2 > 0.0f) {
+                localDensity += influence;
             }
+            tempDiff += (temperatures[i] - particleTemp) * influence * TEMPERATURE_DIFFUSION;
         }
-        localDensity += densitySum.x + densitySum.y + densitySum.z + densitySum.w;
     }
     
     localDensities[gid] = localDensity;
-} 
\ No newline at end of file
+    temperaturesOut[gid] = particleTemp + tempDiff * deltaTime;
+}
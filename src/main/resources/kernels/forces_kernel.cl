@@ -1,38 +1,99 @@
+// Стадия 2: силы между частицами. Давление симметрично - берётся среднее давлений
+// обеих частиц пары, поэтому пара толкает друг друга одинаково
 __kernel void computeForces(
-    __global float4* particles,
-    __global float* localDensities,
-    __global int* neighborIndices,
-    __global int* neighborCounts,
-    __global int* materialIndices,
-    __global float* materialProperties,
+    __global const float4* particles,
+    __global const float* temperatures,
+    __global const float* localDensities,
+    __global const int* neighborIndices,
+    __global const int* neighborCounts,
+    __global const uchar* materialIndices,
+    __global const float* materialProperties,
     __global float2* forces,
     float viscosity,
     float repulsion,
-    float surfaceTension,
-    float deltaTime,
-    __local float4* localParticles,
-    __local float* localDensities
+    float surfaceTension
 ) {
     int gid = get_global_id(0);
-    int lid = get_local_id(0);
+    if (materialIndices[gid] == DEAD_MATERIAL) {
+        forces[gid] = (float2)(0, 0);
+        return;
+    }
     
-    localParticles[lid] = particles[gid];
-    localDensities[lid] = localDensities[gid];
-    barrier(CLK_LOCAL_MEM_FENCE);
+    float2 pos = particles[gid].xy;
+    float2 vel = particles[gid].zw;
     
-    float2 pos = (float2)(particles[gid].x, particles[gid].y);
-    float2 vel = (float2)(particles[gid].z, particles[gid].w);
+    float2 viscosityForce = (float2)(0, 0);
+    float2 repulsionForce = (float2)(0, 0);
+    float2 surfaceForce = (float2)(0, 0);
+    float2 pressureForce = (float2)(0, 0);
     
-    float2 viscosityForce = 0.0f;
-    float2 pressureForce = 0.0f;
-    float2 surfaceForce = 0.0f;
+    float interactionRadius2 = INTERACTION_RADIUS * INTERACTION_RADIUS;
     
     int currentMaterial = materialIndices[gid];
     float currentDensity = materialProperties[currentMaterial * 4];
     float currentVisc = materialProperties[currentMaterial * 4 + MATERIAL_VISCOSITY_OFFSET];
+    float currentSurfaceTension = materialProperties[currentMaterial * 4 + MATERIAL_SURFACE_TENSION_OFFSET];
+    float currentPressure = localDensities[gid] - REST_DENSITY;
     
     int startIdx = gid * MAX_NEIGHBORS;
     int count = neighborCounts[gid];
     
-    forces[gid] = viscosityForce + pressureForce + surfaceForce;
-} 
\ No newline at end of file
+    for(int n = 0; n < count; n++) {
+        int i = neighborIndices[startIdx + n];
+        float4 other = particles[i];
+        float2 diff = other.xy - pos;
+        float dist2 = dot(diff, diff);
+        
+        if(dist2 >= interactionRadius2 || dist2 <= 0.0f) continue;
+        
+        float dist = sqrt(dist2);
+        float influence = 1.0f - dist / INTERACTION_RADIUS;
+        float2 dir = diff / dist;
+        
+        int otherMaterial = materialIndices[i];
+        float otherDensity = materialProperties[otherMaterial * 4];
+        float otherVisc = materialProperties[otherMaterial * 4 + MATERIAL_VISCOSITY_OFFSET];
+        float otherSurfaceTension = materialProperties[otherMaterial * 4 + MATERIAL_SURFACE_TENSION_OFFSET];
+        
+        float effectiveViscosity = (currentVisc + otherVisc) * 0.5f;
+        viscosityForce += (other.zw - vel) * influence * effectiveViscosity * viscosity;
+        
+        if(dist < MIN_DISTANCE) {
+            repulsionForce -= dir * repulsion * (1.0f - dist / MIN_DISTANCE);
+        }
+        
+        float avgDensity = (currentDensity + otherDensity) * 0.5f;
+        float densityRatio = currentDensity / avgDensity;
+        float pairPressure = (currentPressure + localDensities[i] - REST_DENSITY) * 0.5f;
+        pressureForce -= dir * PRESSURE_STRENGTH * pairPressure * influence * densityRatio;
+        
+        // закон Архимеда
+        float densityDifference = otherDensity - currentDensity;
+        if(densityDifference != 0.0f) {
+            float volumeDisplaced = influence * influence * influence;  // приближение объёма
+            float2 buoyancyForce = (float2)(0, BUOYANCY_STRENGTH * volumeDisplaced * densityDifference);
+            float2 horizontalForce = (float2)(diff.x * 0.1f * fabs(densityDifference), 0);
+            
+            float totalForce = length(buoyancyForce);
+            pressureForce += normalize(buoyancyForce + horizontalForce) * totalForce * influence;
+        }
+        
+        if(dist > INTERACTION_RADIUS * 0.7f) {
+            float effectiveSurfaceTension;
+            if(currentMaterial == otherMaterial) {
+                effectiveSurfaceTension = currentSurfaceTension;
+            } else {
+                float mixFactor = 0.5f;  // Уменьшаем поверхностное натяжение между разными материалами
+                effectiveSurfaceTension = (currentSurfaceTension + otherSurfaceTension) * 0.5f * mixFactor;
+            }
+            surfaceForce += dir * effectiveSurfaceTension * surfaceTension * influence;
+        }
+    }
+    
+    // Вязкость слабеет с нагревом
+    float tempFactor = (temperatures[gid] - 20.0f) / 80.0f;
+    float effectiveViscosity = viscosity * (1.0f - tempFactor * 0.8f);
+    
+    // Масса частицы равна 1, поэтому сила сразу ускорение
+    forces[gid] = viscosityForce * effectiveViscosity + repulsionForce + surfaceForce + pressureForce;
+}
@@ -1,17 +1,110 @@
+// Стадия 3: ускорение от сил, тепловой шум, гравитация, мышь и стенки.
+// Пишет в отдельный буфер, чтобы не мешать ещё читающим соседям
 __kernel void integrate(
-    __global float4* particles,
-    __global float2* forces,
+    __global const float4* particles,
+    __global const float* temperatures,
+    __global const float2* forces,
+    __global float4* particlesOut,
+    int width,
+    int height,
+    int2 mousePos,
+    float mouseForce,
+    float currentMouseForce,
     float deltaTime,
     float gravity,
-    int2 mousePos,
-    float mouseForce
+    __global const uchar* materialIndices
 ) {
     int gid = get_global_id(0);
-    float2 pos = (float2)(particles[gid].x, particles[gid].y);
-    float2 vel = (float2)(particles[gid].z, particles[gid].w);
+    // Удалённая частица стоит на месте до уплотнения
+    if (materialIndices[gid] == DEAD_MATERIAL) {
+        particlesOut[gid] = particles[gid];
+        return;
+    }
+    float2 pos = particles[gid].xy;
+    float2 vel = particles[gid].zw;
+    
+    float tempFactor = (temperatures[gid] - 20.0f) / 80.0f;
+    float2 thermalMotion = (float2)(
+        (random(gid * 2) - 0.5f) * tempFactor * 100.0f,
+        (random(gid * 2 + 1) - 0.5f) * tempFactor * 100.0f
+    );
     
     vel += forces[gid] * deltaTime;
+    vel += thermalMotion * deltaTime;
     vel += (float2)(0, gravity) * deltaTime;
     
-    particles[gid] = (float4)(pos + vel * deltaTime, vel);
-} 
\ No newline at end of file
+    // Обработка взаимодействия с мышью
+    if (mouseForce != 0) {
+        float2 toMouse = (float2)(mousePos.x - pos.x, mousePos.y - pos.y);
+        float dist = length(toMouse);
+        
+        if (dist < MOUSE_INFLUENCE) {
+            if (fabs(mouseForce) <= currentMouseForce) {  // Режим рисования
+                float force = mouseForce * (1.0f - dist / MOUSE_INFLUENCE);
+                vel += normalize(toMouse) * force * deltaTime;
+            } else if (fabs(mouseForce) > currentMouseForce * 2 && fabs(mouseForce) < currentMouseForce * 4) {  // Режим температуры
+            } else {  // Режим вихря
+                float2 perpendicular = (float2)(-toMouse.y, toMouse.x);
+                float force = sign(mouseForce) * (1.0f - dist / MOUSE_INFLUENCE) * 2000.0f;
+                vel += normalize(perpendicular) * force * deltaTime;
+            }
+        }
+    }
+    
+    vel *= 0.98f + tempFactor * 0.01f;
+    pos += vel * deltaTime;
+    
+    // Коллизия со стенками
+    float damping = 0.8f;
+    float margin = 5.0f;
+    
+    if (pos.x < margin) {
+        pos.x = margin;
+        vel.x = -vel.x * damping;
+    }
+    if (pos.x > width - margin) {
+        pos.x = width - margin;
+        vel.x = -vel.x * damping;
+    }
+    if (pos.y < margin) {
+        pos.y = margin;
+        vel.y = -vel.y * damping;
+    }
+    if (pos.y > height - margin) {
+        pos.y = height - margin;
+        vel.y = -vel.y * damping;
+    }
+    
+    particlesOut[gid] = (float4)(pos.x, pos.y, vel.x, vel.y);
+}
+
+// Максимум квадрата скорости по рабочей группе; хост добирает максимум по группам.
+// Размер группы - степень двойки, хвост последней группы дополняется нулями
+__kernel void reduceMaxSpeed(
+    __global const float4* particles,
+    int numParticles,
+    __local float* scratch,
+    __global float* groupMax
+) {
+    int gid = get_global_id(0);
+    int lid = get_local_id(0);
+    
+    float speed2 = 0.0f;
+    if (gid < numParticles) {
+        float2 vel = particles[gid].zw;
+        speed2 = dot(vel, vel);
+    }
+    scratch[lid] = speed2;
+    barrier(CLK_LOCAL_MEM_FENCE);
+    
+    for (int offset = get_local_size(0) / 2; offset > 0; offset >>= 1) {
+        if (lid < offset) {
+            scratch[lid] = fmax(scratch[lid], scratch[lid + offset]);
+        }
+        barrier(CLK_LOCAL_MEM_FENCE);
+    }
+    
+    if (lid == 0) {
+        groupMax[get_group_id(0)] = scratch[0];
+    }
+}
@@ -1,35 +1,136 @@
 #define CELL_SIZE 30.0f
 #define MAX_NEIGHBORS 64
+#define EMPTY_CELL_KEY 0x7fffffff
+
+int2 cellOf(float2 pos, int gridWidth, int gridHeight) {
+    int2 cell = convert_int2(floor(pos / CELL_SIZE));
+    return clamp(cell, (int2)(0, 0), (int2)(gridWidth - 1, gridHeight - 1));
+}
+
+// Пара (ключ ячейки, индекс частицы); хвост до степени двойки и удалённые частицы получают
+// пустой ключ - после сортировки они в конце и не попадают ни в одну ячейку
+__kernel void computeCellKeys(__global const float* particles,
+                              __global int2* cellEntries,
+                              const int numParticles,
+                              const int gridWidth,
+                              const int gridHeight,
+                              __global const uchar* materialIndices) {
+    int gid = get_global_id(0);
+    if (gid >= numParticles || materialIndices[gid] == DEAD_MATERIAL) {
+        cellEntries[gid] = (int2)(EMPTY_CELL_KEY, gid);
+        return;
+    }
+
+    float2 pos = (float2)(particles[gid * 4], particles[gid * 4 + 1]);
+    int2 cell = cellOf(pos, gridWidth, gridHeight);
+    cellEntries[gid] = (int2)(cell.y * gridWidth + cell.x, gid);
+}
+
+// Один проход битонной сортировки; хост перебирает пары (k, j)
+__kernel void bitonicSortStep(__global int2* cellEntries,
+                              const int j,
+                              const int k) {
+    int i = get_global_id(0);
+    int ixj = i ^ j;
+    if (ixj <= i) return;
+
+    int2 a = cellEntries[i];
+    int2 b = cellEntries[ixj];
+    bool ascending = (i & k) == 0;
+    bool greater = a.x > b.x || (a.x == b.x && a.y > b.y);
+
+    if (greater == ascending) {
+        cellEntries[i] = b;
+        cellEntries[ixj] = a;
+    }
+}
+
+__kernel void resetCellBounds(__global int* cellStart,
+                              __global int* cellEnd,
+                              const int numCells) {
+    int gid = get_global_id(0);
+    if (gid >= numCells) return;
+    cellStart[gid] = 0;
+    cellEnd[gid] = 0;
+}
+
+__kernel void findCellBounds(__global const int2* cellEntries,
+                             __global int* cellStart,
+                             __global int* cellEnd,
+                             const int numParticles) {
+    int gid = get_global_id(0);
+    if (gid >= numParticles) return;
+
+    int key = cellEntries[gid].x;
+    if (key == EMPTY_CELL_KEY) return;
+    if (gid == 0 || cellEntries[gid - 1].x != key) {
+        cellStart[key] = gid;
+    }
+    if (gid == numParticles - 1 || cellEntries[gid + 1].x != key) {
+        cellEnd[key] = gid + 1;
+    }
+}
 
 __kernel void buildSpatialHash(__global float* particles,
                              __global int* neighborIndices,
                              __global int* neighborCounts,
                              const int numParticles,
-                             const float searchRadius) {
+                             const float searchRadius,
+                             __global const int2* cellEntries,
+                             __global const int* cellStart,
+                             __global const int* cellEnd,
+                             const int gridWidth,
+                             const int gridHeight,
+                             __global const uchar* materialIndices) {
     int gid = get_global_id(0);
     if (gid >= numParticles) return;
-    
+    if (materialIndices[gid] == DEAD_MATERIAL) {
+        neighborCounts[gid] = 0;
+        return;
+    }
+
     float2 pos = (float2)(particles[gid * 4], particles[gid * 4 + 1]);
-    
-    float searchDist = searchRadius + CELL_SIZE;
-    int2 minCell = convert_int2((pos - searchDist) / CELL_SIZE);
-    int2 maxCell = convert_int2((pos + searchDist) / CELL_SIZE);
-    
+    float searchRadius2 = searchRadius * searchRadius;
+
+    int2 minCell = cellOf(pos - searchRadius, gridWidth, gridHeight);
+    int2 maxCell = cellOf(pos + searchRadius, gridWidth, gridHeight);
+
     int neighborCount = 0;
     int startIdx = gid * MAX_NEIGHBORS;
-    
-    for (int i = 0; i < numParticles && neighborCount < MAX_NEIGHBORS; i++) {
-        if (i == gid) continue;
-        
-        float2 otherPos = (float2)(particles[i * 4], particles[i * 4 + 1]);
-        float2 diff = otherPos - pos;
-        float dist2 = dot(diff, diff);
-        
-        if (dist2 < searchRadius * searchRadius) {
-            neighborIndices[startIdx + neighborCount] = i;
-            neighborCount++;
+
+    // При переполнении вытесняем самого дальнего, чтобы в списке оставались ближайшие
+    float neighborDist2[MAX_NEIGHBORS];
+    int farthest = 0;
+
+    for (int cy = minCell.y; cy <= maxCell.y; cy++) {
+        for (int cx = minCell.x; cx <= maxCell.x; cx++) {
+            int key = cy * gridWidth + cx;
+            int end = cellEnd[key];
+
+            for (int s = cellStart[key]; s < end; s++) {
+                int i = cellEntries[s].y;
+                if (i == gid) continue;
+
+                float2 otherPos = (float2)(particles[i * 4], particles[i * 4 + 1]);
+                float2 diff = otherPos - pos;
+                float dist2 = dot(diff, diff);
+                if (dist2 >= searchRadius2) continue;
+
+                if (neighborCount < MAX_NEIGHBORS) {
+                    neighborIndices[startIdx + neighborCount] = i;
+                    neighborDist2[neighborCount] = dist2;
+                    if (dist2 > neighborDist2[farthest]) farthest = neighborCount;
+                    neighborCount++;
+                } else if (dist2 < neighborDist2[farthest]) {
+                    neighborIndices[startIdx + farthest] = i;
+                    neighborDist2[farthest] = dist2;
+                    for (int n = 0; n < MAX_NEIGHBORS; n++) {
+                        if (neighborDist2[n] > neighborDist2[farthest]) farthest = n;
+                    }
+                }
+            }
         }
     }
-    
+
     neighborCounts[gid] = neighborCount;
-} 
\ No newline at end of file
+}
@@ -0,0 +1,41 @@
+package com.fluidsim.physics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+
+class SceneTest {
+    @Test
+    void materialByNameOrIndex() throws IOException {
+        Scene scene = load("block.0=0,0,2,1,mercury\nblock.1=0,100,1,1,4\n");
+        SimulationState state = scene.createState(new float[0]);
+        assertEquals(3, state.getParticleCount());
+        assertEquals(2, state.getMaterialIndices()[0]);
+        assertEquals(4, state.getMaterialIndices()[2]);
+    }
+
+    @Test
+    void materialOutsideTableIsRejected() {
+        for (String material : new String[] {"5", "-1", "255", "300", "lava"}) {
+            IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> load("block.0=0,0,1,1\nblock.1=0,0,1,1," + material + "\n"));
+            assertTrue(e.getMessage().startsWith("block.1:"), e.getMessage());
+        }
+    }
+
+    private static Scene load(String text) throws IOException {
+        Path file = Files.createTempFile("scene", ".properties");
+        try {
+            Files.writeString(file, text);
+            return Scene.load(file);
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.fluidsim.physics;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Test;
+
+class StateSerializerTest {
+    // Смещения в заголовке: magic, версия, флаги, число секций, число частиц; таблица секций
+    private static final int SECTIONS_OFFSET = 8;
+    private static final int COUNT_OFFSET = 12;
+    private static final int TABLE_OFFSET = 56;
+
+    @Test
+    void roundTripPlain() throws IOException {
+        roundTrip(false);
+    }
+
+    @Test
+    void roundTripDeflated() throws IOException {
+        roundTrip(true);
+    }
+
+    @Test
+    void corruptSnapshotsLoadAsEmptyState() throws IOException {
+        assertRejected(bytes -> put(bytes, COUNT_OFFSET, -1));
+        assertRejected(bytes -> put(bytes, COUNT_OFFSET, Integer.MAX_VALUE));
+        assertRejected(bytes -> put(bytes, SECTIONS_OFFSET, 1 << 20));
+        // Длина частиц в таблице меньше, чем без сжатия
+        assertRejected(bytes -> ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN)
+            .putLong(TABLE_OFFSET + 12, 16));
+        // Нет магии - например, старый снимок ObjectOutputStream
+        assertRejected(bytes -> put(bytes, 0, 0xACED0005));
+    }
+
+    @Test
+    void truncatedSnapshotLoadsAsEmptyState() throws IOException {
+        for (boolean compress : new boolean[] {false, true}) {
+            Path file = Files.createTempFile("state", ".bin");
+            try {
+                StateSerializer.saveState(sampleState(), file.toString(), compress);
+                byte[] bytes = Files.readAllBytes(file);
+                for (int length : new int[] {0, 3, 40, bytes.length / 2, bytes.length - 1}) {
+                    Files.write(file, Arrays.copyOf(bytes, length));
+                    assertEquals(0, StateSerializer.loadState(file.toString()).getParticleCount(),
+                        "length " + length);
+                }
+            } finally {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private static void roundTrip(boolean compress) throws IOException {
+        SimulationState state = sampleState();
+        Path file = Files.createTempFile("state", ".bin");
+        try {
+            StateSerializer.saveState(state, file.toString(), compress);
+            SimulationState loaded = StateSerializer.loadState(file.toString());
+            assertEquals(state.getParticleCount(), loaded.getParticleCount());
+            assertArrayEquals(state.getParticles(), loaded.getParticles(), 0.0f);
+            assertArrayEquals(state.getTemperatures(), loaded.getTemperatures(), 0.0f);
+            assertArrayEquals(state.getMaterialIndices(), loaded.getMaterialIndices());
+            assertArrayEquals(state.getMaterialProperties(), loaded.getMaterialProperties(), 0.0f);
+            assertEquals(state.getWidth(), loaded.getWidth());
+            assertEquals(state.getHeight(), loaded.getHeight());
+            assertEquals(state.getMouseX(), loaded.getMouseX());
+            assertEquals(state.getMouseY(), loaded.getMouseY());
+            assertEquals(state.getViscosity(), loaded.getViscosity(), 0.0f);
+            assertEquals(state.getGravity(), loaded.getGravity(), 0.0f);
+            assertEquals(state.getCurrentMouseForce(), loaded.getCurrentMouseForce(), 0.0f);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static void assertRejected(Consumer<byte[]> corruption) throws IOException {
+        Path file = Files.createTempFile("state", ".bin");
+        try {
+            StateSerializer.saveState(sampleState(), file.toString(), false);
+            byte[] bytes = Files.readAllBytes(file);
+            corruption.accept(bytes);
+            Files.write(file, bytes);
+            assertEquals(0, StateSerializer.loadState(file.toString()).getParticleCount());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static void put(byte[] bytes, int offset, int value) {
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).putInt(offset, value);
+    }
+
+    private static SimulationState sampleState() {
+        int count = 1000;
+        float[] particles = new float[count * ParticleStore.STRIDE];
+        float[] temperatures = new float[count];
+        byte[] materials = new byte[count];
+        for (int i = 0; i < count; i++) {
+            particles[i * 4] = i * 1.5f;
+            particles[i * 4 + 1] = 700.0f - i * 0.25f;
+            particles[i * 4 + 2] = (i % 13) - 6.0f;
+            particles[i * 4 + 3] = i * 0.01f;
+            temperatures[i] = 20.0f + i % 80;
+            materials[i] = i % 17 == 0 ? ParticleStore.DEAD : (byte)(i % 5);
+        }
+        float[] properties = {1.0f, 0.8f, 1000.0f, 0.9f, 1.2f, 500.0f};
+        return new SimulationState(count, particles, temperatures, materials, properties,
+            1280, 720, 500.0f, 0.8f, 1000.0f, 100.0f, 500.0f, 17, 42, 250.0f);
+    }
+}
@@ -0,0 +1,111 @@
+package com.fluidsim.physics;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class TimelineTest {
+    // Float16-дельты восстанавливаются с ошибкой порядка ulp половинной точности
+    private static final float TOLERANCE = 0.01f;
+
+    // Куча нулевого размера: каждый закрытый сегмент сразу уходит в файл. Число частиц
+    // меняется через неравные промежутки, так что сегменты разного размера и файл
+    // переписывается по кругу несколько раз
+    @Test
+    void wrappedSpillKeepsHistoryDecodable() {
+        int[] segmentFrames = {3, 11, 2, 7, 5, 13, 1, 9, 4, 12, 6, 2, 10, 3, 8};
+        int[] segmentSpawns = {30, 5, 40, 1, 25, 0, 35, 10, 2, 30, 15, 45, 3, 20, 8};
+        ParticleStore store = new ParticleStore();
+        List<float[]> particles = new ArrayList<>();
+        List<float[]> temperatures = new ArrayList<>();
+
+        try (Timeline timeline = new Timeline(Integer.MAX_VALUE, 0, 16 << 10)) {
+            int pushed = 0;
+            for (int round = 0; round < 4; round++) {
+                for (int s = 0; s < segmentFrames.length; s++) {
+                    for (int i = 0; i < segmentSpawns[s]; i++) {
+                        store.add(10.0f * (store.getCount() % 50), 7.0f * s, 20.0f + i, s % 5);
+                    }
+                    for (int frame = 0; frame < segmentFrames[s]; frame++) {
+                        move(store, pushed);
+                        timeline.push(store);
+                        particles.add(store.copyParticles());
+                        temperatures.add(Arrays.copyOf(store.getTemperatures(), store.getCount()));
+                        pushed++;
+                    }
+                }
+            }
+
+            int kept = timeline.size();
+            assertTrue(kept > 0 && kept < pushed, "history should have wrapped, kept " + kept + " of " + pushed);
+            ParticleStore restored = new ParticleStore();
+            for (int k = 0; k < kept; k++) {
+                assertTrue(timeline.pop(restored));
+                int frame = pushed - 1 - k;
+                assertArrayEquals(particles.get(frame), restored.copyParticles(), TOLERANCE, "frame " + frame);
+                assertArrayEquals(temperatures.get(frame),
+                    Arrays.copyOf(restored.getTemperatures(), restored.getCount()), TOLERANCE, "frame " + frame);
+            }
+            assertFalse(timeline.pop(restored));
+            assertEquals(0, timeline.size());
+        }
+    }
+
+    // Раскладка файла на 4000 байт (размер сегмента 8 + 25n + 10n(f - 1)):
+    // A [0, 2708) и B [2708, 2966) - первый круг; D (1508) не влезает в хвост, уходит в начало
+    // и вытесняет A; E (2608) снова не влезает и идёт в начало. B лежит выше конца E, но
+    // старше D, так что вытесняться должны оба - иначе E затрёт D, который ещё в истории
+    @Test
+    void wrapEvictsOlderSegmentsAboveWritePosition() {
+        ParticleStore store = new ParticleStore();
+        List<float[]> particles = new ArrayList<>();
+        List<float[]> temperatures = new ArrayList<>();
+
+        try (Timeline timeline = new Timeline(Integer.MAX_VALUE, 0, 4000)) {
+            int[][] segments = {{60, 3}, {10, 1}, {20, 6}, {40, 5}, {5, 1}};
+            for (int[] segment : segments) {
+                store.clear();
+                for (int i = 0; i < segment[0]; i++) {
+                    store.add(3.0f * i, 100.0f + segment[0], 20.0f + i % 10, i % 5);
+                }
+                for (int frame = 0; frame < segment[1]; frame++) {
+                    move(store, particles.size());
+                    timeline.push(store);
+                    particles.add(store.copyParticles());
+                    temperatures.add(Arrays.copyOf(store.getTemperatures(), store.getCount()));
+                }
+            }
+
+            // В истории остаются только E и текущий F
+            assertEquals(6, timeline.size());
+            ParticleStore restored = new ParticleStore();
+            for (int k = 0; k < 6; k++) {
+                assertTrue(timeline.pop(restored));
+                int frame = particles.size() - 1 - k;
+                assertArrayEquals(particles.get(frame), restored.copyParticles(), TOLERANCE, "frame " + frame);
+                assertArrayEquals(temperatures.get(frame),
+                    Arrays.copyOf(restored.getTemperatures(), restored.getCount()), TOLERANCE, "frame " + frame);
+            }
+            assertFalse(timeline.pop(restored));
+        }
+    }
+
+    private static void move(ParticleStore store, int step) {
+        float[] data = store.getParticles();
+        float[] temperatures = store.getTemperatures();
+        for (int i = 0; i < store.getCount(); i++) {
+            data[i * ParticleStore.STRIDE] += 0.5f + (i % 7) * 0.25f;
+            data[i * ParticleStore.STRIDE + 1] -= 0.3f * (step % 3);
+            data[i * ParticleStore.STRIDE + 2] = i * 0.1f;
+            data[i * ParticleStore.STRIDE + 3] = -step * 0.05f;
+            temperatures[i] += 0.01f * (i % 4);
+        }
+    }
+}